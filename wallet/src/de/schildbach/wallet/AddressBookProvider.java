@@ -17,7 +17,14 @@
 
 package de.schildbach.wallet;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -28,6 +35,8 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 
+import de.schildbach.wallet.util.SubstringIndex;
+
 /**
  * @author Andreas Schildbach
  */
@@ -48,8 +57,34 @@ public class AddressBookProvider extends ContentProvider
 		return Uri.parse("content://" + packageName + '.' + DATABASE_TABLE);
 	}
 
+	private static final int LABEL_CACHE_SIZE = 1024;
+	private static final int BULK_RESOLVE_CHUNK_SIZE = 256;
+
+	// process-wide cache of address to label, or NO_LABEL for addresses known not to be in the address book
+	private static final Map<String, String> labelCache = new LinkedHashMap<String, String>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, String> eldest)
+		{
+			return size() > LABEL_CACHE_SIZE;
+		}
+	};
+	private static final String NO_LABEL = new String();
+	private static long labelCacheGeneration = 0;
+
 	public static String resolveLabel(final Context context, final String address)
 	{
+		final long generation;
+
+		synchronized (labelCache)
+		{
+			final String cachedLabel = labelCache.get(address);
+			if (cachedLabel != null)
+				return cachedLabel != NO_LABEL ? cachedLabel : null;
+
+			generation = labelCacheGeneration;
+		}
+
 		String label = null;
 
 		final Uri uri = contentUri(context.getPackageName()).buildUpon().appendPath(address).build();
@@ -63,11 +98,114 @@ public class AddressBookProvider extends ContentProvider
 			cursor.close();
 		}
 
+		synchronized (labelCache)
+		{
+			// don't cache what might have been read before a concurrent change
+			if (generation == labelCacheGeneration)
+				labelCache.put(address, label != null ? label : NO_LABEL);
+		}
+
 		return label;
 	}
 
+	/**
+	 * Resolves the labels of many addresses at once. Addresses not in the cache are looked up with a single query (per
+	 * few hundred addresses), so this is the way to go for lists. Addresses without a label are missing from the
+	 * returned map.
+	 */
+	public static Map<String, String> resolveLabels(final Context context, final Collection<String> addresses)
+	{
+		final Map<String, String> labels = new HashMap<String, String>(addresses.size());
+		final Set<String> missingSet = new LinkedHashSet<String>();
+		final long generation;
+
+		synchronized (labelCache)
+		{
+			for (final String address : addresses)
+			{
+				final String cachedLabel = labelCache.get(address);
+				if (cachedLabel == null)
+					missingSet.add(address);
+				else if (cachedLabel != NO_LABEL)
+					labels.put(address, cachedLabel);
+			}
+
+			generation = labelCacheGeneration;
+		}
+
+		if (missingSet.isEmpty())
+			return labels;
+
+		final List<String> missing = new ArrayList<String>(missingSet);
+
+		final Uri uri = contentUri(context.getPackageName());
+		final Map<String, String> found = new HashMap<String, String>(missing.size());
+
+		for (int i = 0; i < missing.size(); i += BULK_RESOLVE_CHUNK_SIZE)
+		{
+			final List<String> chunk = missing.subList(i, Math.min(i + BULK_RESOLVE_CHUNK_SIZE, missing.size()));
+			final StringBuilder in = new StringBuilder();
+			for (final String address : chunk)
+				in.append(address).append(',');
+			in.setLength(in.length() - 1);
+
+			final Cursor cursor = context.getContentResolver().query(uri, null, SELECTION_IN, new String[] { in.toString() }, null);
+
+			if (cursor != null)
+			{
+				final int addressIndex = cursor.getColumnIndexOrThrow(KEY_ADDRESS);
+				final int labelIndex = cursor.getColumnIndexOrThrow(KEY_LABEL);
+
+				while (cursor.moveToNext())
+				{
+					final String label = cursor.getString(labelIndex);
+					if (label != null)
+						found.put(cursor.getString(addressIndex), label);
+				}
+
+				cursor.close();
+			}
+		}
+
+		synchronized (labelCache)
+		{
+			// don't cache what might have been read before a concurrent change
+			if (generation == labelCacheGeneration)
+				for (final String address : missing)
+				{
+					final String label = found.get(address);
+					labelCache.put(address, label != null ? label : NO_LABEL);
+				}
+		}
+
+		labels.putAll(found);
+
+		return labels;
+	}
+
+	private static void invalidateLabel(final String address)
+	{
+		synchronized (labelCache)
+		{
+			labelCacheGeneration++;
+			labelCache.remove(address);
+		}
+	}
+
+	private static void invalidateAllLabels()
+	{
+		synchronized (labelCache)
+		{
+			labelCacheGeneration++;
+			labelCache.clear();
+		}
+	}
+
 	private Helper helper;
 
+	// built on first search, then maintained by insert, update and delete
+	private SubstringIndex searchIndex = null;
+
 	@Override
 	public boolean onCreate()
 	{
@@ -90,7 +228,31 @@ public class AddressBookProvider extends ContentProvider
 		final String address = uri.getLastPathSegment();
 		values.put(KEY_ADDRESS, address);
 
-		long rowId = helper.getWritableDatabase().insertOrThrow(DATABASE_TABLE, null, values);
+		// The address may have a row already, e.g. one without a label that callers took for no entry. Addresses are
+		// unique, so that row is updated rather than inserting another one.
+		final SQLiteDatabase db = helper.getWritableDatabase();
+		final long rowId;
+
+		db.beginTransaction();
+		try
+		{
+			final List<Long> rowIds = queryRowIds(address);
+			if (rowIds.isEmpty())
+				rowId = db.insertOrThrow(DATABASE_TABLE, null, values);
+			else if (db.update(DATABASE_TABLE, values, KEY_ADDRESS + "=?", new String[] { address }) > 0)
+				rowId = rowIds.get(0);
+			else
+				throw new IllegalStateException("could not update " + address);
+
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+		}
+
+		invalidateLabel(address);
+		indexRows(address);
 
 		final Uri rowUri = contentUri(getContext().getPackageName()).buildUpon().appendPath(address).appendPath(Long.toString(rowId)).build();
 
@@ -99,6 +261,47 @@ public class AddressBookProvider extends ContentProvider
 		return rowUri;
 	}
 
+	/**
+	 * Inserts all given entries in a single transaction. Each entry must carry its address in {@link #KEY_ADDRESS}.
+	 * Entries for addresses that are already in the address book are skipped, so existing labels are kept.
+	 */
+	@Override
+	public int bulkInsert(final Uri uri, final ContentValues[] values)
+	{
+		if (uri.getPathSegments().size() != 0)
+			throw new IllegalArgumentException(uri.toString());
+
+		final SQLiteDatabase db = helper.getWritableDatabase();
+		int count = 0;
+
+		db.beginTransaction();
+		try
+		{
+			for (final ContentValues entry : values)
+			{
+				if (entry.getAsString(KEY_ADDRESS) == null)
+					throw new IllegalArgumentException("missing address: " + entry);
+
+				if (db.insertWithOnConflict(DATABASE_TABLE, null, entry, SQLiteDatabase.CONFLICT_IGNORE) != -1)
+					count++;
+			}
+
+			db.setTransactionSuccessful();
+		}
+		finally
+		{
+			db.endTransaction();
+		}
+
+		invalidateAllLabels();
+		dropSearchIndex();
+
+		if (count > 0)
+			getContext().getContentResolver().notifyChange(uri, null);
+
+		return count;
+	}
+
 	@Override
 	public int update(final Uri uri, final ContentValues values, final String selection, final String[] selectionArgs)
 	{
@@ -109,6 +312,9 @@ public class AddressBookProvider extends ContentProvider
 
 		final int count = helper.getWritableDatabase().update(DATABASE_TABLE, values, KEY_ADDRESS + "=?", new String[] { address });
 
+		invalidateLabel(address);
+		indexRows(address);
+
 		if (count > 0)
 			getContext().getContentResolver().notifyChange(uri, null);
 
@@ -124,8 +330,13 @@ public class AddressBookProvider extends ContentProvider
 
 		final String address = uri.getLastPathSegment();
 
+		final List<Long> rowIds = queryRowIds(address);
+
 		final int count = helper.getWritableDatabase().delete(DATABASE_TABLE, KEY_ADDRESS + "=?", new String[] { address });
 
+		invalidateLabel(address);
+		unindexRows(rowIds);
+
 		if (count > 0)
 			getContext().getContentResolver().notifyChange(uri, null);
 
@@ -171,9 +382,19 @@ public class AddressBookProvider extends ContentProvider
 		}
 		else if (SELECTION_QUERY.equals(originalSelection))
 		{
-			final String query = '%' + originalSelectionArgs[0].trim() + '%';
-			selection = KEY_ADDRESS + " LIKE ? OR " + KEY_LABEL + " LIKE ?";
-			selectionArgs = new String[] { query, query };
+			// same matches as address LIKE '%q%' OR label LIKE '%q%', but without scanning the table
+			final Set<Long> rowIds = search(originalSelectionArgs[0].trim());
+
+			qb.appendWhere(KEY_ROWID + " IN (");
+			boolean first = true;
+			for (final Long rowId : rowIds)
+			{
+				if (!first)
+					qb.appendWhere(",");
+				qb.appendWhere(rowId.toString());
+				first = false;
+			}
+			qb.appendWhere(")");
 		}
 
 		final Cursor cursor = qb.query(helper.getReadableDatabase(), projection, selection, selectionArgs, null, null, sortOrder);
@@ -183,26 +404,92 @@ public class AddressBookProvider extends ContentProvider
 		return cursor;
 	}
 
+	// the index is mutated by insert, update and delete, so it's only ever read under the same lock
+	private synchronized Set<Long> search(final String query)
+	{
+		return searchIndex().search(query);
+	}
+
+	private synchronized SubstringIndex searchIndex()
+	{
+		if (searchIndex == null)
+		{
+			searchIndex = new SubstringIndex();
+
+			final Cursor cursor = helper.getReadableDatabase().query(DATABASE_TABLE, new String[] { KEY_ROWID, KEY_ADDRESS, KEY_LABEL }, null,
+					null, null, null, null);
+			while (cursor.moveToNext())
+				searchIndex.put(cursor.getLong(0), cursor.getString(1), cursor.getString(2));
+			cursor.close();
+		}
+
+		return searchIndex;
+	}
+
+	// cheaper than indexing many rows one by one, it'll be rebuilt on the next search
+	private synchronized void dropSearchIndex()
+	{
+		searchIndex = null;
+	}
+
+	// called after rows of the given address have been written; re-reading them makes this idempotent
+	private synchronized void indexRows(final String address)
+	{
+		if (searchIndex == null)
+			return;
+
+		final Cursor cursor = helper.getReadableDatabase().query(DATABASE_TABLE, new String[] { KEY_ROWID, KEY_LABEL }, KEY_ADDRESS + "=?",
+				new String[] { address }, null, null, null);
+		while (cursor.moveToNext())
+			searchIndex.put(cursor.getLong(0), address, cursor.getString(1));
+		cursor.close();
+	}
+
+	private synchronized void unindexRows(final List<Long> rowIds)
+	{
+		if (searchIndex == null)
+			return;
+
+		for (final Long rowId : rowIds)
+			searchIndex.remove(rowId);
+	}
+
+	private List<Long> queryRowIds(final String address)
+	{
+		final List<Long> rowIds = new ArrayList<Long>(1);
+
+		final Cursor cursor = helper.getReadableDatabase().query(DATABASE_TABLE, new String[] { KEY_ROWID }, KEY_ADDRESS + "=?",
+				new String[] { address }, null, null, null);
+		while (cursor.moveToNext())
+			rowIds.add(cursor.getLong(0));
+		cursor.close();
+
+		return rowIds;
+	}
+
 	private static void appendAddresses(final SQLiteQueryBuilder qb, final String[] addresses)
 	{
-		for (final String address : addresses)
+		for (int i = 0; i < addresses.length; i++)
 		{
-			qb.appendWhereEscapeString(address.trim());
-			if (!address.equals(addresses[addresses.length - 1]))
+			if (i > 0)
 				qb.appendWhere(",");
+			qb.appendWhereEscapeString(addresses[i].trim());
 		}
 	}
 
 	private static class Helper extends SQLiteOpenHelper
 	{
 		private static final String DATABASE_NAME = "address_book";
-		private static final int DATABASE_VERSION = 1;
+		private static final int DATABASE_VERSION = 2;
 
 		private static final String DATABASE_CREATE = "CREATE TABLE " + DATABASE_TABLE + " (" //
 				+ KEY_ROWID + " INTEGER PRIMARY KEY AUTOINCREMENT, " //
 				+ KEY_ADDRESS + " TEXT NOT NULL, " //
 				+ KEY_LABEL + " TEXT NULL);";
 
+		private static final String DATABASE_CREATE_INDEX_ADDRESS = "CREATE UNIQUE INDEX " + DATABASE_TABLE + "_" + KEY_ADDRESS + " ON "
+				+ DATABASE_TABLE + " (" + KEY_ADDRESS + ");";
+
 		public Helper(final Context context)
 		{
 			super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -212,6 +499,7 @@ public class AddressBookProvider extends ContentProvider
 		public void onCreate(final SQLiteDatabase db)
 		{
 			db.execSQL(DATABASE_CREATE);
+			db.execSQL(DATABASE_CREATE_INDEX_ADDRESS);
 		}
 
 		@Override
@@ -234,6 +522,13 @@ public class AddressBookProvider extends ContentProvider
 		private void upgrade(final SQLiteDatabase db, final int oldVersion)
 		{
 			if (oldVersion == 1)
+			{
+				// keep only the most recent entry per address, so the address can be made unique
+				db.execSQL("DELETE FROM " + DATABASE_TABLE + " WHERE " + KEY_ROWID + " NOT IN (SELECT MAX(" + KEY_ROWID + ") FROM "
+						+ DATABASE_TABLE + " GROUP BY " + KEY_ADDRESS + ");");
+				db.execSQL(DATABASE_CREATE_INDEX_ADDRESS);
+			}
+			else if (oldVersion == 2)
 			{
 				// future
 			}
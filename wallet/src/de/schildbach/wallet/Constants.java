@@ -49,11 +49,21 @@ public class Constants
 
 	public static final File EXTERNAL_WALLET_BACKUP_DIR = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
 	public static final String EXTERNAL_WALLET_KEY_BACKUP = "bitcoin-wallet-keys" + FILENAME_NETWORK_SUFFIX;
+	public static final String EXTERNAL_TRANSACTIONS_EXPORT = "bitcoin-wallet-transactions" + FILENAME_NETWORK_SUFFIX;
 
 	public static final String BLOCKCHAIN_FILENAME = "blockchain" + FILENAME_NETWORK_SUFFIX;
 
 	public static final String CHECKPOINTS_FILENAME = "checkpoints" + FILENAME_NETWORK_SUFFIX;
 
+	public static final String APP_ALLOWANCES_FILENAME = "app-allowances" + FILENAME_NETWORK_SUFFIX;
+	public static final long APP_ALLOWANCES_SYNC_DELAY_MS = 250;
+
+	public static final String CHANNEL_BROADCASTS_FILENAME = "channel-broadcasts" + FILENAME_NETWORK_SUFFIX;
+
+	public static final String REVERSE_DNS_CACHE_FILENAME = "reverse-dns-cache";
+
+	public static final String EXCHANGE_RATES_FILENAME = "exchange-rates";
+
 	private static final String BLOCKEXPLORER_BASE_URL_PROD = "https://blockexplorer.com/";
 	private static final String BLOCKEXPLORER_BASE_URL_TEST = "https://blockexplorer.com/testnet/";
 	public static final String BLOCKEXPLORER_BASE_URL = NETWORK_PARAMETERS.getId().equals(NetworkParameters.ID_MAINNET) ? BLOCKEXPLORER_BASE_URL_PROD
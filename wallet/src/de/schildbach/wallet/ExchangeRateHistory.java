@@ -0,0 +1,284 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.text.format.DateUtils;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+
+/**
+ * Keeps the history of exchange rates on disk, so values can be shown in fiat as they were at the time of a transaction.
+ *
+ * There is one file per currency, holding fixed-width records of time and rate in time order. At most one record per
+ * hour is appended. Files are memory-mapped for reading, so a lookup is a binary search that doesn't copy anything and
+ * is cheap enough for binding list rows.
+ *
+ * Lookups take no lock once a series is mapped, and recording never holds up lookups: it writes the files first and
+ * then swaps in freshly mapped series. Mapping a series the first time can be done ahead of lookups with
+ * {@link #load(String)}.
+ */
+public class ExchangeRateHistory
+{
+	private static final int FILE_VERSION = 1;
+	private static final int HEADER_SIZE = 4; // version
+	private static final int RECORD_SIZE = 4 + 8; // minutes since epoch, rate
+	private static final int RESOLUTION_MINUTES = 60;
+	private static final int MAX_DISTANCE_MINUTES = 24 * 60;
+	private static final Pattern PATTERN_CURRENCY_CODE = Pattern.compile("[A-Z]{3}");
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(HEADER_SIZE);
+
+	private final File dir;
+
+	// mapped files by currency code; never modified, but replaced by a copy while holding seriesLock
+	private volatile Map<String, ByteBuffer> series = Collections.emptyMap();
+	private final Object seriesLock = new Object();
+
+	private static final Logger log = LoggerFactory.getLogger(ExchangeRateHistory.class);
+
+	public ExchangeRateHistory(final File dir)
+	{
+		this.dir = dir;
+	}
+
+	/**
+	 * Appends the given rates, except for currencies that already have a record from the last hour. Does disk I/O, so
+	 * don't call on the UI thread.
+	 */
+	public synchronized void record(final Map<String, ExchangeRate> rates, final long time)
+	{
+		final int minutes = (int) (time / DateUtils.MINUTE_IN_MILLIS);
+		final Map<String, ByteBuffer> series = this.series;
+		final Set<String> appended = new HashSet<String>();
+
+		for (final ExchangeRate rate : rates.values())
+		{
+			final String currencyCode = rate.currencyCode;
+			if (!PATTERN_CURRENCY_CODE.matcher(currencyCode).matches())
+				continue;
+
+			ByteBuffer buffer = series.get(currencyCode);
+			if (buffer == null)
+				buffer = map(currencyCode);
+			final int count = count(buffer);
+
+			// also keeps records in order if the clock went backwards
+			if (count > 0 && minutes - buffer.getInt(offset(count - 1)) < RESOLUTION_MINUTES)
+				continue;
+
+			try
+			{
+				append(currencyCode, minutes, rate.rate.longValue());
+				appended.add(currencyCode);
+			}
+			catch (final IOException x)
+			{
+				log.info("problem recording exchange rate of " + currencyCode, x);
+			}
+		}
+
+		if (appended.isEmpty())
+			return;
+
+		// map series that are in use again, so the new records show up; lookups keep using the old mappings meanwhile
+		synchronized (seriesLock)
+		{
+			final Map<String, ByteBuffer> newSeries = new HashMap<String, ByteBuffer>(this.series);
+			for (final String currencyCode : appended)
+				if (newSeries.containsKey(currencyCode))
+					newSeries.put(currencyCode, map(currencyCode));
+			this.series = newSeries;
+		}
+
+		log.info("recorded " + appended.size() + " exchange rates to history");
+	}
+
+	/**
+	 * Maps the history of the given currency, unless already done, so that lookups don't have to. Does disk I/O, so
+	 * don't call on the UI thread.
+	 */
+	public void load(final String currencyCode)
+	{
+		if (PATTERN_CURRENCY_CODE.matcher(currencyCode).matches())
+			series(currencyCode);
+	}
+
+	/**
+	 * Looks up the recorded rate closest to the given time.
+	 *
+	 * @return rate in fiat units per bitcoin, with as many decimals as bitcoins have, or 0 if no rate has been
+	 *         recorded within a day of that time
+	 */
+	public long getRate(final String currencyCode, final long time)
+	{
+		if (!PATTERN_CURRENCY_CODE.matcher(currencyCode).matches())
+			return 0;
+
+		final ByteBuffer buffer = series(currencyCode);
+		final int count = count(buffer);
+		final int minutes = (int) (time / DateUtils.MINUTE_IN_MILLIS);
+
+		// first record later than time
+		int low = 0;
+		int high = count;
+		while (low < high)
+		{
+			final int mid = (low + high) >>> 1;
+			if (buffer.getInt(offset(mid)) <= minutes)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		int closest = -1;
+		int closestDistance = MAX_DISTANCE_MINUTES + 1;
+		if (low > 0)
+		{
+			closest = low - 1;
+			closestDistance = minutes - buffer.getInt(offset(low - 1));
+		}
+		if (low < count && buffer.getInt(offset(low)) - minutes < closestDistance)
+		{
+			closest = low;
+			closestDistance = buffer.getInt(offset(low)) - minutes;
+		}
+
+		if (closest == -1 || closestDistance > MAX_DISTANCE_MINUTES)
+			return 0;
+
+		return buffer.getLong(offset(closest) + 4);
+	}
+
+	private ByteBuffer series(final String currencyCode)
+	{
+		final ByteBuffer buffer = series.get(currencyCode);
+		if (buffer != null)
+			return buffer;
+
+		synchronized (seriesLock)
+		{
+			// may have been mapped while waiting for the lock
+			ByteBuffer newBuffer = series.get(currencyCode);
+			if (newBuffer == null)
+			{
+				newBuffer = map(currencyCode);
+				final Map<String, ByteBuffer> newSeries = new HashMap<String, ByteBuffer>(series);
+				newSeries.put(currencyCode, newBuffer);
+				series = newSeries;
+			}
+			return newBuffer;
+		}
+	}
+
+	private ByteBuffer map(final String currencyCode)
+	{
+		ByteBuffer buffer = EMPTY;
+		final File file = new File(dir, currencyCode);
+		if (file.exists())
+		{
+			RandomAccessFile raf = null;
+			try
+			{
+				raf = new RandomAccessFile(file, "r");
+				final long length = raf.length();
+				if (length >= HEADER_SIZE && raf.readInt() == FILE_VERSION)
+				{
+					// leaves out a partially written last record
+					final long mapLength = HEADER_SIZE + (length - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+					buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mapLength);
+				}
+			}
+			catch (final IOException x)
+			{
+				log.info("problem reading exchange rate history of " + currencyCode, x);
+			}
+			finally
+			{
+				if (raf != null)
+				{
+					try
+					{
+						raf.close();
+					}
+					catch (final IOException x)
+					{
+						// swallow
+					}
+				}
+			}
+		}
+
+		return buffer;
+	}
+
+	private void append(final String currencyCode, final int minutes, final long rate) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile(new File(dir, currencyCode), "rw");
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + RECORD_SIZE);
+
+			long length = raf.length();
+			if (length < HEADER_SIZE || raf.readInt() != FILE_VERSION)
+			{
+				channel.truncate(0);
+				record.putInt(FILE_VERSION);
+				length = 0;
+			}
+			else
+			{
+				// overwrites a partially written last record
+				length = HEADER_SIZE + (length - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+			}
+
+			record.putInt(minutes);
+			record.putLong(rate);
+			record.flip();
+			channel.write(record, length);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	private static int count(final ByteBuffer buffer)
+	{
+		return (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE;
+	}
+
+	private static int offset(final int index)
+	{
+		return HEADER_SIZE + index * RECORD_SIZE;
+	}
+}
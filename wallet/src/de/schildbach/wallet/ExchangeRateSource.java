@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+
+/**
+ * A web service that publishes exchange rates. Subclasses only parse the response; fetching is done here.
+ *
+ * Requests are conditional: if the service says the rates didn't change since the last response, the rates parsed
+ * from it are returned again without downloading or parsing anything.
+ */
+public abstract class ExchangeRateSource
+{
+	public final URL url;
+
+	// all guarded by this
+	private String etag = null;
+	private String lastModified = null;
+	private Map<String, ExchangeRate> lastRates = null;
+
+	protected ExchangeRateSource(final URL url)
+	{
+		this.url = url;
+	}
+
+	public String getName()
+	{
+		return url.getHost();
+	}
+
+	/**
+	 * Fetches the current rates, keyed by currency code.
+	 *
+	 * @throws IOException
+	 *             if the source could not be reached, didn't answer in time or answered with something unusable
+	 */
+	public Map<String, ExchangeRate> fetch(final int timeoutMs) throws IOException
+	{
+		final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(timeoutMs);
+		connection.setReadTimeout(timeoutMs);
+
+		final Map<String, ExchangeRate> cachedRates;
+		synchronized (this)
+		{
+			cachedRates = lastRates;
+			if (cachedRates != null)
+			{
+				if (etag != null)
+					connection.setRequestProperty("If-None-Match", etag);
+				if (lastModified != null)
+					connection.setRequestProperty("If-Modified-Since", lastModified);
+			}
+		}
+
+		connection.connect();
+
+		try
+		{
+			final int responseCode = connection.getResponseCode();
+			if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cachedRates != null)
+				return cachedRates;
+			if (responseCode != HttpURLConnection.HTTP_OK)
+				throw new IOException("HTTP status " + responseCode + " from " + url);
+
+			final Map<String, ExchangeRate> rates;
+			final Reader reader = new InputStreamReader(new BufferedInputStream(connection.getInputStream(), 1024), Constants.UTF_8);
+			try
+			{
+				rates = Collections.unmodifiableMap(parse(reader));
+			}
+			finally
+			{
+				reader.close();
+			}
+
+			synchronized (this)
+			{
+				etag = connection.getHeaderField("ETag");
+				lastModified = connection.getHeaderField("Last-Modified");
+				lastRates = rates;
+			}
+
+			return rates;
+		}
+		finally
+		{
+			connection.disconnect();
+		}
+	}
+
+	protected abstract Map<String, ExchangeRate> parse(Reader reader) throws IOException;
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + '[' + getName() + ']';
+	}
+}
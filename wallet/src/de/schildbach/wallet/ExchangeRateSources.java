@@ -0,0 +1,332 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+import de.schildbach.wallet.util.JsonTokenizer;
+
+/**
+ * The registry of exchange rate sources. All sources are asked at the same time, and the first one to answer with
+ * usable rates wins. So a slow or broken source costs nothing as long as another one is up.
+ *
+ * Latency and error rate of each source are recorded, for diagnostics.
+ */
+public class ExchangeRateSources
+{
+	public static final class Stats
+	{
+		public final String name;
+		private int requests = 0;
+		private int failures = 0;
+		private long totalLatencyMs = 0;
+
+		private Stats(final String name)
+		{
+			this.name = name;
+		}
+
+		public synchronized int getRequests()
+		{
+			return requests;
+		}
+
+		public synchronized float getErrorRate()
+		{
+			return requests > 0 ? (float) failures / requests : 0;
+		}
+
+		/** of successful requests only */
+		public synchronized long getAverageLatencyMs()
+		{
+			final int successes = requests - failures;
+			return successes > 0 ? totalLatencyMs / successes : 0;
+		}
+
+		private synchronized void record(final boolean success, final long latencyMs)
+		{
+			requests++;
+			if (success)
+				totalLatencyMs += latencyMs;
+			else
+				failures++;
+		}
+
+		@Override
+		public synchronized String toString()
+		{
+			return name + ": " + requests + " requests, " + failures + " failed, avg " + getAverageLatencyMs() + "ms";
+		}
+	}
+
+	private final Map<ExchangeRateSource, Stats> sources = new LinkedHashMap<ExchangeRateSource, Stats>();
+	private final int timeoutMs;
+	private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, "exchangeRateSource");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private static final Logger log = LoggerFactory.getLogger(ExchangeRateSources.class);
+
+	public ExchangeRateSources(final List<ExchangeRateSource> sources, final int timeoutMs)
+	{
+		for (final ExchangeRateSource source : sources)
+			this.sources.put(source, new Stats(source.getName()));
+		this.timeoutMs = timeoutMs;
+	}
+
+	public static ExchangeRateSources createDefault()
+	{
+		try
+		{
+			return new ExchangeRateSources(Arrays.<ExchangeRateSource> asList(new BitcoinChartsSource(new URL(
+					"http://api.bitcoincharts.com/v1/weighted_prices.json")), new BlockchainInfoSource(new URL("https://blockchain.info/ticker"))),
+					Constants.HTTP_TIMEOUT_MS);
+		}
+		catch (final MalformedURLException x)
+		{
+			throw new RuntimeException(x); // cannot happen
+		}
+	}
+
+	// https://bitmarket.eu/api/ticker
+
+	/**
+	 * Asks all sources and returns the rates of the first one that answers with at least one rate. Sources that are
+	 * still busy are left to finish in the background, so their statistics are complete.
+	 *
+	 * @return rates keyed by currency code, or null if no source answered in time
+	 */
+	public @Nullable Map<String, ExchangeRate> fetch()
+	{
+		final long start = System.currentTimeMillis();
+		final CompletionService<Map<String, ExchangeRate>> completionService = new ExecutorCompletionService<Map<String, ExchangeRate>>(executor);
+
+		for (final Map.Entry<ExchangeRateSource, Stats> entry : sources.entrySet())
+		{
+			final ExchangeRateSource source = entry.getKey();
+			final Stats stats = entry.getValue();
+
+			completionService.submit(new Callable<Map<String, ExchangeRate>>()
+			{
+				@Override
+				public Map<String, ExchangeRate> call() throws IOException
+				{
+					final long requestStart = System.currentTimeMillis();
+					boolean success = false;
+					try
+					{
+						final Map<String, ExchangeRate> rates = source.fetch(timeoutMs);
+						if (rates.isEmpty())
+							throw new IOException("no rates from " + source.getName());
+						success = true;
+						return rates;
+					}
+					finally
+					{
+						stats.record(success, System.currentTimeMillis() - requestStart);
+					}
+				}
+			});
+		}
+
+		final long deadline = start + timeoutMs * 2; // connect and read timeout
+		for (int i = 0; i < sources.size(); i++)
+		{
+			try
+			{
+				final long remaining = deadline - System.currentTimeMillis();
+				final Future<Map<String, ExchangeRate>> future = completionService.poll(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+				if (future == null)
+					break; // timed out
+
+				final Map<String, ExchangeRate> rates = future.get();
+				log.info("fetched " + rates.size() + " exchange rates, took " + (System.currentTimeMillis() - start) + "ms");
+				return rates;
+			}
+			catch (final ExecutionException x)
+			{
+				log.info("problem fetching exchange rates: " + x.getCause());
+			}
+			catch (final InterruptedException x)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		log.info("could not fetch exchange rates from any source, " + getStats());
+		return null;
+	}
+
+	public List<Stats> getStats()
+	{
+		return new ArrayList<Stats>(sources.values());
+	}
+
+	/**
+	 * Parses {"USD":{"24h":"123.45","7d":"120.00","30d":"110.00"},...,"timestamp":1234567890}, preferring the 24h
+	 * average over the 7d and the 30d one.
+	 */
+	static final class BitcoinChartsSource extends ExchangeRateSource
+	{
+		public BitcoinChartsSource(final URL url)
+		{
+			super(url);
+		}
+
+		@Override
+		protected Map<String, ExchangeRate> parse(final Reader reader) throws IOException
+		{
+			final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+			final JsonTokenizer json = new JsonTokenizer(reader);
+
+			json.beginObject();
+			while (json.hasNext())
+			{
+				final String currencyCode = json.nextName();
+				if (json.peek() != JsonTokenizer.Token.BEGIN_OBJECT)
+				{
+					json.skipValue(); // timestamp
+					continue;
+				}
+
+				long rate24h = 0, rate7d = 0, rate30d = 0;
+				json.beginObject();
+				while (json.hasNext())
+				{
+					final String name = json.nextName();
+					if ("24h".equals(name))
+						rate24h = nextRate(json);
+					else if ("7d".equals(name))
+						rate7d = nextRate(json);
+					else if ("30d".equals(name))
+						rate30d = nextRate(json);
+					else
+						json.skipValue();
+				}
+				json.endObject();
+
+				final long rate = rate24h > 0 ? rate24h : rate7d > 0 ? rate7d : rate30d;
+				if (rate > 0)
+					rates.put(currencyCode, new ExchangeRate(currencyCode, BigInteger.valueOf(rate), getName()));
+			}
+			json.endObject();
+
+			return rates;
+		}
+	}
+
+	/**
+	 * Parses {"USD":{"15m":123.45,"last":123.45,"buy":123.40,"sell":123.50,"symbol":"$"},...}.
+	 */
+	static final class BlockchainInfoSource extends ExchangeRateSource
+	{
+		public BlockchainInfoSource(final URL url)
+		{
+			super(url);
+		}
+
+		@Override
+		protected Map<String, ExchangeRate> parse(final Reader reader) throws IOException
+		{
+			final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+			final JsonTokenizer json = new JsonTokenizer(reader);
+
+			json.beginObject();
+			while (json.hasNext())
+			{
+				final String currencyCode = json.nextName();
+				if (json.peek() != JsonTokenizer.Token.BEGIN_OBJECT)
+				{
+					json.skipValue();
+					continue;
+				}
+
+				long rate = 0;
+				json.beginObject();
+				while (json.hasNext())
+				{
+					if ("15m".equals(json.nextName()))
+						rate = nextRate(json);
+					else
+						json.skipValue();
+				}
+				json.endObject();
+
+				if (rate > 0)
+					rates.put(currencyCode, new ExchangeRate(currencyCode, BigInteger.valueOf(rate), getName()));
+			}
+			json.endObject();
+
+			return rates;
+		}
+	}
+
+	// rates are in fiat units per bitcoin, with as many decimals as bitcoins have
+	private static long nextRate(final JsonTokenizer json) throws IOException
+	{
+		final JsonTokenizer.Token token = json.peek();
+		if (token != JsonTokenizer.Token.NUMBER && token != JsonTokenizer.Token.STRING)
+		{
+			json.skipValue();
+			return 0;
+		}
+
+		try
+		{
+			return json.nextFixedPoint(Constants.BTC_MAX_PRECISION);
+		}
+		catch (final NumberFormatException x)
+		{
+			log.debug("skipping unusable rate: " + x.getMessage());
+			return 0;
+		}
+	}
+}
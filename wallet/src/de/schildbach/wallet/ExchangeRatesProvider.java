@@ -18,20 +18,22 @@
 package de.schildbach.wallet;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.math.BigInteger;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Currency;
-import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,10 +45,7 @@ import android.net.Uri;
 import android.provider.BaseColumns;
 import android.text.format.DateUtils;
 
-import com.google.bitcoin.core.Utils;
-
 import de.schildbach.wallet.util.GenericUtils;
-import de.schildbach.wallet.util.Io;
 
 /**
  * @author Andreas Schildbach
@@ -77,16 +76,39 @@ public class ExchangeRatesProvider extends ContentProvider
 	private static final String KEY_RATE = "rate";
 	private static final String KEY_SOURCE = "source";
 
+	private final ExchangeRateSources sources = ExchangeRateSources.createDefault();
+	private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(final Runnable runnable)
+		{
+			final Thread thread = new Thread(runnable, "exchangeRatesRefresh");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private File cacheFile;
+
+	// all guarded by this
+	private boolean loaded = false;
 	private Map<String, ExchangeRate> exchangeRates = null;
 	private long lastUpdated = 0;
+	private long lastRefreshAttempt = 0;
+	private boolean refreshing = false;
 
 	private static final long UPDATE_FREQ_MS = 10 * DateUtils.MINUTE_IN_MILLIS;
+	private static final long RETRY_FREQ_MS = DateUtils.MINUTE_IN_MILLIS;
+	private static final int CACHE_FILE_VERSION = 1;
 
 	private static final Logger log = LoggerFactory.getLogger(ExchangeRatesProvider.class);
 
 	@Override
 	public boolean onCreate()
 	{
+		cacheFile = new File(getContext().getCacheDir(), Constants.EXCHANGE_RATES_FILENAME);
+
+		refreshExecutor.execute(loadRunnable);
+
 		return true;
 	}
 
@@ -95,28 +117,35 @@ public class ExchangeRatesProvider extends ContentProvider
 		return Uri.parse("content://" + packageName + '.' + "exchange_rates");
 	}
 
+	/**
+	 * Answers from the rates at hand, however old, and never waits for the network. If they are due for an update, it
+	 * is fetched in the background and observers of the content URI are notified once it arrives. Until the cached
+	 * rates have been loaded or the first rates ever have arrived, cursors are empty.
+	 */
 	@Override
 	public Cursor query(final Uri uri, final String[] projection, final String selection, final String[] selectionArgs, final String sortOrder)
 	{
-		final long now = System.currentTimeMillis();
+		final Map<String, ExchangeRate> exchangeRates;
 
-		if (exchangeRates == null || now - lastUpdated > UPDATE_FREQ_MS)
+		synchronized (this)
 		{
-			Map<String, ExchangeRate> newExchangeRates = getBitcoinCharts();
-			if (exchangeRates == null && newExchangeRates == null)
-				newExchangeRates = getBlockchainInfo();
-
-			if (newExchangeRates != null)
+			// observers are notified once the cache is loaded, then it's known whether a refresh is due
+			final long now = System.currentTimeMillis();
+			if (loaded && !refreshing && (this.exchangeRates == null || now - lastUpdated > UPDATE_FREQ_MS) && now - lastRefreshAttempt > RETRY_FREQ_MS)
 			{
-				exchangeRates = newExchangeRates;
-				lastUpdated = now;
+				refreshing = true;
+				lastRefreshAttempt = now;
+				refreshExecutor.execute(refreshRunnable);
 			}
-		}
 
-		if (exchangeRates == null)
-			return null;
+			exchangeRates = this.exchangeRates;
+		}
 
 		final MatrixCursor cursor = new MatrixCursor(new String[] { BaseColumns._ID, KEY_CURRENCY_CODE, KEY_RATE, KEY_SOURCE });
+		cursor.setNotificationUri(getContext().getContentResolver(), uri);
+
+		if (exchangeRates == null)
+			return cursor;
 
 		if (selection == null)
 		{
@@ -141,7 +170,7 @@ public class ExchangeRatesProvider extends ContentProvider
 					rate = exchangeRates.get(Constants.DEFAULT_EXCHANGE_CURRENCY);
 
 					if (rate == null)
-						return null;
+						return cursor;
 				}
 			}
 
@@ -151,163 +180,191 @@ public class ExchangeRatesProvider extends ContentProvider
 		return cursor;
 	}
 
-	private String defaultCurrencyCode()
+	private final Runnable loadRunnable = new Runnable()
 	{
-		try
-		{
-			return Currency.getInstance(Locale.getDefault()).getCurrencyCode();
-		}
-		catch (final IllegalArgumentException x)
+		@Override
+		public void run()
 		{
-			return null;
+			load();
+
+			synchronized (ExchangeRatesProvider.this)
+			{
+				loaded = true;
+			}
+
+			getContext().getContentResolver().notifyChange(contentUri(getContext().getPackageName()), null);
 		}
-	}
+	};
 
-	public static ExchangeRate getExchangeRate(final Cursor cursor)
+	private final Runnable refreshRunnable = new Runnable()
 	{
-		final String currencyCode = cursor.getString(cursor.getColumnIndexOrThrow(ExchangeRatesProvider.KEY_CURRENCY_CODE));
-		final BigInteger rate = BigInteger.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ExchangeRatesProvider.KEY_RATE)));
-		final String source = cursor.getString(cursor.getColumnIndexOrThrow(ExchangeRatesProvider.KEY_SOURCE));
+		@Override
+		public void run()
+		{
+			try
+			{
+				final Map<String, ExchangeRate> newExchangeRates = sources.fetch();
 
-		return new ExchangeRate(currencyCode, rate, source);
-	}
+				if (newExchangeRates != null)
+					((WalletApplication) getContext().getApplicationContext()).getExchangeRateHistory().record(newExchangeRates,
+							System.currentTimeMillis());
 
-	@Override
-	public Uri insert(final Uri uri, final ContentValues values)
-	{
-		throw new UnsupportedOperationException();
-	}
+				synchronized (ExchangeRatesProvider.this)
+				{
+					if (newExchangeRates == null)
+						return;
 
-	@Override
-	public int update(final Uri uri, final ContentValues values, final String selection, final String[] selectionArgs)
-	{
-		throw new UnsupportedOperationException();
-	}
+					final boolean changed = newExchangeRates != exchangeRates; // sources answer "not modified" with the same map
+					exchangeRates = newExchangeRates;
+					lastUpdated = System.currentTimeMillis();
 
-	@Override
-	public int delete(final Uri uri, final String selection, final String[] selectionArgs)
-	{
-		throw new UnsupportedOperationException();
-	}
+					save();
 
-	@Override
-	public String getType(final Uri uri)
-	{
-		throw new UnsupportedOperationException();
-	}
+					if (!changed)
+						return;
+				}
 
-	private static Map<String, ExchangeRate> getBitcoinCharts()
+				getContext().getContentResolver().notifyChange(contentUri(getContext().getPackageName()), null);
+			}
+			finally
+			{
+				// a failed refresh mustn't keep later queries from starting another one
+				synchronized (ExchangeRatesProvider.this)
+				{
+					refreshing = false;
+				}
+			}
+		}
+	};
+
+	// reads the cache file without holding the lock, so queries meanwhile aren't held up
+	private void load()
 	{
+		if (!cacheFile.exists())
+			return;
+
+		DataInputStream is = null;
 		try
 		{
-			final URL URL = new URL("http://api.bitcoincharts.com/v1/weighted_prices.json");
-			final HttpURLConnection connection = (HttpURLConnection) URL.openConnection();
-			connection.setConnectTimeout(Constants.HTTP_TIMEOUT_MS);
-			connection.setReadTimeout(Constants.HTTP_TIMEOUT_MS);
-			connection.connect();
+			is = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
 
-			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
-				return null;
+			if (is.readInt() != CACHE_FILE_VERSION)
+				return;
 
-			Reader reader = null;
-			try
+			final long updated = is.readLong();
+			final int count = is.readInt();
+			final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+			for (int i = 0; i < count; i++)
 			{
-				reader = new InputStreamReader(new BufferedInputStream(connection.getInputStream(), 1024), Constants.UTF_8);
-				final StringBuilder content = new StringBuilder();
-				Io.copy(reader, content);
-
-				final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
-
-				final JSONObject head = new JSONObject(content.toString());
-				for (final Iterator<String> i = head.keys(); i.hasNext();)
-				{
-					final String currencyCode = i.next();
-					if (!"timestamp".equals(currencyCode))
-					{
-						final JSONObject o = head.getJSONObject(currencyCode);
-						String rate = o.optString("24h", null);
-						if (rate == null)
-							rate = o.optString("7d", null);
-						if (rate == null)
-							rate = o.optString("30d", null);
-
-						if (rate != null)
-							rates.put(currencyCode, new ExchangeRate(currencyCode, Utils.toNanoCoins(rate), URL.getHost()));
-					}
-				}
-
-				return rates;
+				final String currencyCode = is.readUTF();
+				final long rate = is.readLong();
+				final String source = is.readUTF();
+				rates.put(currencyCode, new ExchangeRate(currencyCode, BigInteger.valueOf(rate), source));
 			}
-			finally
+
+			synchronized (this)
 			{
-				if (reader != null)
-					reader.close();
+				exchangeRates = rates;
+				lastUpdated = updated;
 			}
+
+			log.info("loaded " + count + " exchange rates, " + (System.currentTimeMillis() - updated) / DateUtils.MINUTE_IN_MILLIS
+					+ " minutes old");
 		}
 		catch (final IOException x)
 		{
-			log.debug("problem reading exchange rates", x);
+			log.info("problem loading exchange rates", x);
 		}
-		catch (final JSONException x)
+		finally
 		{
-			log.debug("problem reading exchange rates", x);
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
 		}
-
-		return null;
 	}
 
-	private static Map<String, ExchangeRate> getBlockchainInfo()
+	private void save()
 	{
+		final File tmpFile = new File(cacheFile.getPath() + ".tmp");
 		try
 		{
-			final URL URL = new URL("https://blockchain.info/ticker");
-			final HttpURLConnection connection = (HttpURLConnection) URL.openConnection();
-			connection.setConnectTimeout(Constants.HTTP_TIMEOUT_MS);
-			connection.setReadTimeout(Constants.HTTP_TIMEOUT_MS);
-			connection.connect();
-
-			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
-				return null;
-
-			Reader reader = null;
+			final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
 			try
 			{
-				reader = new InputStreamReader(new BufferedInputStream(connection.getInputStream(), 1024), Constants.UTF_8);
-				final StringBuilder content = new StringBuilder();
-				Io.copy(reader, content);
-
-				final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
-
-				final JSONObject head = new JSONObject(content.toString());
-				for (final Iterator<String> i = head.keys(); i.hasNext();)
+				os.writeInt(CACHE_FILE_VERSION);
+				os.writeLong(lastUpdated);
+				os.writeInt(exchangeRates.size());
+				for (final ExchangeRate rate : exchangeRates.values())
 				{
-					final String currencyCode = i.next();
-					final JSONObject o = head.getJSONObject(currencyCode);
-					final String rate = o.optString("15m", null);
-
-					if (rate != null)
-						rates.put(currencyCode, new ExchangeRate(currencyCode, Utils.toNanoCoins(rate), URL.getHost()));
+					os.writeUTF(rate.currencyCode);
+					os.writeLong(rate.rate.longValue());
+					os.writeUTF(rate.source);
 				}
-
-				return rates;
 			}
 			finally
 			{
-				if (reader != null)
-					reader.close();
+				os.close();
 			}
+
+			if (!tmpFile.renameTo(cacheFile))
+				throw new IOException("could not replace " + cacheFile);
 		}
 		catch (final IOException x)
 		{
-			log.debug("problem reading exchange rates", x);
+			log.info("problem saving exchange rates", x);
+		}
+	}
+
+	private String defaultCurrencyCode()
+	{
+		try
+		{
+			return Currency.getInstance(Locale.getDefault()).getCurrencyCode();
 		}
-		catch (final JSONException x)
+		catch (final IllegalArgumentException x)
 		{
-			log.debug("problem reading exchange rates", x);
+			return null;
 		}
+	}
+
+	public static ExchangeRate getExchangeRate(final Cursor cursor)
+	{
+		final String currencyCode = cursor.getString(cursor.getColumnIndexOrThrow(ExchangeRatesProvider.KEY_CURRENCY_CODE));
+		final BigInteger rate = BigInteger.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ExchangeRatesProvider.KEY_RATE)));
+		final String source = cursor.getString(cursor.getColumnIndexOrThrow(ExchangeRatesProvider.KEY_SOURCE));
 
-		return null;
+		return new ExchangeRate(currencyCode, rate, source);
+	}
+
+	@Override
+	public Uri insert(final Uri uri, final ContentValues values)
+	{
+		throw new UnsupportedOperationException();
 	}
 
-	// https://bitmarket.eu/api/ticker
+	@Override
+	public int update(final Uri uri, final ContentValues values, final String selection, final String[] selectionArgs)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int delete(final Uri uri, final String selection, final String[] selectionArgs)
+	{
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public String getType(final Uri uri)
+	{
+		throw new UnsupportedOperationException();
+	}
 }
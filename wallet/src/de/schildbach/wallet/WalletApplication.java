@@ -31,6 +31,7 @@ import java.io.Writer;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import com.google.bitcoin.protocols.channels.StoredPaymentChannelClientStates;
@@ -66,11 +67,19 @@ import com.google.bitcoin.wallet.WalletFiles;
 
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
+import de.schildbach.wallet.service.ChannelService;
+import de.schildbach.wallet.util.AppAllowanceLedger;
+import de.schildbach.wallet.util.BalanceTracker;
+import de.schildbach.wallet.util.BlockTransactionsIndex;
 import de.schildbach.wallet.util.ChainServiceTransactionBroadcaster;
 import de.schildbach.wallet.util.CrashReporter;
 import de.schildbach.wallet.util.Io;
 import de.schildbach.wallet.util.LinuxSecureRandom;
 import de.schildbach.wallet.util.PaymentChannelContractToCreatorMap;
+import de.schildbach.wallet.util.ReverseDnsResolver;
+import de.schildbach.wallet.util.TransactionValueCache;
+import de.schildbach.wallet.util.TransactionsIndex;
+import de.schildbach.wallet.util.WalletSnapshotPublisher;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 
@@ -83,6 +92,16 @@ public class WalletApplication extends Application
 	private ActivityManager activityManager;
 
 	private PaymentChannelContractToCreatorMap contractHashToCreatorMap;
+	private AppAllowanceLedger appAllowanceLedger;
+	private ChainServiceTransactionBroadcaster channelBroadcaster;
+	private TransactionValueCache transactionValueCache;
+	private BalanceTracker balanceTracker;
+	private WalletBalanceWidgetRenderer walletBalanceWidgetRenderer;
+	private WalletSnapshotPublisher walletSnapshotPublisher;
+	private TransactionsIndex transactionsIndex;
+	private BlockTransactionsIndex blockTransactionsIndex;
+	private ReverseDnsResolver reverseDnsResolver;
+	private ExchangeRateHistory exchangeRateHistory;
 	private Intent blockchainServiceIntent;
 	private Intent blockchainServiceCancelCoinsReceivedIntent;
 	private Intent blockchainServiceResetBlockchainIntent;
@@ -141,6 +160,8 @@ public class WalletApplication extends Application
 
 		walletFile = getFileStreamPath(Constants.WALLET_FILENAME_PROTOBUF);
 
+		channelBroadcaster = new ChainServiceTransactionBroadcaster(this, getFileStreamPath(Constants.CHANNEL_BROADCASTS_FILENAME));
+
 		migrateWalletToProtobuf();
 
 		loadWalletFromProtobuf();
@@ -157,6 +178,20 @@ public class WalletApplication extends Application
 		}
 
 		ensureKey();
+
+		initTransactionsIndex();
+
+		walletSnapshotPublisher = new WalletSnapshotPublisher(this);
+
+		walletBalanceWidgetRenderer = new WalletBalanceWidgetRenderer(this);
+
+		reverseDnsResolver = new ReverseDnsResolver(new File(getCacheDir(), Constants.REVERSE_DNS_CACHE_FILENAME));
+
+		exchangeRateHistory = new ExchangeRateHistory(getDir("exchange-rate-history", Context.MODE_PRIVATE));
+
+		loadAppAllowanceLedger();
+
+		channelBroadcaster.broadcastPending();
 	}
 
 	private void initLogging()
@@ -236,6 +271,115 @@ public class WalletApplication extends Application
 		return contractHashToCreatorMap;
 	}
 
+	public TransactionValueCache getTransactionValueCache()
+	{
+		return transactionValueCache;
+	}
+
+	public BalanceTracker getBalanceTracker()
+	{
+		return balanceTracker;
+	}
+
+	public WalletBalanceWidgetRenderer getWalletBalanceWidgetRenderer()
+	{
+		return walletBalanceWidgetRenderer;
+	}
+
+	public WalletSnapshotPublisher getWalletSnapshotPublisher()
+	{
+		return walletSnapshotPublisher;
+	}
+
+	public ReverseDnsResolver getReverseDnsResolver()
+	{
+		return reverseDnsResolver;
+	}
+
+	public ExchangeRateHistory getExchangeRateHistory()
+	{
+		return exchangeRateHistory;
+	}
+
+	public TransactionsIndex getTransactionsIndex()
+	{
+		return transactionsIndex;
+	}
+
+	public BlockTransactionsIndex getBlockTransactionsIndex()
+	{
+		return blockTransactionsIndex;
+	}
+
+	private void initTransactionsIndex()
+	{
+		// the cache needs to see wallet events before anyone reading from it
+		transactionValueCache = new TransactionValueCache(wallet);
+		wallet.addEventListener(transactionValueCache);
+
+		balanceTracker = new BalanceTracker(wallet, transactionValueCache);
+		wallet.addEventListener(balanceTracker);
+
+		transactionsIndex = new TransactionsIndex(wallet, contractHashToCreatorMap, transactionValueCache);
+		wallet.addEventListener(transactionsIndex);
+
+		blockTransactionsIndex = new BlockTransactionsIndex(wallet);
+		wallet.addEventListener(blockTransactionsIndex);
+
+		// a new contract changes which transactions are suppressed as channel refunds
+		contractHashToCreatorMap.addNewContractListener(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				transactionsIndex.invalidate();
+			}
+		});
+	}
+
+	public AppAllowanceLedger getAppAllowanceLedger()
+	{
+		return appAllowanceLedger;
+	}
+
+	private void loadAppAllowanceLedger()
+	{
+		try
+		{
+			appAllowanceLedger = new AppAllowanceLedger(getFileStreamPath(Constants.APP_ALLOWANCES_FILENAME),
+					Constants.APP_ALLOWANCES_SYNC_DELAY_MS);
+		}
+		catch (final IOException x)
+		{
+			throw new Error("cannot open app allowances", x);
+		}
+
+		// migrate allowances from shared preferences, where they used to be stored
+		final SharedPreferences oldAllowances = getSharedPreferences(ChannelService.PREFS_NAME, Context.MODE_PRIVATE);
+		final Map<String, ?> oldEntries = oldAllowances.getAll();
+		if (!oldEntries.isEmpty())
+		{
+			if (appAllowanceLedger.isEmpty())
+			{
+				for (final Map.Entry<String, ?> entry : oldEntries.entrySet())
+					appAllowanceLedger.add(entry.getKey(), (Long) entry.getValue());
+
+				try
+				{
+					appAllowanceLedger.sync();
+				}
+				catch (final IOException x)
+				{
+					throw new Error("cannot migrate app allowances", x);
+				}
+
+				log.info("migrated " + oldEntries.size() + " app allowances from shared preferences");
+			}
+
+			oldAllowances.edit().clear().commit();
+		}
+	}
+
 	private void migrateWalletToProtobuf()
 	{
 		final File oldWalletFile = getFileStreamPath(Constants.WALLET_FILENAME);
@@ -389,7 +533,7 @@ public class WalletApplication extends Application
 		contractHashToCreatorMap =
 				(PaymentChannelContractToCreatorMap) wallet.addOrGetExistingExtension(new PaymentChannelContractToCreatorMap(wallet));
 
-		wallet.addOrGetExistingExtension(new StoredPaymentChannelClientStates(wallet, new ChainServiceTransactionBroadcaster(this)));
+		wallet.addOrGetExistingExtension(new StoredPaymentChannelClientStates(wallet, channelBroadcaster));
 	}
 
 	public void addNewKeyToWallet()
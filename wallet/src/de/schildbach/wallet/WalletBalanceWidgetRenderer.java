@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.preference.PreferenceManager;
+
+/**
+ * Renders the balance widgets on a background thread. Requests are coalesced, and a widget is only pushed new
+ * RemoteViews if what it would display differs from what was last rendered into it.
+ */
+public class WalletBalanceWidgetRenderer
+{
+	private final WalletApplication application;
+	private final AppWidgetManager appWidgetManager;
+	private final ComponentName providerName;
+	private final SharedPreferences prefs;
+	private final Handler handler;
+
+	// only touched on the renderer thread
+	private final Map<Integer, String> lastRendered = new HashMap<Integer, String>();
+
+	public WalletBalanceWidgetRenderer(final WalletApplication application)
+	{
+		this.application = application;
+		this.appWidgetManager = AppWidgetManager.getInstance(application);
+		this.providerName = new ComponentName(application, WalletBalanceWidgetProvider.class);
+		this.prefs = PreferenceManager.getDefaultSharedPreferences(application);
+
+		final HandlerThread thread = new HandlerThread("widgetRenderer", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		handler = new Handler(thread.getLooper());
+	}
+
+	/**
+	 * Brings all widgets up to date, if they aren't already. May be called from any thread.
+	 */
+	public void update()
+	{
+		handler.removeCallbacks(renderRunnable);
+		handler.post(renderRunnable);
+	}
+
+	/**
+	 * Renders the given widgets even if they look up to date, because the widget host lost or never had their
+	 * content. May be called from any thread.
+	 */
+	public void forceUpdate(final int[] appWidgetIds)
+	{
+		handler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				for (final int appWidgetId : appWidgetIds)
+					lastRendered.remove(appWidgetId);
+			}
+		});
+
+		update();
+	}
+
+	private final Runnable renderRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			final int[] appWidgetIds = appWidgetManager.getAppWidgetIds(providerName);
+			if (appWidgetIds.length == 0)
+			{
+				lastRendered.clear();
+				return;
+			}
+
+			final BigInteger balance = application.getBalanceTracker().getEstimated();
+			final int precision = Integer.parseInt(prefs.getString(Constants.PREFS_KEY_BTC_PRECISION, Constants.PREFS_DEFAULT_BTC_PRECISION));
+			final String state = balance + "/" + precision;
+
+			final List<Integer> stale = new ArrayList<Integer>(appWidgetIds.length);
+			for (final int appWidgetId : appWidgetIds)
+				if (!state.equals(lastRendered.get(appWidgetId)))
+					stale.add(appWidgetId);
+
+			if (stale.isEmpty())
+				return;
+
+			final int[] staleIds = new int[stale.size()];
+			for (int i = 0; i < staleIds.length; i++)
+				staleIds[i] = stale.get(i);
+
+			WalletBalanceWidgetProvider.updateWidgets(application, appWidgetManager, staleIds, balance, precision);
+
+			lastRendered.clear();
+			for (final int appWidgetId : appWidgetIds)
+				lastRendered.put(appWidgetId, state);
+		}
+	};
+}
@@ -55,5 +55,22 @@ public interface BlockchainService
 
 	List<Peer> getConnectedPeers();
 
+	public interface PeerStateListener
+	{
+		/** will be called back on UI thread, only if anything shown about the peers changed */
+		void onPeerStatesChanged(List<PeerState> peerStates);
+	}
+
+	/**
+	 * Registers a listener for the states of the connected peers. It is called back with the current states first. Must
+	 * be called on UI thread.
+	 */
+	void addPeerStateListener(PeerStateListener listener);
+
+	/**
+	 * Must be called on UI thread.
+	 */
+	void removePeerStateListener(PeerStateListener listener);
+
 	List<StoredBlock> getRecentBlocks(int maxBlocks);
 }
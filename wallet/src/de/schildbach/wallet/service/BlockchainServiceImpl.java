@@ -25,6 +25,7 @@ import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -38,9 +39,7 @@ import org.slf4j.LoggerFactory;
 import android.annotation.SuppressLint;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
-import android.appwidget.AppWidgetManager;
 import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -78,7 +77,6 @@ import com.google.bitcoin.core.TransactionInput;
 import com.google.bitcoin.core.TransactionOutPoint;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.bitcoin.core.Wallet;
-import com.google.bitcoin.core.Wallet.BalanceType;
 import com.google.bitcoin.core.WalletEventListener;
 import com.google.bitcoin.discovery.DnsDiscovery;
 import com.google.bitcoin.discovery.PeerDiscovery;
@@ -91,13 +89,11 @@ import com.google.common.util.concurrent.ListenableFuture;
 
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
-import de.schildbach.wallet.WalletBalanceWidgetProvider;
 import de.schildbach.wallet.ui.WalletActivity;
 import de.schildbach.wallet.util.CrashReporter;
 import de.schildbach.wallet.util.GenericUtils;
 import de.schildbach.wallet.util.PaymentChannelContractToCreatorMap;
 import de.schildbach.wallet.util.ThrottelingWalletChangeListener;
-import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 
 /**
@@ -115,6 +111,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
 	private final Handler handler = new Handler();
 	private final Handler delayHandler = new Handler();
+	private final Handler peerStateHandler = new Handler();
 	private WakeLock wakeLock;
 	private WifiLock wifiLock;
 
@@ -131,6 +128,12 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 	private long serviceCreatedAt;
 	private boolean resetBlockchainOnShutdown = false;
 
+	// both only touched on UI thread
+	private final List<PeerStateListener> peerStateListeners = new ArrayList<PeerStateListener>();
+	private List<PeerState> lastPeerStates = Collections.emptyList();
+
+	private static final long PEER_STATE_SAMPLE_MS = DateUtils.SECOND_IN_MILLIS * 2;
+
 	private static final int MIN_COLLECT_HISTORY = 2;
 	private static final int IDLE_BLOCK_TIMEOUT_MIN = 2;
 	private static final int IDLE_TRANSACTION_TIMEOUT_MIN = 9;
@@ -159,14 +162,9 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 				@Override
 				public void run()
 				{
-					final BigInteger amount;
-					try {
-						amount = tx.getValue(wallet);
-					} catch (ScriptException e) {
-						throw new RuntimeException(e);
-					}
-					if (shouldNotifyForTransaction(tx, bestChainHeight, bestChainHeightEver, amount, application.getContractHashToCreatorMap()))
-						notifyCoinsReceived(WalletUtils.getFromAddress(tx), amount);
+					final TransactionValueCache.Info txInfo = application.getTransactionValueCache().get(tx);
+					if (shouldNotifyForTransaction(tx, bestChainHeight, bestChainHeightEver, txInfo.value, application.getContractHashToCreatorMap()))
+						notifyCoinsReceived(txInfo.address, txInfo.value);
 				}
 			});
 		}
@@ -362,6 +360,8 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
 					// send broadcast
 					sendBroadcastPeerState(numPeers);
+
+					publishPeerStates();
 				}
 			});
 		}
@@ -394,6 +394,8 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 				lastMessageTime.set(System.currentTimeMillis());
 
 				sendBroadcastBlockchainState(ACTION_BLOCKCHAIN_STATE_DOWNLOAD_OK);
+
+				publishPeerStates();
 			}
 		};
 	};
@@ -869,6 +871,66 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 			return null;
 	}
 
+	@Override
+	public void addPeerStateListener(final PeerStateListener listener)
+	{
+		peerStateListeners.add(listener);
+
+		final List<PeerState> peerStates = lastPeerStates;
+		peerStateHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (peerStateListeners.contains(listener))
+					listener.onPeerStatesChanged(peerStates);
+			}
+		});
+
+		// ping times change without an event, so they are sampled while anybody is listening
+		if (peerStateListeners.size() == 1)
+			peerStateHandler.post(peerStateSampler);
+	}
+
+	@Override
+	public void removePeerStateListener(final PeerStateListener listener)
+	{
+		peerStateListeners.remove(listener);
+
+		if (peerStateListeners.isEmpty())
+			peerStateHandler.removeCallbacks(peerStateSampler);
+	}
+
+	private final Runnable peerStateSampler = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			publishPeerStates();
+
+			if (!peerStateListeners.isEmpty())
+				peerStateHandler.postDelayed(this, PEER_STATE_SAMPLE_MS);
+		}
+	};
+
+	private void publishPeerStates()
+	{
+		final List<Peer> peers = peerGroup != null ? peerGroup.getConnectedPeers() : null;
+		final List<PeerState> peerStates = new ArrayList<PeerState>(peers != null ? peers.size() : 0);
+		if (peers != null)
+			for (final Peer peer : peers)
+				peerStates.add(new PeerState(peer));
+
+		if (peerStates.equals(lastPeerStates))
+			return;
+
+		lastPeerStates = Collections.unmodifiableList(peerStates);
+
+		// listeners may remove themselves
+		for (final PeerStateListener listener : new ArrayList<PeerStateListener>(peerStateListeners))
+			listener.onPeerStatesChanged(lastPeerStates);
+	}
+
 	@Override
 	public List<StoredBlock> getRecentBlocks(final int maxBlocks)
 	{
@@ -930,18 +992,7 @@ public class BlockchainServiceImpl extends android.app.Service implements Blockc
 
 	public void notifyWidgets()
 	{
-		final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(this);
-
-		final ComponentName providerName = new ComponentName(this, WalletBalanceWidgetProvider.class);
-		final int[] appWidgetIds = appWidgetManager.getAppWidgetIds(providerName);
-
-		if (appWidgetIds.length > 0)
-		{
-			final Wallet wallet = application.getWallet();
-			final BigInteger balance = wallet.getBalance(BalanceType.ESTIMATED);
-
-			WalletBalanceWidgetProvider.updateWidgets(this, appWidgetManager, appWidgetIds, balance);
-		}
+		application.getWalletBalanceWidgetRenderer().update();
 	}
 
 	private void maybeRotateKeys()
@@ -18,9 +18,7 @@
 package de.schildbach.wallet.service;
 
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Binder;
@@ -40,6 +38,7 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.TextFormat;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.ui.ChannelRequestActivity;
+import de.schildbach.wallet.util.AppAllowanceLedger;
 import de.schildbach.wallet.util.WalletUtils;
 import net.jcip.annotations.GuardedBy;
 import org.bitcoin.PaymentException;
@@ -75,6 +74,9 @@ public class ChannelService extends Service {
 
 		String hostId;
 
+		// The cookie of the app connection using this channel
+		String cookie;
+
 		public ChannelAndMetadata(IChannelCallback listener, String hostId) {
 			this.listener = listener;
 			this.hostId = hostId;
@@ -84,41 +86,30 @@ public class ChannelService extends Service {
 	// Maps unique IDs to LocalBinders which hold the app connection
 	@GuardedBy("lock") private Map<String, ChannelAndMetadata> cookieToChannelMap = new HashMap<String, ChannelAndMetadata>();
 
-	// This is also accessed from the app permissions activity. It's just a map of app id to long (amount of credit
-	// remaining).
+	// Allowances used to be stored in shared preferences of this name, a map of app id to long (amount of credit
+	// remaining). Only read when migrating to the AppAllowanceLedger.
 	public static final String PREFS_NAME = ChannelService.class.getName() + ".APP_TO_VALUE_REMAINING_PREFS";
 
-	// Maps app package name to its value remaining
-	@GuardedBy("lock") private SharedPreferences appToValueRemaining;
+	// Maps app package name to its value remaining. The ledger is thread safe by itself, but check-then-spend
+	// sequences in payServer() still need to happen under our lock.
+	private AppAllowanceLedger appToValueRemaining;
 	@GuardedBy("lock") @VisibleForTesting long incrementAndGet(String appId, long value) {
 		checkState(lock.isHeldByCurrentThread());
-		long initialValue = appToValueRemaining.getLong(appId, 0);
-		appToValueRemaining.edit().putLong(appId, initialValue + value).commit();
-		return initialValue + value;
+		return appToValueRemaining.add(appId, value);
 	}
 
 	public long getAppValueRemaining(String appId) {
-		lock.lock();
-		try {
-			return appToValueRemaining.getLong(appId, 0);
-		} finally {
-			lock.unlock();
-		}
+		return appToValueRemaining.get(appId);
 	}
 
 	@Override
 	public void onCreate() {
-		lock.lock();
-		try {
-			appToValueRemaining = getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-		} finally {
-			lock.unlock();
-		}
+		appToValueRemaining = ((WalletApplication) getApplication()).getAppAllowanceLedger();
 	}
 
 	// Opens a connection (possibly resuming it with the server) and sets up listeners for it.
 	@GuardedBy("lock")
-	private void buildClientConnection(final String cookie, final ChannelAndMetadata metadata, long maxValue) {
+	private void buildClientConnection(final ChannelAndMetadata metadata, long maxValue) {
 		checkState(lock.isHeldByCurrentThread());
 
 		final WalletApplication walletApplication = ((WalletApplication) getApplication());
@@ -130,10 +121,11 @@ public class ChannelService extends Service {
 			@Override
 			public void sendToServer(Protos.TwoWayChannelMessage msg) {
 				try {
-                    log.info("Requesting send of message " + msg.getType());
+					if (log.isDebugEnabled())
+						log.debug("Requesting send of message {}", msg.getType());
 					metadata.listener.sendProtobuf(msg.toByteArray());
 				} catch (RemoteException e) {
-					closeConnection(cookie, false);
+					closeConnection(metadata.cookie, false);
 				}
 			}
 
@@ -143,7 +135,7 @@ public class ChannelService extends Service {
 					log.info("Telling remote app to close connection: {}", reason);
 					metadata.listener.closeConnection(reason.ordinal());
 				} catch (RemoteException ignored) {}
-				closeConnection(cookie, false);
+				closeConnection(metadata.cookie, false);
 			}
 
 			@Override
@@ -158,14 +150,14 @@ public class ChannelService extends Service {
 					metadata.listener.channelOpen(
                             metadata.client.state().getMultisigContract().getHash().getBytes(), prePay);
 				} catch (RemoteException e) {
-					closeConnection(cookie, false);
+					closeConnection(metadata.cookie, false);
 				}
 			}
 		});
 		metadata.client.connectionOpen();
 	}
 
-	// Closes the given connection and removes it from the pool
+	// Closes the given connection and removes it from the map of active connections
 	@GuardedBy("lock")
 	private void closeConnection(String id, boolean andSettle) {
 		try {
@@ -249,26 +241,26 @@ public class ChannelService extends Service {
 			}
 			if (appName == null) appName = appId;
 
-			final ChannelAndMetadata channel = new ChannelAndMetadata(listener, hostId);
-			channel.appId = appId;
-			channel.appName = appName;
-
-			watchForDeath(listener, channel);
-
 			lock.lock();
 			try {
-				long valueRemaining = getAppValueRemaining(appId);
 				String cookie = UUID.randomUUID().toString();
+				ChannelAndMetadata channel = new ChannelAndMetadata(listener, hostId);
+				channel.appId = appId;
+				channel.appName = appName;
+				channel.cookie = cookie;
+				watchForDeath(listener, channel);
+
+				long valueRemaining = getAppValueRemaining(appId);
 				cookieToChannelMap.put(cookie, channel);
 				log.info("Opening new channel of {} satoshis for app {}", valueRemaining, appId);
-				buildClientConnection(cookie, channel, valueRemaining);
+				buildClientConnection(channel, valueRemaining);
 				return cookie;
 			} finally {
 				lock.unlock();
 			}
 		}
 
-		private void watchForDeath(IChannelCallback listener, final ChannelAndMetadata channel) {
+		private void watchForDeath(final IChannelCallback listener, final ChannelAndMetadata channel) {
 			// We need to find out if the connected app goes away so we can mark the channel as inactive.
 			// Arguably, the payment channels framework should not attempt to prevent concurrent use of
 			// channels by apps because mutual exclusion is better done at higher levels, but it does and
@@ -277,8 +269,16 @@ public class ChannelService extends Service {
 				listener.asBinder().linkToDeath(new DeathRecipient() {
 					@Override
 					public void binderDied() {
-						log.info("Connected app '{}' died, marking channel {} as inactive", channel.appName, channel.hostId);
-						channel.client.connectionClosed();
+						lock.lock();
+						try {
+							// The app may have disconnected cleanly before dying.
+							if (!cookieToChannelMap.containsKey(channel.cookie))
+								return;
+							log.info("Connected app '{}' died, marking channel {} as inactive", channel.appName, channel.hostId);
+							closeConnection(channel.cookie, false);
+						} finally {
+							lock.unlock();
+						}
 					}
 				}, 0);
 			} catch (RemoteException e) {
@@ -390,12 +390,14 @@ public class ChannelService extends Service {
 		public void messageReceived(String cookie, byte[] protobuf) {
 			if (cookie == null)
 				return;
+            // Parse outside the lock, and only do the (expensive) text formatting if someone is going to read it.
             Protos.TwoWayChannelMessage msg;
             try {
                 msg = Protos.TwoWayChannelMessage.parseFrom(protobuf);
-                log.info("App provided message from server: {}", msg.getType());
                 if (log.isDebugEnabled())
-                    log.info(TextFormat.printToString(msg));
+                    log.debug("App provided message from server: {}", msg.getType());
+                if (log.isTraceEnabled())
+                    log.trace(TextFormat.printToString(msg));
             } catch (InvalidProtocolBufferException e) {
                 log.error("Got an invalid protobuf from client", e);
                 return;
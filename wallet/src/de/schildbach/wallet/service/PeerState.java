@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.net.InetAddress;
+
+import javax.annotation.Nullable;
+
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.VersionMessage;
+
+/**
+ * What is shown of a connected peer, captured at one point in time. Two states are equal if nothing shown differs.
+ */
+public final class PeerState
+{
+	public final InetAddress address;
+	public final long bestHeight;
+	public final @Nullable String subVer;
+	public final int clientVersion;
+	public final long pingTime;
+	public final boolean downloading;
+
+	public PeerState(final Peer peer)
+	{
+		final VersionMessage versionMessage = peer.getPeerVersionMessage();
+
+		this.address = peer.getAddress().getAddr();
+		this.bestHeight = peer.getBestHeight();
+		this.subVer = versionMessage.subVer;
+		this.clientVersion = versionMessage.clientVersion;
+		this.pingTime = peer.getPingTime();
+		this.downloading = peer.getDownloadData();
+	}
+
+	@Override
+	public boolean equals(final Object o)
+	{
+		if (o == this)
+			return true;
+		if (!(o instanceof PeerState))
+			return false;
+
+		final PeerState other = (PeerState) o;
+		return address.equals(other.address) && bestHeight == other.bestHeight
+				&& (subVer != null ? subVer.equals(other.subVer) : other.subVer == null) && clientVersion == other.clientVersion
+				&& pingTime == other.pingTime && downloading == other.downloading;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return address.hashCode() * 31 + (int) bestHeight;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[" + address.getHostAddress() + ",height=" + bestHeight + ",ping=" + pingTime + "]";
+	}
+}
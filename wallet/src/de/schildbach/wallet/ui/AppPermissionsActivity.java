@@ -18,7 +18,6 @@
 package de.schildbach.wallet.ui;
 
 import android.app.ListActivity;
-import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
@@ -30,7 +29,8 @@ import android.widget.SimpleAdapter;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
-import de.schildbach.wallet.service.ChannelService;
+import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.util.AppAllowanceLedger;
 import de.schildbach.wallet_test.R;
 
 import java.util.List;
@@ -41,13 +41,13 @@ import java.util.Map;
  * It presents a list of apps, their icons and how much they have and have spent.
  */
 public class AppPermissionsActivity extends ListActivity {
-	private SharedPreferences permissions;
+	private AppAllowanceLedger permissions;
 	private PackageManager packageManager;
 
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
-		permissions = getSharedPreferences(ChannelService.PREFS_NAME, MODE_PRIVATE);
+		permissions = ((WalletApplication) getApplication()).getAppAllowanceLedger();
 		packageManager = getPackageManager();
 	}
 
@@ -79,9 +79,9 @@ public class AppPermissionsActivity extends ListActivity {
 	}
 
 	private void populateList(List<Map<String, Object>> data) {
-		Map<String, ?> typedData = permissions.getAll();
-		for (Map.Entry<String, ?> entry : typedData.entrySet()) {
-			Long creditAvailable = (Long) entry.getValue();
+		Map<String, Long> typedData = permissions.getAll();
+		for (Map.Entry<String, Long> entry : typedData.entrySet()) {
+			Long creditAvailable = entry.getValue();
 			String appId = entry.getKey();
 			String name = appId;
 			Drawable icon = null;
@@ -19,10 +19,10 @@
 package de.schildbach.wallet.ui;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import android.app.Activity;
 import android.content.BroadcastReceiver;
@@ -58,6 +58,9 @@ import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
+import de.schildbach.wallet.util.BlockTransactionsIndex;
+import de.schildbach.wallet.util.WalletSnapshot;
+import de.schildbach.wallet.util.WalletSnapshotPublisher;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 
@@ -73,10 +76,8 @@ public final class BlockListFragment extends SherlockListFragment
 	private BlockchainService service;
 
 	private BlockListAdapter adapter;
-	private Set<Transaction> transactions;
 
 	private static final int ID_BLOCK_LOADER = 0;
-	private static final int ID_TRANSACTION_LOADER = 1;
 
 	private static final int MAX_BLOCKS = 32;
 
@@ -114,16 +115,12 @@ public final class BlockListFragment extends SherlockListFragment
 
 		activity.registerReceiver(tickReceiver, new IntentFilter(Intent.ACTION_TIME_TICK));
 
-		loaderManager.initLoader(ID_TRANSACTION_LOADER, null, transactionLoaderCallbacks);
-
 		adapter.notifyDataSetChanged();
 	}
 
 	@Override
 	public void onPause()
 	{
-		loaderManager.destroyLoader(ID_TRANSACTION_LOADER);
-
 		activity.unregisterReceiver(tickReceiver);
 
 		super.onPause();
@@ -221,18 +218,21 @@ public final class BlockListFragment extends SherlockListFragment
 				false);
 
 		private final List<StoredBlock> blocks = new ArrayList<StoredBlock>(MAX_BLOCKS);
+		private Map<Sha256Hash, List<Transaction>> transactions = Collections.emptyMap();
 
 		public void clear()
 		{
 			blocks.clear();
+			transactions = Collections.emptyMap();
 
 			adapter.notifyDataSetChanged();
 		}
 
-		public void replace(final Collection<StoredBlock> blocks)
+		public void replace(final Blocks blocks)
 		{
 			this.blocks.clear();
-			this.blocks.addAll(blocks);
+			this.blocks.addAll(blocks.blocks);
+			this.transactions = blocks.transactions;
 
 			notifyDataSetChanged();
 		}
@@ -287,28 +287,23 @@ public final class BlockListFragment extends SherlockListFragment
 			final int transactionChildCount = row.getChildCount() - ROW_BASE_CHILD_COUNT;
 			int iTransactionView = 0;
 
-			if (transactions != null)
+			final List<Transaction> blockTransactions = transactions.get(header.getHash());
+			for (final Transaction tx : blockTransactions != null ? blockTransactions : Collections.<Transaction> emptyList())
 			{
-				for (final Transaction tx : transactions)
+				final View view;
+				if (iTransactionView < transactionChildCount)
+				{
+					view = row.getChildAt(ROW_INSERT_INDEX + iTransactionView);
+				}
+				else
 				{
-					if (tx.getAppearsInHashes().contains(header.getHash()))
-					{
-						final View view;
-						if (iTransactionView < transactionChildCount)
-						{
-							view = row.getChildAt(ROW_INSERT_INDEX + iTransactionView);
-						}
-						else
-						{
-							view = getLayoutInflater(null).inflate(R.layout.transaction_row_oneline, null);
-							row.addView(view, ROW_INSERT_INDEX + iTransactionView);
-						}
-
-						transactionsAdapter.bindView(view, tx);
-
-						iTransactionView++;
-					}
+					view = getLayoutInflater(null).inflate(R.layout.transaction_row_oneline, null);
+					row.addView(view, ROW_INSERT_INDEX + iTransactionView);
 				}
+
+				transactionsAdapter.bindView(view, tx);
+
+				iTransactionView++;
 			}
 
 			final int leftoverTransactionViews = transactionChildCount - iTransactionView;
@@ -319,17 +314,34 @@ public final class BlockListFragment extends SherlockListFragment
 		}
 	}
 
-	private static class BlockLoader extends AsyncTaskLoader<List<StoredBlock>>
+	// recent blocks, and the wallet transactions in each of them, looked up off the UI thread
+	private static final class Blocks
+	{
+		public final List<StoredBlock> blocks;
+		public final Map<Sha256Hash, List<Transaction>> transactions;
+
+		private Blocks(final List<StoredBlock> blocks, final Map<Sha256Hash, List<Transaction>> transactions)
+		{
+			this.blocks = blocks;
+			this.transactions = transactions;
+		}
+	}
+
+	private static class BlockLoader extends AsyncTaskLoader<Blocks>
 	{
 		private Context context;
 		private BlockchainService service;
+		private final BlockTransactionsIndex blockTransactionsIndex;
+		private final WalletSnapshotPublisher snapshotPublisher;
 
-		private BlockLoader(final Context context, final BlockchainService service)
+		private BlockLoader(final Context context, final WalletApplication application, final BlockchainService service)
 		{
 			super(context);
 
 			this.context = context.getApplicationContext();
 			this.service = service;
+			this.blockTransactionsIndex = application.getBlockTransactionsIndex();
+			this.snapshotPublisher = application.getWalletSnapshotPublisher();
 		}
 
 		@Override
@@ -338,20 +350,34 @@ public final class BlockListFragment extends SherlockListFragment
 			super.onStartLoading();
 
 			context.registerReceiver(broadcastReceiver, new IntentFilter(BlockchainService.ACTION_BLOCKCHAIN_STATE));
+			snapshotPublisher.addListener(snapshotListener);
 		}
 
 		@Override
 		protected void onStopLoading()
 		{
+			snapshotPublisher.removeListener(snapshotListener);
 			context.unregisterReceiver(broadcastReceiver);
 
 			super.onStopLoading();
 		}
 
 		@Override
-		public List<StoredBlock> loadInBackground()
+		public Blocks loadInBackground()
 		{
-			return service.getRecentBlocks(MAX_BLOCKS);
+			final List<StoredBlock> blocks = service.getRecentBlocks(MAX_BLOCKS);
+
+			// the first lookup builds the index from the wallet, and each one takes the wallet lock
+			final Map<Sha256Hash, List<Transaction>> transactions = new HashMap<Sha256Hash, List<Transaction>>();
+			for (final StoredBlock block : blocks)
+			{
+				final Sha256Hash blockHash = block.getHeader().getHash();
+				final List<Transaction> blockTransactions = blockTransactionsIndex.getTransactions(blockHash);
+				if (!blockTransactions.isEmpty())
+					transactions.put(blockHash, blockTransactions);
+			}
+
+			return new Blocks(blocks, transactions);
 		}
 
 		private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver()
@@ -362,84 +388,35 @@ public final class BlockListFragment extends SherlockListFragment
 				forceLoad();
 			}
 		};
-	}
-
-	private final LoaderCallbacks<List<StoredBlock>> blockLoaderCallbacks = new LoaderCallbacks<List<StoredBlock>>()
-	{
-		@Override
-		public Loader<List<StoredBlock>> onCreateLoader(final int id, final Bundle args)
-		{
-			return new BlockLoader(activity, service);
-		}
-
-		@Override
-		public void onLoadFinished(final Loader<List<StoredBlock>> loader, final List<StoredBlock> blocks)
-		{
-			adapter.replace(blocks);
-
-			final Loader<Set<Transaction>> transactionLoader = loaderManager.getLoader(ID_TRANSACTION_LOADER);
-			if (transactionLoader != null && transactionLoader.isStarted())
-				transactionLoader.forceLoad();
-		}
-
-		@Override
-		public void onLoaderReset(final Loader<List<StoredBlock>> loader)
-		{
-			adapter.clear();
-		}
-	};
 
-	private static class TransactionsLoader extends AsyncTaskLoader<Set<Transaction>>
-	{
-		WalletApplication application;
-
-		private TransactionsLoader(final Context context, final WalletApplication application)
+		private final WalletSnapshotPublisher.Listener snapshotListener = new WalletSnapshotPublisher.Listener()
 		{
-			super(context);
-
-			this.application = application;
-		}
-
-		@Override
-		public Set<Transaction> loadInBackground()
-		{
-			final Set<Transaction> transactions = application.getWallet().getTransactions(true);
-
-			final Set<Transaction> filteredTransactions = new HashSet<Transaction>(transactions.size());
-			for (final Transaction tx : transactions)
+			@Override
+			public void onSnapshotPublished(final WalletSnapshot snapshot)
 			{
-				final Collection<Sha256Hash> appearsIn = tx.getAppearsInHashes();
-				if (appearsIn != null && !appearsIn.isEmpty()) // TODO filter by updateTime
-					filteredTransactions.add(tx);
+				forceLoad();
 			}
-
-			return filteredTransactions;
-		}
+		};
 	}
 
-	private final LoaderCallbacks<Set<Transaction>> transactionLoaderCallbacks = new LoaderCallbacks<Set<Transaction>>()
+	private final LoaderCallbacks<Blocks> blockLoaderCallbacks = new LoaderCallbacks<Blocks>()
 	{
 		@Override
-		public Loader<Set<Transaction>> onCreateLoader(final int id, final Bundle args)
+		public Loader<Blocks> onCreateLoader(final int id, final Bundle args)
 		{
-			return new TransactionsLoader(activity, application);
+			return new BlockLoader(activity, application, service);
 		}
 
 		@Override
-		public void onLoadFinished(final Loader<Set<Transaction>> loader, final Set<Transaction> transactions)
+		public void onLoadFinished(final Loader<Blocks> loader, final Blocks blocks)
 		{
-			BlockListFragment.this.transactions = transactions;
-
-			adapter.notifyDataSetChanged();
+			adapter.replace(blocks);
 		}
 
 		@Override
-		public void onLoaderReset(final Loader<Set<Transaction>> loader)
+		public void onLoaderReset(final Loader<Blocks> loader)
 		{
-			BlockListFragment.this.transactions.clear(); // be nice
-			BlockListFragment.this.transactions = null;
-
-			adapter.notifyDataSetChanged();
+			adapter.clear();
 		}
 	};
 }
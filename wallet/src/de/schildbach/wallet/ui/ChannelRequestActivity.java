@@ -77,7 +77,7 @@ public class ChannelRequestActivity extends AbstractWalletActivity {
 
 		public void onLoadFinished(final Loader<Cursor> loader, final Cursor data)
 		{
-			if (data != null)
+			if (data != null && data.getCount() > 0)
 			{
 				data.moveToFirst();
 				final ExchangeRatesProvider.ExchangeRate exchangeRate = ExchangeRatesProvider.getExchangeRate(data);
@@ -320,7 +320,7 @@ public class ChannelRequestActivity extends AbstractWalletActivity {
 		// TODO: Show the user how much the app can still spend, maybe even how much it has spent
 		long amountLeft =  service.getAppValueRemaining(callingPackage);
 		appSpecifiedMinValue = appSpecifiedMinValue - amountLeft;
-		requestedValueStr = GenericUtils.formatValue(BigInteger.valueOf(appSpecifiedMinValue), Constants.BTC_MAX_PRECISION) + " " + Constants.CURRENCY_CODE_BITCOIN;
+		requestedValueStr = GenericUtils.formatValue(appSpecifiedMinValue, Constants.BTC_MAX_PRECISION) + " " + Constants.CURRENCY_CODE_BITCOIN;
 		final String intro = getString(R.string.channel_request_intro, requestingApp, requestedValueStr, "");
 		final TextView label = (TextView) findViewById(R.id.channel_request_intro_text);
 		label.setText(intro);
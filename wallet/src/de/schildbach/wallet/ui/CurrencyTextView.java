@@ -45,6 +45,7 @@ public final class CurrencyTextView extends TextView
 	private boolean alwaysSigned = false;
 	private RelativeSizeSpan prefixRelativeSizeSpan = null;
 	private RelativeSizeSpan insignificantRelativeSizeSpan = null;
+	private final StringBuilder formatBuilder = new StringBuilder();
 
 	public CurrencyTextView(final Context context)
 	{
@@ -129,13 +130,13 @@ public final class CurrencyTextView extends TextView
 
 		if (amount != null)
 		{
-			final String s;
+			formatBuilder.setLength(0);
 			if (alwaysSigned)
-				s = GenericUtils.formatValue(amount, Constants.CURRENCY_PLUS_SIGN, Constants.CURRENCY_MINUS_SIGN, precision);
+				GenericUtils.formatValue(amount.longValue(), Constants.CURRENCY_PLUS_SIGN, Constants.CURRENCY_MINUS_SIGN, precision, formatBuilder);
 			else
-				s = GenericUtils.formatValue(amount, precision);
+				GenericUtils.formatValue(amount.longValue(), "", "-", precision, formatBuilder);
 
-			text = new SpannableStringBuilder(s);
+			text = new SpannableStringBuilder(formatBuilder);
 			WalletUtils.formatSignificant(text, insignificantRelativeSizeSpan);
 
 			if (prefix != null)
@@ -20,10 +20,13 @@ package de.schildbach.wallet.ui;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.database.Cursor;
 import android.preference.PreferenceManager;
 import android.support.v4.content.CursorLoader;
 import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.ExchangeRateHistory;
 import de.schildbach.wallet.ExchangeRatesProvider;
+import de.schildbach.wallet.WalletApplication;
 
 /**
  * @author Andreas Schildbach
@@ -31,6 +34,7 @@ import de.schildbach.wallet.ExchangeRatesProvider;
 public final class ExchangeRateLoader extends CursorLoader implements OnSharedPreferenceChangeListener
 {
 	private final SharedPreferences prefs;
+	private final ExchangeRateHistory exchangeRateHistory;
 
 	public ExchangeRateLoader(final Context context)
 	{
@@ -38,6 +42,22 @@ public final class ExchangeRateLoader extends CursorLoader implements OnSharedPr
 				new String[] { null }, null);
 
 		prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		exchangeRateHistory = ((WalletApplication) context.getApplicationContext()).getExchangeRateHistory();
+	}
+
+	@Override
+	public Cursor loadInBackground()
+	{
+		final Cursor cursor = super.loadInBackground();
+
+		// map the history of the currency now, rather than on the UI thread when list rows look up rates
+		if (cursor != null && cursor.moveToFirst())
+		{
+			exchangeRateHistory.load(ExchangeRatesProvider.getExchangeRate(cursor).currencyCode);
+			cursor.moveToPosition(-1);
+		}
+
+		return cursor;
 	}
 
 	@Override
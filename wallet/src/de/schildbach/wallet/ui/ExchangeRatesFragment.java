@@ -46,14 +46,13 @@ import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
 import com.google.bitcoin.core.Utils;
-import com.google.bitcoin.core.Wallet;
-import com.google.bitcoin.core.Wallet.BalanceType;
 
 import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.ExchangeRatesProvider;
 import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.service.BlockchainService;
+import de.schildbach.wallet.util.WalletSnapshot;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 
@@ -64,7 +63,6 @@ public final class ExchangeRatesFragment extends SherlockListFragment implements
 {
 	private AbstractWalletActivity activity;
 	private WalletApplication application;
-	private Wallet wallet;
 	private SharedPreferences prefs;
 	private LoaderManager loaderManager;
 
@@ -84,7 +82,6 @@ public final class ExchangeRatesFragment extends SherlockListFragment implements
 
 		this.activity = (AbstractWalletActivity) activity;
 		this.application = (WalletApplication) activity.getApplication();
-		this.wallet = application.getWallet();
 		this.prefs = PreferenceManager.getDefaultSharedPreferences(activity);
 		this.loaderManager = getLoaderManager();
 	}
@@ -118,7 +115,7 @@ public final class ExchangeRatesFragment extends SherlockListFragment implements
 
 				final CurrencyTextView walletView = (CurrencyTextView) view.findViewById(R.id.exchange_rate_row_balance);
 				walletView.setPrecision(Constants.LOCAL_PRECISION);
-				if (!replaying)
+				if (!replaying && balance != null)
 				{
 					walletView.setAmount(WalletUtils.localValue(balance, exchangeRate.rate));
 					walletView.setStrikeThru(Constants.TEST);
@@ -229,7 +226,9 @@ public final class ExchangeRatesFragment extends SherlockListFragment implements
 
 	private void updateView()
 	{
-		balance = application.getWallet().getBalance(BalanceType.ESTIMATED);
+		final WalletSnapshot snapshot = application.getWalletSnapshotPublisher().getSnapshot();
+		if (snapshot != null)
+			balance = snapshot.estimatedBalance;
 
 		if (adapter != null)
 			((BaseAdapter) adapter).notifyDataSetChanged();
@@ -274,7 +273,7 @@ public final class ExchangeRatesFragment extends SherlockListFragment implements
 		@Override
 		public Loader<BigInteger> onCreateLoader(final int id, final Bundle args)
 		{
-			return new WalletBalanceLoader(activity, wallet);
+			return new WalletBalanceLoader(activity, application);
 		}
 
 		@Override
@@ -18,37 +18,31 @@
 package de.schildbach.wallet.ui;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.WeakHashMap;
+
+import javax.annotation.Nullable;
 
 import android.app.Activity;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.graphics.Typeface;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
-import android.support.v4.app.LoaderManager;
-import android.support.v4.app.LoaderManager.LoaderCallbacks;
-import android.support.v4.content.AsyncTaskLoader;
-import android.support.v4.content.Loader;
-import android.text.format.DateUtils;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
 import com.actionbarsherlock.app.SherlockListFragment;
-import com.google.bitcoin.core.Peer;
-import com.google.bitcoin.core.VersionMessage;
 
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
+import de.schildbach.wallet.service.PeerState;
+import de.schildbach.wallet.util.ReverseDnsResolver;
 import de.schildbach.wallet_test.R;
 
 /**
@@ -57,19 +51,11 @@ import de.schildbach.wallet_test.R;
 public final class PeerListFragment extends SherlockListFragment
 {
 	private AbstractWalletActivity activity;
-	private LoaderManager loaderManager;
+	private ReverseDnsResolver reverseDnsResolver;
 
 	private BlockchainService service;
-	private ArrayAdapter<Peer> adapter;
-
-	private final Handler handler = new Handler();
-
-	private static final long REFRESH_MS = DateUtils.SECOND_IN_MILLIS;
-
-	private static final int ID_PEER_LOADER = 0;
-	private static final int ID_REVERSE_DNS_LOADER = 1;
-
-	private final Map<InetAddress, String> hostnames = new WeakHashMap<InetAddress, String>();
+	private final List<PeerState> peerStates = new ArrayList<PeerState>();
+	private ArrayAdapter<PeerState> adapter;
 
 	@Override
 	public void onAttach(final Activity activity)
@@ -77,7 +63,7 @@ public final class PeerListFragment extends SherlockListFragment
 		super.onAttach(activity);
 
 		this.activity = (AbstractWalletActivity) activity;
-		this.loaderManager = getLoaderManager();
+		this.reverseDnsResolver = this.activity.getWalletApplication().getReverseDnsResolver();
 	}
 
 	@Override
@@ -101,7 +87,7 @@ public final class PeerListFragment extends SherlockListFragment
 	{
 		super.onCreate(savedInstanceState);
 
-		adapter = new ArrayAdapter<Peer>(activity, 0)
+		adapter = new ArrayAdapter<PeerState>(activity, 0, peerStates)
 		{
 			@Override
 			public View getView(final int position, View row, final ViewGroup parent)
@@ -109,30 +95,29 @@ public final class PeerListFragment extends SherlockListFragment
 				if (row == null)
 					row = getLayoutInflater(null).inflate(R.layout.peer_list_row, null);
 
-				final Peer peer = getItem(position);
-				final VersionMessage versionMessage = peer.getPeerVersionMessage();
-				final boolean isDownloading = peer.getDownloadData();
+				final PeerState peerState = getItem(position);
+				final boolean isDownloading = peerState.downloading;
 
 				final TextView rowIp = (TextView) row.findViewById(R.id.peer_list_row_ip);
-				final InetAddress address = peer.getAddress().getAddr();
-				final String hostname = hostnames.get(address);
+				final InetAddress address = peerState.address;
+				final String hostname = reverseDnsResolver.lookup(address);
 				rowIp.setText(hostname != null ? hostname : address.getHostAddress());
 
 				final TextView rowHeight = (TextView) row.findViewById(R.id.peer_list_row_height);
-				final long bestHeight = peer.getBestHeight();
+				final long bestHeight = peerState.bestHeight;
 				rowHeight.setText(bestHeight > 0 ? bestHeight + " blocks" : null);
 				rowHeight.setTypeface(isDownloading ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
 
 				final TextView rowVersion = (TextView) row.findViewById(R.id.peer_list_row_version);
-				rowVersion.setText(versionMessage.subVer);
+				rowVersion.setText(peerState.subVer);
 				rowVersion.setTypeface(isDownloading ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
 
 				final TextView rowProtocol = (TextView) row.findViewById(R.id.peer_list_row_protocol);
-				rowProtocol.setText("protocol: " + versionMessage.clientVersion);
+				rowProtocol.setText("protocol: " + peerState.clientVersion);
 				rowProtocol.setTypeface(isDownloading ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
 
 				final TextView rowPing = (TextView) row.findViewById(R.id.peer_list_row_ping);
-				final long pingTime = peer.getPingTime();
+				final long pingTime = peerState.pingTime;
 				rowPing.setText(pingTime < Long.MAX_VALUE ? getString(R.string.peer_list_row_ping_time, pingTime) : null);
 				rowPing.setTypeface(isDownloading ? Typeface.DEFAULT_BOLD : Typeface.DEFAULT);
 
@@ -153,43 +138,19 @@ public final class PeerListFragment extends SherlockListFragment
 	{
 		super.onResume();
 
-		handler.postDelayed(new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				adapter.notifyDataSetChanged();
-
-				final Loader<String> loader = loaderManager.getLoader(ID_REVERSE_DNS_LOADER);
-				final boolean loaderRunning = loader != null && loader.isStarted();
+		reverseDnsResolver.addListener(reverseDnsListener);
 
-				if (!loaderRunning)
-				{
-					for (int i = 0; i < adapter.getCount(); i++)
-					{
-						final Peer peer = adapter.getItem(i);
-						final InetAddress address = peer.getAddress().getAddr();
-
-						if (!hostnames.containsKey(address))
-						{
-							final Bundle args = new Bundle();
-							args.putSerializable("address", address);
-							loaderManager.initLoader(ID_REVERSE_DNS_LOADER, args, reverseDnsLoaderCallbacks).forceLoad();
-
-							break;
-						}
-					}
-				}
-
-				handler.postDelayed(this, REFRESH_MS);
-			}
-		}, REFRESH_MS);
+		if (service != null)
+			service.addPeerStateListener(peerStateListener);
 	}
 
 	@Override
 	public void onPause()
 	{
-		handler.removeCallbacksAndMessages(null);
+		if (service != null)
+			service.removePeerStateListener(peerStateListener);
+
+		reverseDnsResolver.removeListener(reverseDnsListener);
 
 		super.onPause();
 	}
@@ -199,8 +160,6 @@ public final class PeerListFragment extends SherlockListFragment
 	{
 		activity.unbindService(serviceConnection);
 
-		loaderManager.destroyLoader(ID_REVERSE_DNS_LOADER);
-
 		super.onDestroy();
 	}
 
@@ -211,128 +170,74 @@ public final class PeerListFragment extends SherlockListFragment
 		{
 			service = ((BlockchainServiceImpl.LocalBinder) binder).getService();
 
-			loaderManager.initLoader(ID_PEER_LOADER, null, peerLoaderCallbacks);
+			if (isResumed())
+				service.addPeerStateListener(peerStateListener);
 		}
 
 		@Override
 		public void onServiceDisconnected(final ComponentName name)
 		{
-			loaderManager.destroyLoader(ID_PEER_LOADER);
+			service.removePeerStateListener(peerStateListener);
 
 			service = null;
+
+			peerStates.clear();
+			adapter.notifyDataSetChanged();
 		}
 	};
 
-	private static class PeerLoader extends AsyncTaskLoader<List<Peer>>
+	private final BlockchainService.PeerStateListener peerStateListener = new BlockchainService.PeerStateListener()
 	{
-		private Context context;
-		private BlockchainService service;
-
-		private PeerLoader(final Context context, final BlockchainService service)
-		{
-			super(context);
-
-			this.context = context.getApplicationContext();
-			this.service = service;
-		}
-
-		@Override
-		protected void onStartLoading()
-		{
-			super.onStartLoading();
-
-			context.registerReceiver(broadcastReceiver, new IntentFilter(BlockchainService.ACTION_PEER_STATE));
-		}
-
-		@Override
-		protected void onStopLoading()
-		{
-			context.unregisterReceiver(broadcastReceiver);
-
-			super.onStopLoading();
-		}
-
 		@Override
-		public List<Peer> loadInBackground()
+		public void onPeerStatesChanged(final List<PeerState> newPeerStates)
 		{
-			return service.getConnectedPeers();
-		}
+			boolean samePeers = newPeerStates.size() == peerStates.size();
+			for (int i = 0; samePeers && i < peerStates.size(); i++)
+				samePeers = peerStates.get(i).address.equals(newPeerStates.get(i).address);
 
-		private final BroadcastReceiver broadcastReceiver = new BroadcastReceiver()
-		{
-			@Override
-			public void onReceive(final Context context, final Intent intent)
+			if (!samePeers)
 			{
-				forceLoad();
+				peerStates.clear();
+				peerStates.addAll(newPeerStates);
+				adapter.notifyDataSetChanged();
+				return;
 			}
-		};
-	}
 
-	private final LoaderCallbacks<List<Peer>> peerLoaderCallbacks = new LoaderCallbacks<List<Peer>>()
-	{
-		@Override
-		public Loader<List<Peer>> onCreateLoader(final int id, final Bundle args)
-		{
-			return new PeerLoader(activity, service);
+			// same peers in the same order, so only rebind the rows that show something new
+			for (int i = 0; i < peerStates.size(); i++)
+			{
+				final PeerState newPeerState = newPeerStates.get(i);
+				if (!newPeerState.equals(peerStates.get(i)))
+				{
+					peerStates.set(i, newPeerState);
+					rebindRow(i);
+				}
+			}
 		}
+	};
 
+	private final ReverseDnsResolver.Listener reverseDnsListener = new ReverseDnsResolver.Listener()
+	{
 		@Override
-		public void onLoadFinished(final Loader<List<Peer>> loader, final List<Peer> peers)
+		public void onHostnameResolved(final InetAddress address, @Nullable final String hostname)
 		{
-			adapter.clear();
+			if (hostname == null)
+				return;
 
-			if (peers != null)
-				for (final Peer peer : peers)
-					adapter.add(peer);
-		}
-
-		@Override
-		public void onLoaderReset(final Loader<List<Peer>> loader)
-		{
-			adapter.clear();
+			for (int i = 0; i < peerStates.size(); i++)
+				if (peerStates.get(i).address.equals(address))
+					rebindRow(i);
 		}
 	};
 
-	private static class ReverseDnsLoader extends AsyncTaskLoader<String>
+	private void rebindRow(final int position)
 	{
-		public final InetAddress address;
+		if (getView() == null)
+			return;
 
-		public ReverseDnsLoader(final Context context, final InetAddress address)
-		{
-			super(context);
-
-			this.address = address;
-		}
-
-		@Override
-		public String loadInBackground()
-		{
-			return address.getCanonicalHostName();
-		}
+		final ListView listView = getListView();
+		final View row = listView.getChildAt(position - listView.getFirstVisiblePosition());
+		if (row != null)
+			adapter.getView(position, row, listView);
 	}
-
-	private final LoaderCallbacks<String> reverseDnsLoaderCallbacks = new LoaderCallbacks<String>()
-	{
-		@Override
-		public Loader<String> onCreateLoader(final int id, final Bundle args)
-		{
-			final InetAddress address = (InetAddress) args.getSerializable("address");
-
-			return new ReverseDnsLoader(activity, address);
-		}
-
-		@Override
-		public void onLoadFinished(final Loader<String> loader, final String hostname)
-		{
-			final InetAddress address = ((ReverseDnsLoader) loader).address;
-			hostnames.put(address, hostname);
-
-			loaderManager.destroyLoader(ID_REVERSE_DNS_LOADER);
-		}
-
-		@Override
-		public void onLoaderReset(final Loader<String> loader)
-		{
-		}
-	};
 }
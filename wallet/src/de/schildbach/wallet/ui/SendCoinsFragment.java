@@ -86,6 +86,7 @@ import de.schildbach.wallet.ExchangeRatesProvider;
 import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.integration.android.BitcoinIntegration;
+import de.schildbach.wallet.util.BalanceTracker;
 import de.schildbach.wallet.util.Bluetooth;
 import de.schildbach.wallet.util.GenericUtils;
 import de.schildbach.wallet.util.WalletUtils;
@@ -320,7 +321,7 @@ public final class SendCoinsFragment extends SherlockFragment
 		@Override
 		public void onLoadFinished(final Loader<Cursor> loader, final Cursor data)
 		{
-			if (data != null)
+			if (data != null && data.getCount() > 0)
 			{
 				data.moveToFirst();
 				final ExchangeRate exchangeRate = ExchangeRatesProvider.getExchangeRate(data);
@@ -702,8 +703,9 @@ public final class SendCoinsFragment extends SherlockFragment
 		}
 		else if (amount.signum() > 0)
 		{
-			final BigInteger estimated = wallet.getBalance(BalanceType.ESTIMATED);
-			final BigInteger available = wallet.getBalance(BalanceType.AVAILABLE);
+			final BalanceTracker balanceTracker = ((WalletApplication) context.getApplicationContext()).getBalanceTracker();
+			final BigInteger estimated = balanceTracker.getEstimated();
+			final BigInteger available = balanceTracker.getAvailable();
 			final BigInteger pending = estimated.subtract(available);
 			// TODO subscribe to wallet changes
 
@@ -955,7 +957,7 @@ public final class SendCoinsFragment extends SherlockFragment
 
 	private void handleEmpty()
 	{
-		final BigInteger available = wallet.getBalance(BalanceType.AVAILABLE);
+		final BigInteger available = application.getBalanceTracker().getAvailable();
 
 		amountCalculatorLink.setBtcAmount(available);
 	}
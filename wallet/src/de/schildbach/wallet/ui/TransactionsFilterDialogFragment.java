@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.ui;
+
+import java.math.BigInteger;
+
+import javax.annotation.Nullable;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.support.v4.app.DialogFragment;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.Spinner;
+import android.widget.TextView;
+
+import com.google.bitcoin.core.Utils;
+
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.util.GenericUtils;
+import de.schildbach.wallet_test.R;
+
+/**
+ * Asks for the amount range and the period to restrict the transaction history to.
+ */
+public final class TransactionsFilterDialogFragment extends DialogFragment
+{
+	public interface Listener
+	{
+		void onFilterRanges(@Nullable BigInteger minValue, @Nullable BigInteger maxValue, int period);
+	}
+
+	private static final String FRAGMENT_TAG = TransactionsFilterDialogFragment.class.getName();
+
+	private static final String KEY_MIN_VALUE = "min_value";
+	private static final String KEY_MAX_VALUE = "max_value";
+	private static final String KEY_PERIOD = "period";
+
+	/**
+	 * @param target
+	 *            fragment implementing {@link Listener}, which is told about the chosen ranges
+	 */
+	public static void show(final FragmentManager fm, final Fragment target, @Nullable final BigInteger minValue,
+			@Nullable final BigInteger maxValue, final int period)
+	{
+		final TransactionsFilterDialogFragment fragment = new TransactionsFilterDialogFragment();
+
+		final Bundle args = new Bundle();
+		args.putSerializable(KEY_MIN_VALUE, minValue);
+		args.putSerializable(KEY_MAX_VALUE, maxValue);
+		args.putInt(KEY_PERIOD, period);
+		fragment.setArguments(args);
+		fragment.setTargetFragment(target, 0);
+
+		fragment.show(fm, FRAGMENT_TAG);
+	}
+
+	private Activity activity;
+
+	@Override
+	public void onAttach(final Activity activity)
+	{
+		super.onAttach(activity);
+
+		this.activity = activity;
+	}
+
+	@Override
+	public Dialog onCreateDialog(final Bundle savedInstanceState)
+	{
+		final Bundle args = getArguments();
+		final BigInteger minValue = (BigInteger) args.getSerializable(KEY_MIN_VALUE);
+		final BigInteger maxValue = (BigInteger) args.getSerializable(KEY_MAX_VALUE);
+		final int period = args.getInt(KEY_PERIOD);
+
+		final LayoutInflater inflater = LayoutInflater.from(activity);
+
+		final AlertDialog.Builder dialog = new AlertDialog.Builder(activity);
+		dialog.setInverseBackgroundForced(true);
+		dialog.setTitle(R.string.wallet_transactions_filter_dialog_title);
+
+		final View view = inflater.inflate(R.layout.wallet_transactions_filter_dialog, null);
+
+		final TextView viewMinValue = (TextView) view.findViewById(R.id.wallet_transactions_filter_min_value);
+		if (minValue != null)
+			viewMinValue.setText(GenericUtils.formatValue(minValue, Constants.BTC_MAX_PRECISION));
+
+		final TextView viewMaxValue = (TextView) view.findViewById(R.id.wallet_transactions_filter_max_value);
+		if (maxValue != null)
+			viewMaxValue.setText(GenericUtils.formatValue(maxValue, Constants.BTC_MAX_PRECISION));
+
+		final Spinner viewPeriod = (Spinner) view.findViewById(R.id.wallet_transactions_filter_period);
+		viewPeriod.setSelection(period);
+
+		dialog.setView(view);
+
+		final DialogInterface.OnClickListener onClickListener = new DialogInterface.OnClickListener()
+		{
+			@Override
+			public void onClick(final DialogInterface dialog, final int which)
+			{
+				final Listener listener = (Listener) getTargetFragment();
+
+				if (which == DialogInterface.BUTTON_POSITIVE)
+					listener.onFilterRanges(parseValue(viewMinValue), parseValue(viewMaxValue), viewPeriod.getSelectedItemPosition());
+				else if (which == DialogInterface.BUTTON_NEUTRAL)
+					listener.onFilterRanges(null, null, 0);
+
+				dismiss();
+			}
+		};
+
+		dialog.setPositiveButton(R.string.wallet_transactions_filter_dialog_button_filter, onClickListener);
+		dialog.setNeutralButton(R.string.wallet_transactions_filter_dialog_button_clear, onClickListener);
+		dialog.setNegativeButton(R.string.button_cancel, onClickListener);
+
+		return dialog.create();
+	}
+
+	// an empty or unparsable amount leaves that end of the range open
+	private static @Nullable BigInteger parseValue(final TextView view)
+	{
+		final String text = view.getText().toString().trim();
+		if (text.length() == 0)
+			return null;
+
+		try
+		{
+			return Utils.toNanoCoins(text);
+		}
+		catch (final NumberFormatException x)
+		{
+			return null;
+		}
+		catch (final ArithmeticException x)
+		{
+			return null;
+		}
+	}
+}
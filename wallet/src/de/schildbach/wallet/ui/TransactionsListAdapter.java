@@ -21,10 +21,11 @@ package de.schildbach.wallet.ui;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+
+import javax.annotation.Nullable;
 
 import android.content.Context;
 import android.content.res.Resources;
@@ -39,7 +40,6 @@ import android.widget.BaseAdapter;
 import android.widget.TextView;
 
 import com.google.bitcoin.core.Address;
-import com.google.bitcoin.core.ScriptException;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.Transaction.Purpose;
 import com.google.bitcoin.core.TransactionOutput;
@@ -49,8 +49,10 @@ import com.google.bitcoin.core.Wallet.DefaultCoinSelector;
 
 import de.schildbach.wallet.AddressBookProvider;
 import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.ExchangeRateHistory;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.util.CircularProgressView;
+import de.schildbach.wallet.util.TransactionValueCache;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 import org.slf4j.Logger;
@@ -66,8 +68,10 @@ public class TransactionsListAdapter extends BaseAdapter
 	private final WalletApplication walletApplication;
 	private final int maxConnectedPeers;
 
-	private final List<Transaction> transactions = new ArrayList<Transaction>();
+	// immutable, replaced as a whole
+	private List<Transaction> transactions = Collections.emptyList();
 	private int precision = Constants.BTC_MAX_PRECISION;
+	private @Nullable String exchangeCurrencyCode = null;
 	private boolean showEmptyText = false;
 	private boolean showBackupWarning = false;
 
@@ -78,8 +82,6 @@ public class TransactionsListAdapter extends BaseAdapter
 	private final String textCoinBase;
 	private final String textInternal;
 
-	private final Map<String, String> labelCache = new HashMap<String, String>();
-	private final static String CACHE_NULL_MARKER = "";
 
 	private static final String CONFIDENCE_SYMBOL_DEAD = "\u271D"; // latin cross
 	private static final String CONFIDENCE_SYMBOL_UNKNOWN = "?";
@@ -113,25 +115,41 @@ public class TransactionsListAdapter extends BaseAdapter
 		notifyDataSetChanged();
 	}
 
+	/**
+	 * Shows the value of each transaction in the given currency, at the exchange rate of the time of the transaction.
+	 */
+	public void setExchangeCurrencyCode(@Nullable final String exchangeCurrencyCode)
+	{
+		this.exchangeCurrencyCode = exchangeCurrencyCode;
+
+		notifyDataSetChanged();
+	}
+
 	public void clear()
 	{
-		transactions.clear();
+		transactions = Collections.emptyList();
 
 		notifyDataSetChanged();
 	}
 
 	public void replace(final Transaction tx)
 	{
-		transactions.clear();
-		transactions.add(tx);
+		transactions = Collections.singletonList(tx);
 
 		notifyDataSetChanged();
 	}
 
 	public void replace(final Collection<Transaction> transactions)
 	{
-		this.transactions.clear();
-		this.transactions.addAll(transactions);
+		replace(Collections.unmodifiableList(new ArrayList<Transaction>(transactions)));
+	}
+
+	/**
+	 * Takes over the given list without copying it, so it must not be modified afterwards.
+	 */
+	public void replace(final List<Transaction> transactions)
+	{
+		this.transactions = transactions;
 
 		showEmptyText = true;
 
@@ -275,204 +293,194 @@ public class TransactionsListAdapter extends BaseAdapter
 		final boolean isCoinBase = tx.isCoinBase();
 		final boolean isInternal = WalletUtils.isInternal(tx);
 
-		try
+		final TransactionValueCache valueCache = walletApplication.getTransactionValueCache();
+		final TransactionValueCache.Info txInfo = valueCache.get(tx);
+		BigInteger value = txInfo.value;
+		final boolean sent = txInfo.sent;
+
+		if (paymentChannelSpend != null)
+			value = value.add(valueCache.getValue(paymentChannelSpend));
+
+		final CircularProgressView rowConfidenceCircular = (CircularProgressView) row.findViewById(R.id.transaction_row_confidence_circular);
+		final TextView rowConfidenceTextual = (TextView) row.findViewById(R.id.transaction_row_confidence_textual);
+
+		// confidence
+		if (confidenceType == ConfidenceType.PENDING)
+		{
+			rowConfidenceCircular.setVisibility(View.VISIBLE);
+			rowConfidenceTextual.setVisibility(View.GONE);
+
+			rowConfidenceCircular.setProgress(1);
+			rowConfidenceCircular.setMaxProgress(1);
+			rowConfidenceCircular.setSize(confidence.numBroadcastPeers());
+			rowConfidenceCircular.setMaxSize(maxConnectedPeers - 1);
+			rowConfidenceCircular.setColors(colorInsignificant, colorInsignificant);
+		}
+		else if (confidenceType == ConfidenceType.BUILDING)
+		{
+			rowConfidenceCircular.setVisibility(View.VISIBLE);
+			rowConfidenceTextual.setVisibility(View.GONE);
+
+			rowConfidenceCircular.setProgress(confidence.getDepthInBlocks());
+			rowConfidenceCircular.setMaxProgress(isCoinBase ? Constants.NETWORK_PARAMETERS.getSpendableCoinbaseDepth()
+					: Constants.MAX_NUM_CONFIRMATIONS);
+			rowConfidenceCircular.setSize(1);
+			rowConfidenceCircular.setMaxSize(1);
+			rowConfidenceCircular.setColors(colorCircularBuilding, Color.DKGRAY);
+		}
+		else if (confidenceType == ConfidenceType.DEAD)
+		{
+			rowConfidenceCircular.setVisibility(View.GONE);
+			rowConfidenceTextual.setVisibility(View.VISIBLE);
+
+			rowConfidenceTextual.setText(CONFIDENCE_SYMBOL_DEAD);
+			rowConfidenceTextual.setTextColor(Color.RED);
+		}
+		else
 		{
-			BigInteger value = tx.getValue(walletApplication.getWallet());
-			final boolean sent = value.signum() < 0;
+			rowConfidenceCircular.setVisibility(View.GONE);
+			rowConfidenceTextual.setVisibility(View.VISIBLE);
+
+			rowConfidenceTextual.setText(CONFIDENCE_SYMBOL_UNKNOWN);
+			rowConfidenceTextual.setTextColor(colorInsignificant);
+		}
+
+		// spendability
+		final int textColor;
+		if (confidenceType == ConfidenceType.DEAD)
+			textColor = Color.RED;
+		else if (paymentChannelSpend == null)
+			textColor = DefaultCoinSelector.isSelectable(tx) ? colorSignificant : colorInsignificant;
+		else
+			textColor = DefaultCoinSelector.isSelectable(paymentChannelSpend) ? colorSignificant : colorInsignificant;
+
+		// time
+		final TextView rowTime = (TextView) row.findViewById(R.id.transaction_row_time);
+		if (rowTime != null)
+		{
+			final Date time = tx.getUpdateTime();
+			rowTime.setText(time != null ? (DateUtils.getRelativeTimeSpanString(context, time.getTime())) : null);
+			rowTime.setTextColor(textColor);
+		}
 
-			if (paymentChannelSpend != null)
-				value = value.add(paymentChannelSpend.getValue(walletApplication.getWallet()));
+		// receiving or sending
+		final TextView rowFromTo = (TextView) row.findViewById(R.id.transaction_row_fromto);
+		if (isInternal)
+			rowFromTo.setText(R.string.symbol_internal);
+		else if (sent)
+			rowFromTo.setText(R.string.symbol_to);
+		else
+			rowFromTo.setText(R.string.symbol_from);
+		rowFromTo.setTextColor(textColor);
+
+		// coinbase
+		final View rowCoinbase = row.findViewById(R.id.transaction_row_coinbase);
+		rowCoinbase.setVisibility(isCoinBase ? View.VISIBLE : View.GONE);
+
+		// address
+		final TextView rowAddress = (TextView) row.findViewById(R.id.transaction_row_address);
+		final Address address = txInfo.address;
+		final String label;
+		if (isCoinBase)
+			label = textCoinBase;
+		else if (isInternal)
+			label = textInternal;
+		else if (address != null)
+			label = AddressBookProvider.resolveLabel(context, address.toString());
+		else if (paymentChannelCreatorApp != null)
+			label = paymentChannelCreatorApp;
+		else
+			label = "?";
+		rowAddress.setTextColor(textColor);
+		rowAddress.setText(label != null ? label : address.toString());
+		rowAddress.setTypeface(label != null ? Typeface.DEFAULT : Typeface.MONOSPACE);
+
+		// value
+		final CurrencyTextView rowValue = (CurrencyTextView) row.findViewById(R.id.transaction_row_value);
+		rowValue.setTextColor(textColor);
+		rowValue.setAlwaysSigned(true);
+		rowValue.setPrecision(precision);
+		rowValue.setAmount(value);
+
+		// extended message
+		final View rowExtend = row.findViewById(R.id.transaction_row_extend);
+		if (rowExtend != null)
+		{
+			final TextView rowMessage = (TextView) row.findViewById(R.id.transaction_row_message);
+			final boolean isTimeLocked = tx.isTimeLocked();
+			final boolean contractSpendUnseen = !walletApplication.getContractHashToCreatorMap().isSpendSeen(tx.getHash());
 
-			final CircularProgressView rowConfidenceCircular = (CircularProgressView) row.findViewById(R.id.transaction_row_confidence_circular);
-			final TextView rowConfidenceTextual = (TextView) row.findViewById(R.id.transaction_row_confidence_textual);
+			rowExtend.setVisibility(View.GONE);
+			rowMessage.setText(null);
 
-			// confidence
-			if (confidenceType == ConfidenceType.PENDING)
+			if (tx.getPurpose() == Purpose.KEY_ROTATION)
 			{
-				rowConfidenceCircular.setVisibility(View.VISIBLE);
-				rowConfidenceTextual.setVisibility(View.GONE);
-
-				rowConfidenceCircular.setProgress(1);
-				rowConfidenceCircular.setMaxProgress(1);
-				rowConfidenceCircular.setSize(confidence.numBroadcastPeers());
-				rowConfidenceCircular.setMaxSize(maxConnectedPeers - 1);
-				rowConfidenceCircular.setColors(colorInsignificant, colorInsignificant);
+				rowExtend.setVisibility(View.VISIBLE);
+				rowMessage.setText(Html.fromHtml(context.getString(R.string.transaction_row_message_purpose_key_rotation)));
+				rowMessage.setTextColor(colorSignificant);
 			}
-			else if (confidenceType == ConfidenceType.BUILDING)
+			else if (paymentChannelCreatorApp != null && sent && contractSpendUnseen && isContractClosed &&
+					confidence.getConfidenceType() != ConfidenceType.DEAD)
 			{
-				rowConfidenceCircular.setVisibility(View.VISIBLE);
-				rowConfidenceTextual.setVisibility(View.GONE);
-
-				rowConfidenceCircular.setProgress(confidence.getDepthInBlocks());
-				rowConfidenceCircular.setMaxProgress(isCoinBase ? Constants.NETWORK_PARAMETERS.getSpendableCoinbaseDepth()
-						: Constants.MAX_NUM_CONFIRMATIONS);
-				rowConfidenceCircular.setSize(1);
-				rowConfidenceCircular.setMaxSize(1);
-				rowConfidenceCircular.setColors(colorCircularBuilding, Color.DKGRAY);
+				rowExtend.setVisibility(View.VISIBLE);
+				rowMessage.setText(R.string.transaction_row_message_channel_locked);
+				rowMessage.setTextColor(colorInsignificant);
 			}
-			else if (confidenceType == ConfidenceType.DEAD)
+			else if (paymentChannelSpend != null && confidence.getConfidenceType() == ConfidenceType.PENDING)
 			{
-				rowConfidenceCircular.setVisibility(View.GONE);
-				rowConfidenceTextual.setVisibility(View.VISIBLE);
-
-				rowConfidenceTextual.setText(CONFIDENCE_SYMBOL_DEAD);
-				rowConfidenceTextual.setTextColor(Color.RED);
+				rowExtend.setVisibility(View.VISIBLE);
+				rowMessage.setText(R.string.transaction_row_message_channel_unlock_unconfirmed);
+				rowMessage.setTextColor(colorInsignificant);
 			}
-			else
+			else if (isOwn && confidenceType == ConfidenceType.PENDING && confidence.numBroadcastPeers() <= 1)
 			{
-				rowConfidenceCircular.setVisibility(View.GONE);
-				rowConfidenceTextual.setVisibility(View.VISIBLE);
-
-				rowConfidenceTextual.setText(CONFIDENCE_SYMBOL_UNKNOWN);
-				rowConfidenceTextual.setTextColor(colorInsignificant);
+				rowExtend.setVisibility(View.VISIBLE);
+				rowMessage.setText(R.string.transaction_row_message_own_unbroadcasted);
+				rowMessage.setTextColor(colorInsignificant);
 			}
-
-			// spendability
-			final int textColor;
-			if (confidenceType == ConfidenceType.DEAD)
-				textColor = Color.RED;
-			else if (paymentChannelSpend == null)
-				textColor = DefaultCoinSelector.isSelectable(tx) ? colorSignificant : colorInsignificant;
-			else
-				textColor = DefaultCoinSelector.isSelectable(paymentChannelSpend) ? colorSignificant : colorInsignificant;
-
-			// time
-			final TextView rowTime = (TextView) row.findViewById(R.id.transaction_row_time);
-			if (rowTime != null)
+			else if (!sent && value.compareTo(Transaction.MIN_NONDUST_OUTPUT) < 0 && paymentChannelCreatorApp != null)
 			{
-				final Date time = tx.getUpdateTime();
-				rowTime.setText(time != null ? (DateUtils.getRelativeTimeSpanString(context, time.getTime())) : null);
-				rowTime.setTextColor(textColor);
+				rowExtend.setVisibility(View.VISIBLE);
+				rowMessage.setText(R.string.transaction_row_message_received_dust);
+				rowMessage.setTextColor(colorInsignificant);
 			}
-
-			// receiving or sending
-			final TextView rowFromTo = (TextView) row.findViewById(R.id.transaction_row_fromto);
-			if (isInternal)
-				rowFromTo.setText(R.string.symbol_internal);
-			else if (sent)
-				rowFromTo.setText(R.string.symbol_to);
-			else
-				rowFromTo.setText(R.string.symbol_from);
-			rowFromTo.setTextColor(textColor);
-
-			// coinbase
-			final View rowCoinbase = row.findViewById(R.id.transaction_row_coinbase);
-			rowCoinbase.setVisibility(isCoinBase ? View.VISIBLE : View.GONE);
-
-			// address
-			final TextView rowAddress = (TextView) row.findViewById(R.id.transaction_row_address);
-			final Address address = sent ? WalletUtils.getToAddress(tx) : WalletUtils.getFromAddress(tx);
-			final String label;
-			if (isCoinBase)
-				label = textCoinBase;
-			else if (isInternal)
-				label = textInternal;
-			else if (address != null)
-				label = resolveLabel(address.toString());
-			else if (paymentChannelCreatorApp != null)
-				label = paymentChannelCreatorApp;
-			else
-				label = "?";
-			rowAddress.setTextColor(textColor);
-			rowAddress.setText(label != null ? label : address.toString());
-			rowAddress.setTypeface(label != null ? Typeface.DEFAULT : Typeface.MONOSPACE);
-
-			// value
-			final CurrencyTextView rowValue = (CurrencyTextView) row.findViewById(R.id.transaction_row_value);
-			rowValue.setTextColor(textColor);
-			rowValue.setAlwaysSigned(true);
-			rowValue.setPrecision(precision);
-			rowValue.setAmount(value);
-
-			// extended message
-			final View rowExtend = row.findViewById(R.id.transaction_row_extend);
-			if (rowExtend != null)
+			else if (!sent && confidenceType == ConfidenceType.PENDING && isTimeLocked)
 			{
-				final TextView rowMessage = (TextView) row.findViewById(R.id.transaction_row_message);
-				final boolean isTimeLocked = tx.isTimeLocked();
-				final boolean contractSpendUnseen = !walletApplication.getContractHashToCreatorMap().isSpendSeen(tx.getHash());
-
-				rowExtend.setVisibility(View.GONE);
-
-				if (tx.getPurpose() == Purpose.KEY_ROTATION)
-				{
-					rowExtend.setVisibility(View.VISIBLE);
-					rowMessage.setText(Html.fromHtml(context.getString(R.string.transaction_row_message_purpose_key_rotation)));
-					rowMessage.setTextColor(colorSignificant);
-				}
-				else if (paymentChannelCreatorApp != null && sent && contractSpendUnseen && isContractClosed &&
-						confidence.getConfidenceType() != ConfidenceType.DEAD)
-				{
-					rowExtend.setVisibility(View.VISIBLE);
-					rowMessage.setText(R.string.transaction_row_message_channel_locked);
-					rowMessage.setTextColor(colorInsignificant);
-				}
-				else if (paymentChannelSpend != null && confidence.getConfidenceType() == ConfidenceType.PENDING)
-				{
-					rowExtend.setVisibility(View.VISIBLE);
-					rowMessage.setText(R.string.transaction_row_message_channel_unlock_unconfirmed);
-					rowMessage.setTextColor(colorInsignificant);
-				}
-				else if (isOwn && confidenceType == ConfidenceType.PENDING && confidence.numBroadcastPeers() <= 1)
-				{
-					rowExtend.setVisibility(View.VISIBLE);
-					rowMessage.setText(R.string.transaction_row_message_own_unbroadcasted);
-					rowMessage.setTextColor(colorInsignificant);
-				}
-				else if (!sent && value.compareTo(Transaction.MIN_NONDUST_OUTPUT) < 0 && paymentChannelCreatorApp != null)
-				{
-					rowExtend.setVisibility(View.VISIBLE);
-					rowMessage.setText(R.string.transaction_row_message_received_dust);
-					rowMessage.setTextColor(colorInsignificant);
-				}
-				else if (!sent && confidenceType == ConfidenceType.PENDING && isTimeLocked)
-				{
-					rowExtend.setVisibility(View.VISIBLE);
-					rowMessage.setText(R.string.transaction_row_message_received_unconfirmed_locked);
-					rowMessage.setTextColor(colorError);
-				}
-				else if (!sent && confidenceType == ConfidenceType.PENDING && !isTimeLocked)
-				{
-					rowExtend.setVisibility(View.VISIBLE);
-					rowMessage.setText(R.string.transaction_row_message_received_unconfirmed_unlocked);
-					rowMessage.setTextColor(colorInsignificant);
-				}
-				else if (!sent && confidenceType == ConfidenceType.DEAD)
-				{
-					rowExtend.setVisibility(View.VISIBLE);
-					rowMessage.setText(R.string.transaction_row_message_received_dead);
-					rowMessage.setTextColor(colorError);
-				}
+				rowExtend.setVisibility(View.VISIBLE);
+				rowMessage.setText(R.string.transaction_row_message_received_unconfirmed_locked);
+				rowMessage.setTextColor(colorError);
+			}
+			else if (!sent && confidenceType == ConfidenceType.PENDING && !isTimeLocked)
+			{
+				rowExtend.setVisibility(View.VISIBLE);
+				rowMessage.setText(R.string.transaction_row_message_received_unconfirmed_unlocked);
+				rowMessage.setTextColor(colorInsignificant);
+			}
+			else if (!sent && confidenceType == ConfidenceType.DEAD)
+			{
+				rowExtend.setVisibility(View.VISIBLE);
+				rowMessage.setText(R.string.transaction_row_message_received_dead);
+				rowMessage.setTextColor(colorError);
 			}
-		}
-		catch (final ScriptException x)
-		{
-			throw new RuntimeException(x);
-		}
-	}
 
-	private String resolveLabel(final String address)
-	{
-		final String cachedLabel = labelCache.get(address);
-		if (cachedLabel == null)
-		{
-			final String label = AddressBookProvider.resolveLabel(context, address);
-			if (label != null)
-				labelCache.put(address, label);
+			// fiat value at the time of the transaction
+			final CurrencyTextView rowFiat = (CurrencyTextView) row.findViewById(R.id.transaction_row_fiat);
+			final Date time = tx.getUpdateTime();
+			final ExchangeRateHistory exchangeRateHistory = walletApplication.getExchangeRateHistory();
+			final long rate = exchangeCurrencyCode != null && time != null ? exchangeRateHistory.getRate(exchangeCurrencyCode, time.getTime()) : 0;
+			if (rate > 0)
+			{
+				rowExtend.setVisibility(View.VISIBLE);
+				rowFiat.setVisibility(View.VISIBLE);
+				rowFiat.setAlwaysSigned(true);
+				rowFiat.setPrecision(Constants.LOCAL_PRECISION);
+				rowFiat.setPrefix(exchangeCurrencyCode);
+				rowFiat.setAmount(WalletUtils.localValue(value, BigInteger.valueOf(rate)));
+			}
 			else
-				labelCache.put(address, CACHE_NULL_MARKER);
-			return label;
-		}
-		else
-		{
-			return cachedLabel != CACHE_NULL_MARKER ? cachedLabel : null;
+			{
+				rowFiat.setVisibility(View.GONE);
+			}
 		}
 	}
-
-	public void clearLabelCache()
-	{
-		labelCache.clear();
-
-		notifyDataSetChanged();
-	}
 }
@@ -18,12 +18,10 @@
 
 package de.schildbach.wallet.ui;
 
-import java.math.BigInteger;
 import java.text.DateFormat;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -36,6 +34,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.database.ContentObserver;
+import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Typeface;
 import android.net.Uri;
@@ -51,6 +50,8 @@ import android.text.SpannableStringBuilder;
 import android.text.format.DateUtils;
 import android.text.style.StyleSpan;
 import android.view.View;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.ListView;
 
 import com.actionbarsherlock.app.SherlockListFragment;
@@ -59,22 +60,20 @@ import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
 import com.google.bitcoin.core.Address;
-import com.google.bitcoin.core.ScriptException;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.Transaction.Purpose;
-import com.google.bitcoin.core.TransactionInput;
-import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
-import com.google.bitcoin.core.Wallet;
 
-import com.google.common.annotations.VisibleForTesting;
 import de.schildbach.wallet.AddressBookProvider;
 import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.ExchangeRatesProvider;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.util.BitmapFragment;
 import de.schildbach.wallet.util.Nfc;
-import de.schildbach.wallet.util.PaymentChannelContractToCreatorMap;
 import de.schildbach.wallet.util.Qr;
-import de.schildbach.wallet.util.ThrottelingWalletChangeListener;
+import de.schildbach.wallet.util.TransactionValueCache;
+import de.schildbach.wallet.util.TransactionsFilter;
+import de.schildbach.wallet.util.WalletSnapshot;
+import de.schildbach.wallet.util.WalletSnapshotPublisher;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 import org.slf4j.Logger;
@@ -92,7 +91,6 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 
 	private AbstractWalletActivity activity;
 	private WalletApplication application;
-	private Wallet wallet;
 	private SharedPreferences prefs;
 	private NfcManager nfcManager;
 	private ContentResolver resolver;
@@ -101,11 +99,14 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 	private TransactionsListAdapter adapter;
 
 	private Direction direction;
+	private TransactionsFilter filter = null;
 
 	private final Handler handler = new Handler();
 
 	private static final String KEY_DIRECTION = "direction";
-	private static final long THROTTLE_MS = DateUtils.SECOND_IN_MILLIS;
+	private static final int ID_TRANSACTION_LOADER = 0;
+	private static final int ID_RATE_LOADER = 1;
+	private static final int PAGE_SIZE = 100;
 	private static final Uri KEY_ROTATION_URI = Uri.parse("http://bitcoin.org/en/alert/2013-08-11-android");
 
 	private static final Logger log = LoggerFactory.getLogger(TransactionsListFragment.class);
@@ -126,7 +127,8 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 		@Override
 		public void onChange(final boolean selfChange)
 		{
-			adapter.clearLabelCache();
+			// AddressBookProvider has already dropped the changed labels from its cache
+			adapter.notifyDataSetChanged();
 		}
 	};
 
@@ -137,7 +139,6 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 
 		this.activity = (AbstractWalletActivity) activity;
 		this.application = (WalletApplication) activity.getApplication();
-		this.wallet = application.getWallet();
 		this.prefs = PreferenceManager.getDefaultSharedPreferences(activity);
 		this.nfcManager = (NfcManager) activity.getSystemService(Context.NFC_SERVICE);
 		this.resolver = activity.getContentResolver();
@@ -168,9 +169,8 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 
 		prefs.registerOnSharedPreferenceChangeListener(this);
 
-		loaderManager.initLoader(0, null, this);
-
-		wallet.addEventListener(transactionChangeListener);
+		loaderManager.initLoader(ID_TRANSACTION_LOADER, null, this);
+		loaderManager.initLoader(ID_RATE_LOADER, null, rateLoaderCallbacks);
 
 		updateView();
 	}
@@ -188,15 +188,33 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 			emptyText.append("\n\n").append(getString(R.string.wallet_transactions_fragment_empty_text_howto));
 
 		setEmptyText(emptyText);
+
+		getListView().setOnScrollListener(new OnScrollListener()
+		{
+			@Override
+			public void onScroll(final AbsListView view, final int firstVisibleItem, final int visibleItemCount, final int totalItemCount)
+			{
+				// load next page when approaching the end of the loaded transactions
+				if (totalItemCount > 0 && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 4)
+				{
+					final Loader<List<Transaction>> loader = loaderManager.getLoader(ID_TRANSACTION_LOADER);
+					if (loader != null)
+						((TransactionsLoader) loader).loadMore(totalItemCount);
+				}
+			}
+
+			@Override
+			public void onScrollStateChanged(final AbsListView view, final int scrollState)
+			{
+			}
+		});
 	}
 
 	@Override
 	public void onPause()
 	{
-		wallet.removeEventListener(transactionChangeListener);
-		transactionChangeListener.removeCallbacks();
-
-		loaderManager.destroyLoader(0);
+		loaderManager.destroyLoader(ID_RATE_LOADER);
+		loaderManager.destroyLoader(ID_TRANSACTION_LOADER);
 
 		prefs.unregisterOnSharedPreferenceChangeListener(this);
 
@@ -239,55 +257,48 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 			@Override
 			public boolean onPrepareActionMode(final ActionMode mode, final Menu menu)
 			{
-				try
-				{
-					final Date time = tx.getUpdateTime();
-					final DateFormat dateFormat = android.text.format.DateFormat.getDateFormat(activity);
-					final DateFormat timeFormat = android.text.format.DateFormat.getTimeFormat(activity);
+				final Date time = tx.getUpdateTime();
+				final DateFormat dateFormat = android.text.format.DateFormat.getDateFormat(activity);
+				final DateFormat timeFormat = android.text.format.DateFormat.getTimeFormat(activity);
 
-					mode.setTitle(time != null ? (DateUtils.isToday(time.getTime()) ? getString(R.string.time_today) : dateFormat.format(time))
-							+ ", " + timeFormat.format(time) : null);
+				mode.setTitle(time != null ? (DateUtils.isToday(time.getTime()) ? getString(R.string.time_today) : dateFormat.format(time))
+						+ ", " + timeFormat.format(time) : null);
 
-					final BigInteger value = tx.getValue(wallet);
-					final boolean sent = value.signum() < 0;
+				final TransactionValueCache.Info txInfo = application.getTransactionValueCache().get(tx);
+				final boolean sent = txInfo.sent;
 
-					// payment channel
-					String paymentChannelCreatorApp = application.getContractHashToCreatorMap().getCreatorApp(tx.getHash());
+				// payment channel
+				String paymentChannelCreatorApp = application.getContractHashToCreatorMap().getCreatorApp(tx.getHash());
 
-					address = sent ? WalletUtils.getToAddress(tx) : WalletUtils.getFromAddress(tx);
+				address = txInfo.address;
 
-					final String label;
-					if (tx.isCoinBase())
-						label = getString(R.string.wallet_transactions_fragment_coinbase);
-					else if (address != null)
-						label = AddressBookProvider.resolveLabel(activity, address.toString());
-					else if (paymentChannelCreatorApp != null)
-						label = paymentChannelCreatorApp;
-					else
-						label = "?";
+				final String label;
+				if (tx.isCoinBase())
+					label = getString(R.string.wallet_transactions_fragment_coinbase);
+				else if (address != null)
+					label = AddressBookProvider.resolveLabel(activity, address.toString());
+				else if (paymentChannelCreatorApp != null)
+					label = paymentChannelCreatorApp;
+				else
+					label = "?";
 
-					final String prefix = getString(sent ? R.string.symbol_to : R.string.symbol_from) + " ";
+				final String prefix = getString(sent ? R.string.symbol_to : R.string.symbol_from) + " ";
 
-					if (tx.getPurpose() != Purpose.KEY_ROTATION)
-						mode.setSubtitle(label != null ? prefix + label : WalletUtils.formatAddress(prefix, address,
-								Constants.ADDRESS_FORMAT_GROUP_SIZE, Constants.ADDRESS_FORMAT_LINE_SIZE));
-					else
-						mode.setSubtitle(null);
+				if (tx.getPurpose() != Purpose.KEY_ROTATION)
+					mode.setSubtitle(label != null ? prefix + label : WalletUtils.formatAddress(prefix, address,
+							Constants.ADDRESS_FORMAT_GROUP_SIZE, Constants.ADDRESS_FORMAT_LINE_SIZE));
+				else
+					mode.setSubtitle(null);
 
-					menu.findItem(R.id.wallet_transactions_context_edit_address).setVisible(address != null);
+				menu.findItem(R.id.wallet_transactions_context_edit_address).setVisible(address != null);
 
-					serializedTx = tx.unsafeBitcoinSerialize();
+				serializedTx = tx.unsafeBitcoinSerialize();
 
-					menu.findItem(R.id.wallet_transactions_context_show_qr).setVisible(serializedTx.length < SHOW_QR_THRESHOLD_BYTES);
+				menu.findItem(R.id.wallet_transactions_context_show_qr).setVisible(serializedTx.length < SHOW_QR_THRESHOLD_BYTES);
 
-					Nfc.publishMimeObject(nfcManager, activity, Constants.MIMETYPE_TRANSACTION, serializedTx, false);
+				Nfc.publishMimeObject(nfcManager, activity, Constants.MIMETYPE_TRANSACTION, serializedTx, false);
 
-					return true;
-				}
-				catch (final ScriptException x)
-				{
-					return false;
-				}
+				return true;
 			}
 
 			@Override
@@ -349,7 +360,21 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 	@Override
 	public Loader<List<Transaction>> onCreateLoader(final int id, final Bundle args)
 	{
-		return new TransactionsLoader(activity, application, direction);
+		return new TransactionsLoader(activity, application, direction, filter);
+	}
+
+	/**
+	 * Restricts the list to transactions matching the given filter, or shows all transactions again if null.
+	 */
+	public void setFilter(@Nullable final TransactionsFilter filter)
+	{
+		if (filter == this.filter)
+			return;
+
+		this.filter = filter;
+
+		if (isResumed())
+			loaderManager.restartLoader(ID_TRANSACTION_LOADER, null, this);
 	}
 
 	@Override
@@ -364,28 +389,48 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 		// don't clear the adapter, because it will confuse users
 	}
 
-	private final ThrottelingWalletChangeListener transactionChangeListener = new ThrottelingWalletChangeListener(THROTTLE_MS)
+	private final LoaderCallbacks<Cursor> rateLoaderCallbacks = new LoaderManager.LoaderCallbacks<Cursor>()
 	{
 		@Override
-		public void onThrotteledWalletChanged()
+		public Loader<Cursor> onCreateLoader(final int id, final Bundle args)
+		{
+			return new ExchangeRateLoader(activity);
+		}
+
+		@Override
+		public void onLoadFinished(final Loader<Cursor> loader, final Cursor data)
+		{
+			// also called when new rates have arrived, which may have been recorded to the history
+			if (data != null && data.getCount() > 0)
+			{
+				data.moveToFirst();
+				adapter.setExchangeCurrencyCode(ExchangeRatesProvider.getExchangeRate(data).currencyCode);
+			}
+		}
+
+		@Override
+		public void onLoaderReset(final Loader<Cursor> loader)
 		{
-			adapter.notifyDataSetChanged();
 		}
 	};
 
-	@VisibleForTesting static class TransactionsLoader extends AsyncTaskLoader<List<Transaction>>
+	static class TransactionsLoader extends AsyncTaskLoader<List<Transaction>>
 	{
 		private final WalletApplication application;
-		private final Wallet wallet;
+		private final WalletSnapshotPublisher snapshotPublisher;
 		private final Direction direction;
+		private final TransactionsFilter filter;
+		private volatile int limit = PAGE_SIZE;
 
-		private TransactionsLoader(final Context context, final WalletApplication application, final Direction direction)
+		private TransactionsLoader(final Context context, final WalletApplication application, final Direction direction,
+				@Nullable final TransactionsFilter filter)
 		{
 			super(context);
 
 			this.application = application;
-			this.wallet = application.getWallet();
+			this.snapshotPublisher = application.getWalletSnapshotPublisher();
 			this.direction = direction;
+			this.filter = filter;
 		}
 
 		@Override
@@ -393,8 +438,7 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 		{
 			super.onStartLoading();
 
-			wallet.addEventListener(transactionAddRemoveListener);
-			transactionAddRemoveListener.onReorganize(null); // trigger at least one reload
+			snapshotPublisher.addListener(snapshotListener);
 
 			forceLoad();
 		}
@@ -402,113 +446,98 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 		@Override
 		protected void onStopLoading()
 		{
-			wallet.removeEventListener(transactionAddRemoveListener);
-			transactionAddRemoveListener.removeCallbacks();
+			snapshotPublisher.removeListener(snapshotListener);
 
 			super.onStopLoading();
 		}
 
-		// Handles all actual business logic, extracted out and static to enable easier testing
-		public static List<Transaction> getTransactionList(Set<Transaction> allTransactions, Wallet wallet,
-														   PaymentChannelContractToCreatorMap contractToCreatorMap,
-														   @Nullable Direction direction)
+		@Override
+		protected void onReset()
 		{
-			final List<Transaction> filteredTransactions = new ArrayList<Transaction>(allTransactions.size());
+			// a deep scroll mustn't make every snapshot from now on that long
+			snapshotPublisher.releaseTransactionsWindow(this);
+
+			super.onReset();
+		}
+
+		/**
+		 * Extends the window of loaded transactions by another page, if the given number of rows shown means the user
+		 * reached the end of the current window. Once a window comes back short, there is nothing more to load.
+		 */
+		public void loadMore(final int numShown)
+		{
+			final int currentLimit = limit;
+			if (numShown >= currentLimit)
+			{
+				limit = currentLimit + PAGE_SIZE;
+				if (filter == null)
+					snapshotPublisher.requestTransactionsWindow(this, limit);
+				onContentChanged();
+			}
+		}
 
-			try
+		@Override
+		public List<Transaction> loadInBackground()
+		{
+			final List<Transaction> transactions;
+			if (filter == null)
 			{
-				for (final Transaction tx : allTransactions)
+				// the snapshot is shared with everyone else showing the wallet, so this is just a cheap window onto it
+				final WalletSnapshot snapshot = snapshotPublisher.getSnapshot();
+				if (snapshot != null)
 				{
-					final boolean sent = tx.getValue(wallet).signum() < 0;
-					if ((direction == Direction.RECEIVED && !sent) || direction == null || (direction == Direction.SENT && sent))
-					{
-						if (!shouldSuppressTx(contractToCreatorMap, tx))
-							filteredTransactions.add(tx);
-					}
+					final List<Transaction> snapshotTransactions = snapshot.getTransactions(direction);
+					transactions = snapshotTransactions.size() > limit ? snapshotTransactions.subList(0, limit) : snapshotTransactions;
+				}
+				else
+				{
+					transactions = Collections.emptyList(); // reloaded once the first snapshot is published
 				}
 			}
-			catch (final ScriptException x)
+			else
 			{
-				throw new RuntimeException(x);
+				final Set<String> labelledAddresses = filter.query != null ? queryAddressBook(filter.query) : Collections.<String> emptySet();
+				transactions = application.getTransactionsIndex().search(direction, filter, labelledAddresses, limit);
 			}
 
-			Collections.sort(filteredTransactions, TRANSACTION_COMPARATOR);
+			// warm the label cache with a single query, rather than one query per row while binding
+			final TransactionValueCache valueCache = application.getTransactionValueCache();
+			final Set<String> addresses = new HashSet<String>();
+			for (final Transaction tx : transactions)
+			{
+				final Address address = valueCache.get(tx).address;
+				if (address != null)
+					addresses.add(address.toString());
+			}
+			AddressBookProvider.resolveLabels(getContext(), addresses);
 
-			return filteredTransactions;
+			return transactions;
 		}
 
-		private static boolean shouldSuppressTx(PaymentChannelContractToCreatorMap contractToCreatorMap, Transaction tx)
+		private Set<String> queryAddressBook(final String query)
 		{
-			// A payment channel is composed of two transactions: the contract, which puts money into a
-			// shared pot, and the refund, which settles the final balance on the blockchain. We don't
-			// want to show this complexity in the UI, so we render only the contract tx and suppress the
-			// refund tx. To find out if the current tx is a refund, we can see if it spends a contract.
-			//
-			// However, there is an edge case we must handle: if a payment channel is opened,
-			// closed and another one is opened, the second contract will spend the refund of the first. So
-			// we check for contract-ness first, and then refund-ness.
-			if (contractToCreatorMap.getCreatorApp(tx.getHash()) != null)
-				return false;
+			final Set<String> addresses = new HashSet<String>();
 
-			for (TransactionInput input : tx.getInputs())
+			final Cursor cursor = getContext().getContentResolver().query(AddressBookProvider.contentUri(getContext().getPackageName()),
+					new String[] { AddressBookProvider.KEY_ADDRESS }, AddressBookProvider.SELECTION_QUERY, new String[] { query }, null);
+			if (cursor != null)
 			{
-				final String creatorOfConnectedOutput = contractToCreatorMap.getCreatorApp(input.getOutpoint().getHash());
-				if (creatorOfConnectedOutput == null)
-					continue;
-				if (log.isDebugEnabled())
-				{
-					if (input.getConnectedOutput() != null)
-						log.debug("Skipping payment channel spend {} for '{}' with connected output {}",
-								tx.getHashAsString(), creatorOfConnectedOutput, input.getOutpoint().getHash());
-					else
-						log.debug("Skipping payment channel spend {} for '{}' without connected output {}",
-								tx.getHashAsString(), creatorOfConnectedOutput, input.getOutpoint().getHash());
-				}
-				return true;
+				while (cursor.moveToNext())
+					addresses.add(cursor.getString(0));
+				cursor.close();
 			}
-			return false;
-		}
 
-		@Override
-		public List<Transaction> loadInBackground()
-		{
-			return getTransactionList(wallet.getTransactions(true), wallet, application.getContractHashToCreatorMap(), direction);
+			return addresses;
 		}
 
-		private final ThrottelingWalletChangeListener transactionAddRemoveListener = new ThrottelingWalletChangeListener(THROTTLE_MS, true, true,
-				false)
+		private final WalletSnapshotPublisher.Listener snapshotListener = new WalletSnapshotPublisher.Listener()
 		{
 			@Override
-			public void onThrotteledWalletChanged()
+			public void onSnapshotPublished(final WalletSnapshot snapshot)
 			{
 				forceLoad();
 			}
 		};
-
-		@VisibleForTesting static final Comparator<Transaction> TRANSACTION_COMPARATOR = new Comparator<Transaction>()
-		{
-			@Override
-			public int compare(final Transaction tx1, final Transaction tx2)
-			{
-				final boolean pending1 = tx1.getConfidence().getConfidenceType() == ConfidenceType.PENDING;
-				final boolean pending2 = tx2.getConfidence().getConfidenceType() == ConfidenceType.PENDING;
-
-				if (pending1 != pending2)
-					return pending1 ? -1 : 1;
-
-				final Date updateTime1 = tx1.getUpdateTime();
-				final long time1 = updateTime1 != null ? updateTime1.getTime() : 0;
-				final Date updateTime2 = tx2.getUpdateTime();
-				final long time2 = updateTime2 != null ? updateTime2.getTime() : 0;
-
-				if (time1 > time2)
-					return -1;
-				else if (time1 < time2)
-					return 1;
-				else
-					return 0;
-			}
-		};
 	}
 
 	@Override
@@ -521,7 +550,5 @@ public class TransactionsListFragment extends SherlockListFragment implements Lo
 	private void updateView()
 	{
 		adapter.setPrecision(Integer.parseInt(prefs.getString(Constants.PREFS_KEY_BTC_PRECISION, Constants.PREFS_DEFAULT_BTC_PRECISION)));
-
-		adapter.clearLabelCache();
 	}
 }
@@ -18,6 +18,7 @@
 package de.schildbach.wallet.ui;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -54,9 +55,11 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.database.Cursor;
 import android.net.Uri;
 import android.nfc.NdefMessage;
 import android.nfc.NfcAdapter;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.preference.PreferenceManager;
@@ -76,6 +79,8 @@ import com.google.bitcoin.core.VerificationException;
 import com.google.bitcoin.core.Wallet;
 
 import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.ExchangeRatesProvider;
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.util.CrashReporter;
 import de.schildbach.wallet.util.Crypto;
@@ -83,6 +88,7 @@ import de.schildbach.wallet.util.HttpGetThread;
 import de.schildbach.wallet.util.Iso8601Format;
 import de.schildbach.wallet.util.Nfc;
 import de.schildbach.wallet.util.Qr;
+import de.schildbach.wallet.util.TransactionsExporter;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 
@@ -99,6 +105,8 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 	private Wallet wallet;
 	private SharedPreferences prefs;
 
+	private ExportTransactionsTask exportTransactionsTask = null;
+
 	private static final int REQUEST_CODE_SCAN = 0;
 
 	private static final Logger log = LoggerFactory.getLogger(WalletActivity.class);
@@ -122,6 +130,16 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 		handleIntent(getIntent());
 	}
 
+	@Override
+	protected void onDestroy()
+	{
+		// the export goes on, but there's no window left to report to
+		if (exportTransactionsTask != null)
+			exportTransactionsTask.cancel(false);
+
+		super.onDestroy();
+	}
+
 	@Override
 	protected void onResume()
 	{
@@ -222,6 +240,7 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 		menu.findItem(R.id.wallet_options_import_keys).setEnabled(
 				Environment.MEDIA_MOUNTED.equals(externalStorageState) || Environment.MEDIA_MOUNTED_READ_ONLY.equals(externalStorageState));
 		menu.findItem(R.id.wallet_options_export_keys).setEnabled(Environment.MEDIA_MOUNTED.equals(externalStorageState));
+		menu.findItem(R.id.wallet_options_export_transactions).setEnabled(Environment.MEDIA_MOUNTED.equals(externalStorageState));
 		menu.findItem(R.id.wallet_options_disconnect).setVisible(prefs.getBoolean(Constants.PREFS_KEY_CONNECTIVITY_NOTIFICATION, false));
 
 		return true;
@@ -264,6 +283,10 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 				handleExportKeys();
 				return true;
 
+			case R.id.wallet_options_export_transactions:
+				handleExportTransactions();
+				return true;
+
 			case R.id.wallet_options_disconnect:
 				handleDisconnect();
 				return true;
@@ -314,6 +337,15 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 		prefs.edit().putBoolean(Constants.PREFS_KEY_REMIND_BACKUP, false).commit();
 	}
 
+	private void handleExportTransactions()
+	{
+		if (exportTransactionsTask != null)
+			return;
+
+		exportTransactionsTask = new ExportTransactionsTask();
+		exportTransactionsTask.execute();
+	}
+
 	private void handleDisconnect()
 	{
 		getWalletApplication().stopBlockchainService();
@@ -912,6 +944,92 @@ public final class WalletActivity extends AbstractOnDemandServiceActivity
 		}
 	}
 
+	private final class ExportTransactionsTask extends AsyncTask<Void, Void, IOException>
+	{
+		private File file;
+
+		@Override
+		protected IOException doInBackground(final Void... params)
+		{
+			final DateFormat dateFormat = Iso8601Format.newDateFormat();
+			dateFormat.setTimeZone(TimeZone.getDefault());
+			file = new File(Constants.EXTERNAL_WALLET_BACKUP_DIR, Constants.EXTERNAL_TRANSACTIONS_EXPORT + "-" + dateFormat.format(new Date())
+					+ ".csv");
+
+			Writer out = null;
+			try
+			{
+				Constants.EXTERNAL_WALLET_BACKUP_DIR.mkdirs();
+
+				final ExchangeRate exchangeRate = queryExchangeRate();
+				final TransactionsExporter exporter = new TransactionsExporter(WalletActivity.this, application.getTransactionValueCache(),
+						application.getExchangeRateHistory(), exchangeRate != null ? exchangeRate.currencyCode : null);
+				out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Constants.UTF_8));
+				exporter.export(application.getTransactionsIndex().timeOrdered(), out, TransactionsExporter.Format.CSV);
+				out.close();
+				out = null;
+
+				return null;
+			}
+			catch (final IOException x)
+			{
+				log.error("problem exporting transactions", x);
+
+				return x;
+			}
+			finally
+			{
+				if (out != null)
+				{
+					try
+					{
+						out.close();
+					}
+					catch (final IOException x)
+					{
+						// swallow
+					}
+				}
+			}
+		}
+
+		@Override
+		protected void onPostExecute(final IOException x)
+		{
+			exportTransactionsTask = null;
+
+			if (isFinishing())
+				return;
+
+			if (x == null)
+				new AlertDialog.Builder(WalletActivity.this).setInverseBackgroundForced(true)
+						.setMessage(getString(R.string.export_transactions_success, file)).setNeutralButton(R.string.button_dismiss, null).show();
+			else
+				new AlertDialog.Builder(WalletActivity.this).setInverseBackgroundForced(true).setIcon(android.R.drawable.ic_dialog_alert)
+						.setTitle(R.string.import_export_keys_dialog_failure_title)
+						.setMessage(getString(R.string.export_transactions_failure, x.getMessage())).setNeutralButton(R.string.button_dismiss, null)
+						.show();
+		}
+	}
+
+	private ExchangeRate queryExchangeRate()
+	{
+		final String currencyCode = prefs.getString(Constants.PREFS_KEY_EXCHANGE_CURRENCY, null);
+		final Cursor cursor = getContentResolver().query(ExchangeRatesProvider.contentUri(getPackageName()), null,
+				ExchangeRatesProvider.KEY_CURRENCY_CODE, new String[] { currencyCode }, null);
+		if (cursor == null)
+			return null;
+
+		try
+		{
+			return cursor.moveToFirst() ? ExchangeRatesProvider.getExchangeRate(cursor) : null;
+		}
+		finally
+		{
+			cursor.close();
+		}
+	}
+
 	private void mailPrivateKeys(final File file)
 	{
 		final Intent intent = new Intent(Intent.ACTION_SEND);
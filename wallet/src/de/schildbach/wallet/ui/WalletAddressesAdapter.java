@@ -73,6 +73,12 @@ public class WalletAddressesAdapter extends BaseAdapter
 		this.keys.clear();
 		this.keys.addAll(keys);
 
+		// one query for all labels, rather than one per row
+		final List<String> addresses = new ArrayList<String>(keys.size());
+		for (final ECKey key : keys)
+			addresses.add(key.toAddress(Constants.NETWORK_PARAMETERS).toString());
+		AddressBookProvider.resolveLabels(context, addresses);
+
 		notifyDataSetChanged();
 	}
 
@@ -42,11 +42,9 @@ import com.actionbarsherlock.view.ActionMode;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
-import com.google.bitcoin.core.AbstractWalletEventListener;
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.Wallet;
-import com.google.bitcoin.core.WalletEventListener;
 import com.google.bitcoin.uri.BitcoinURI;
 
 import de.schildbach.wallet.AddressBookProvider;
@@ -54,6 +52,8 @@ import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.util.BitmapFragment;
 import de.schildbach.wallet.util.Qr;
+import de.schildbach.wallet.util.WalletSnapshot;
+import de.schildbach.wallet.util.WalletSnapshotPublisher;
 import de.schildbach.wallet.util.WalletUtils;
 import de.schildbach.wallet_test.R;
 
@@ -104,8 +104,11 @@ public final class WalletAddressesFragment extends SherlockListFragment
 
 		contentResolver.registerContentObserver(AddressBookProvider.contentUri(activity.getPackageName()), true, contentObserver);
 
-		wallet.addEventListener(walletListener);
-		walletListener.onKeysAdded(null, null); // trigger initial load of keys
+		final WalletSnapshotPublisher snapshotPublisher = application.getWalletSnapshotPublisher();
+		snapshotPublisher.addListener(snapshotListener);
+		final WalletSnapshot snapshot = snapshotPublisher.getSnapshot();
+		if (snapshot != null)
+			snapshotListener.onSnapshotPublished(snapshot); // trigger initial load of keys
 
 		updateView();
 	}
@@ -113,7 +116,7 @@ public final class WalletAddressesFragment extends SherlockListFragment
 	@Override
 	public void onPause()
 	{
-		wallet.removeEventListener(walletListener);
+		application.getWalletSnapshotPublisher().removeListener(snapshotListener);
 
 		contentResolver.unregisterContentObserver(contentObserver);
 
@@ -283,21 +286,19 @@ public final class WalletAddressesFragment extends SherlockListFragment
 		}
 	};
 
-	private final WalletEventListener walletListener = new AbstractWalletEventListener()
+	private final WalletSnapshotPublisher.Listener snapshotListener = new WalletSnapshotPublisher.Listener()
 	{
+		private List<ECKey> keys = null;
+
 		@Override
-		public void onKeysAdded(final Wallet wallet, final List<ECKey> keysAdded)
+		public void onSnapshotPublished(final WalletSnapshot snapshot)
 		{
-			final List<ECKey> keys = application.getWallet().getKeys();
-
-			handler.post(new Runnable()
+			// the key list is only replaced when keys have been added
+			if (snapshot.keys != keys)
 			{
-				@Override
-				public void run()
-				{
-					adapter.replace(keys);
-				}
-			});
+				keys = snapshot.keys;
+				adapter.replace(keys);
+			}
 		}
 	};
 }
@@ -22,23 +22,22 @@ import java.math.BigInteger;
 import android.content.Context;
 import android.support.v4.content.AsyncTaskLoader;
 
-import com.google.bitcoin.core.Wallet;
-import com.google.bitcoin.core.Wallet.BalanceType;
-
-import de.schildbach.wallet.util.ThrottelingWalletChangeListener;
+import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.util.WalletSnapshot;
+import de.schildbach.wallet.util.WalletSnapshotPublisher;
 
 /**
  * @author Andreas Schildbach
  */
 public final class WalletBalanceLoader extends AsyncTaskLoader<BigInteger>
 {
-	private final Wallet wallet;
+	private final WalletSnapshotPublisher snapshotPublisher;
 
-	public WalletBalanceLoader(final Context context, final Wallet wallet)
+	public WalletBalanceLoader(final Context context, final WalletApplication application)
 	{
 		super(context);
 
-		this.wallet = wallet;
+		this.snapshotPublisher = application.getWalletSnapshotPublisher();
 	}
 
 	@Override
@@ -46,7 +45,7 @@ public final class WalletBalanceLoader extends AsyncTaskLoader<BigInteger>
 	{
 		super.onStartLoading();
 
-		wallet.addEventListener(walletChangeListener);
+		snapshotPublisher.addListener(snapshotListener);
 
 		forceLoad();
 	}
@@ -54,8 +53,7 @@ public final class WalletBalanceLoader extends AsyncTaskLoader<BigInteger>
 	@Override
 	protected void onStopLoading()
 	{
-		wallet.removeEventListener(walletChangeListener);
-		walletChangeListener.removeCallbacks();
+		snapshotPublisher.removeListener(snapshotListener);
 
 		super.onStopLoading();
 	}
@@ -63,13 +61,14 @@ public final class WalletBalanceLoader extends AsyncTaskLoader<BigInteger>
 	@Override
 	public BigInteger loadInBackground()
 	{
-		return wallet.getBalance(BalanceType.ESTIMATED);
+		final WalletSnapshot snapshot = snapshotPublisher.getSnapshot();
+		return snapshot != null ? snapshot.estimatedBalance : null; // reloaded once the first snapshot is published
 	}
 
-	private final ThrottelingWalletChangeListener walletChangeListener = new ThrottelingWalletChangeListener()
+	private final WalletSnapshotPublisher.Listener snapshotListener = new WalletSnapshotPublisher.Listener()
 	{
 		@Override
-		public void onThrotteledWalletChanged()
+		public void onSnapshotPublished(final WalletSnapshot snapshot)
 		{
 			forceLoad();
 		}
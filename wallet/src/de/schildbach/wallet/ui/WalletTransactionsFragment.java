@@ -17,31 +17,63 @@
 
 package de.schildbach.wallet.ui;
 
+import java.math.BigInteger;
+import java.util.Date;
+
+import javax.annotation.Nullable;
+
+import android.content.Context;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentStatePagerAdapter;
 import android.support.v4.view.ViewPager;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.text.format.DateUtils;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.inputmethod.InputMethodManager;
+import android.widget.EditText;
+
+import com.actionbarsherlock.app.SherlockFragment;
+import com.actionbarsherlock.view.Menu;
+import com.actionbarsherlock.view.MenuInflater;
+import com.actionbarsherlock.view.MenuItem;
+
 import de.schildbach.wallet.ui.TransactionsListFragment.Direction;
+import de.schildbach.wallet.util.TransactionsFilter;
 import de.schildbach.wallet.util.ViewPagerTabs;
 import de.schildbach.wallet_test.R;
 
 /**
  * @author Andreas Schildbach
  */
-public final class WalletTransactionsFragment extends Fragment
+public final class WalletTransactionsFragment extends SherlockFragment implements TransactionsFilterDialogFragment.Listener
 {
 	private static final int INITIAL_PAGE = 1;
 
+	// indexed by the position in wallet_transactions_filter_dialog_period_labels
+	private static final long[] PERIODS_MS = { 0, DateUtils.DAY_IN_MILLIS, DateUtils.WEEK_IN_MILLIS, 30 * DateUtils.DAY_IN_MILLIS,
+			DateUtils.YEAR_IN_MILLIS };
+
+	private PagerAdapter pagerAdapter;
+
+	private String query = null;
+	private BigInteger minValue = null, maxValue = null;
+	private int period = 0;
+	private Date fromTime = null;
+	private TransactionsFilter filter = null;
+
 	@Override
 	public void onCreate(final Bundle savedInstanceState)
 	{
 		super.onCreate(savedInstanceState);
 
 		setRetainInstance(true);
+		setHasOptionsMenu(true);
 	}
 
 	@Override
@@ -53,7 +85,8 @@ public final class WalletTransactionsFragment extends Fragment
 		pagerTabs.addTabLabels(R.string.wallet_transactions_fragment_tab_received, R.string.wallet_transactions_fragment_tab_all,
 				R.string.wallet_transactions_fragment_tab_sent);
 
-		final PagerAdapter pagerAdapter = new PagerAdapter(getFragmentManager());
+		pagerAdapter = new PagerAdapter(getFragmentManager());
+		pagerAdapter.setFilter(filter);
 
 		final ViewPager pager = (ViewPager) view.findViewById(R.id.transactions_pager);
 		pager.setAdapter(pagerAdapter);
@@ -66,13 +99,143 @@ public final class WalletTransactionsFragment extends Fragment
 		return view;
 	}
 
+	@Override
+	public void onCreateOptionsMenu(final Menu menu, final MenuInflater inflater)
+	{
+		inflater.inflate(R.menu.wallet_transactions_fragment_options, menu);
+
+		final MenuItem searchItem = menu.findItem(R.id.wallet_transactions_options_search);
+		final EditText searchView = (EditText) searchItem.getActionView();
+		if (query != null)
+		{
+			searchView.setText(query);
+			searchItem.expandActionView();
+		}
+
+		searchView.addTextChangedListener(new TextWatcher()
+		{
+			@Override
+			public void afterTextChanged(final Editable s)
+			{
+				query = s.toString();
+				updateFilter();
+			}
+
+			@Override
+			public void beforeTextChanged(final CharSequence s, final int start, final int count, final int after)
+			{
+			}
+
+			@Override
+			public void onTextChanged(final CharSequence s, final int start, final int before, final int count)
+			{
+			}
+		});
+
+		searchItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener()
+		{
+			@Override
+			public boolean onMenuItemActionExpand(final MenuItem item)
+			{
+				searchView.requestFocus();
+				inputMethodManager().showSoftInput(searchView, 0);
+				return true;
+			}
+
+			@Override
+			public boolean onMenuItemActionCollapse(final MenuItem item)
+			{
+				inputMethodManager().hideSoftInputFromWindow(searchView.getWindowToken(), 0);
+
+				// leaving the search shows all transactions again
+				query = null;
+				minValue = null;
+				maxValue = null;
+				period = 0;
+				fromTime = null;
+				searchView.setText(null);
+				updateFilter();
+				return true;
+			}
+		});
+
+		super.onCreateOptionsMenu(menu, inflater);
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(final MenuItem item)
+	{
+		switch (item.getItemId())
+		{
+			case R.id.wallet_transactions_options_filter:
+				TransactionsFilterDialogFragment.show(getFragmentManager(), this, minValue, maxValue, period);
+				return true;
+		}
+
+		return super.onOptionsItemSelected(item);
+	}
+
+	@Override
+	public void onFilterRanges(@Nullable final BigInteger minValue, @Nullable final BigInteger maxValue, final int period)
+	{
+		this.minValue = minValue;
+		this.maxValue = maxValue;
+		this.period = period;
+		this.fromTime = period > 0 ? new Date(System.currentTimeMillis() - PERIODS_MS[period]) : null;
+
+		updateFilter();
+	}
+
+	private void updateFilter()
+	{
+		filter = new TransactionsFilter(query, minValue, maxValue, fromTime, null);
+		if (filter.query == null && minValue == null && maxValue == null && fromTime == null)
+			filter = null;
+
+		if (pagerAdapter != null)
+			pagerAdapter.setFilter(filter);
+	}
+
+	private InputMethodManager inputMethodManager()
+	{
+		return (InputMethodManager) getActivity().getSystemService(Context.INPUT_METHOD_SERVICE);
+	}
+
 	private static class PagerAdapter extends FragmentStatePagerAdapter
 	{
+		private final SparseArray<TransactionsListFragment> fragments = new SparseArray<TransactionsListFragment>();
+		private TransactionsFilter filter = null;
+
 		public PagerAdapter(final FragmentManager fm)
 		{
 			super(fm);
 		}
 
+		public void setFilter(@Nullable final TransactionsFilter filter)
+		{
+			this.filter = filter;
+
+			for (int i = 0; i < fragments.size(); i++)
+				fragments.valueAt(i).setFilter(filter);
+		}
+
+		@Override
+		public Object instantiateItem(final ViewGroup container, final int position)
+		{
+			// also hands out pages restored by the fragment manager, which may have missed a filter change
+			final TransactionsListFragment fragment = (TransactionsListFragment) super.instantiateItem(container, position);
+			fragment.setFilter(filter);
+			fragments.put(position, fragment);
+			return fragment;
+		}
+
+		@Override
+		public void destroyItem(final ViewGroup container, final int position, final Object object)
+		{
+			fragments.remove(position);
+			super.destroyItem(container, position, object);
+		}
+
 		@Override
 		public int getCount()
 		{
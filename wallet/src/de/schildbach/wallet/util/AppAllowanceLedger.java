@@ -0,0 +1,315 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+import net.jcip.annotations.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of how much value each app is still allowed to spend via payment channels.
+ *
+ * <p>The current allowances live in memory. Every change is appended to a journal file as a small checksummed record
+ * holding the new absolute value, so replaying the journal is idempotent and a torn record at the tail is simply
+ * dropped. Appending is a single write into the page cache and survives the process dying; flushing the journal to the
+ * storage device (fsync) is batched on a background thread, so many payments in quick succession share one sync. The
+ * journal is compacted into a snapshot of the current values once it has grown enough.</p>
+ */
+public class AppAllowanceLedger {
+	private static final Logger log = LoggerFactory.getLogger(AppAllowanceLedger.class);
+
+	private static final int COMPACTION_MIN_RECORDS = 256;
+
+	private final File journalFile;
+	private final long syncDelayMs;
+	private final ScheduledExecutorService syncExecutor;
+
+	@GuardedBy("this") private final Map<String, Long> allowances = new HashMap<String, Long>();
+	@GuardedBy("this") private FileOutputStream journal;
+	@GuardedBy("this") private int journalRecords = 0;
+	@GuardedBy("this") private boolean syncScheduled = false;
+
+	/**
+	 * Opens (or creates) the ledger journal at the given location and replays it into memory.
+	 *
+	 * @param syncDelayMs how long appended records may wait before they are synced to the storage device
+	 */
+	public AppAllowanceLedger(File journalFile, long syncDelayMs) throws IOException {
+		this.journalFile = journalFile;
+		this.syncDelayMs = syncDelayMs;
+		this.syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "allowance ledger sync");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		synchronized (this) {
+			long validLength = replay();
+			if (journalFile.exists() && journalFile.length() > validLength) {
+				log.warn("Dropping {} bytes of incomplete allowance journal records", journalFile.length() - validLength);
+				truncate(validLength);
+			}
+			journal = new FileOutputStream(journalFile, true);
+		}
+	}
+
+	/**
+	 * Returns the value the given app may still spend, or 0 if it was never granted anything.
+	 */
+	public synchronized long get(String appId) {
+		Long value = allowances.get(appId);
+		return value == null ? 0 : value;
+	}
+
+	/**
+	 * Adds the given (possibly negative) amount to the value remaining for the given app and returns the new value.
+	 * The change is in the journal by the time this method returns; syncing it to the storage device happens shortly
+	 * after, in the background.
+	 */
+	public synchronized long add(String appId, long delta) {
+		long newValue = get(appId) + delta;
+		allowances.put(appId, newValue);
+		try {
+			journal.write(encodeRecord(appId, newValue));
+			journalRecords++;
+		} catch (IOException e) {
+			// The in-memory value stays authoritative for this process; the next compaction rewrites it.
+			log.error("Failed to append allowance change for " + appId + " to journal", e);
+		}
+		scheduleSync();
+		return newValue;
+	}
+
+	/**
+	 * Returns a copy of the values remaining for all apps that have been granted an allowance.
+	 */
+	public synchronized Map<String, Long> getAll() {
+		return new HashMap<String, Long>(allowances);
+	}
+
+	public synchronized boolean isEmpty() {
+		return allowances.isEmpty();
+	}
+
+	/**
+	 * Syncs all journal records written so far to the storage device.
+	 */
+	public void sync() throws IOException {
+		FileChannel channel;
+		synchronized (this) {
+			syncScheduled = false;
+			if (journal == null)
+				return;
+			channel = journal.getChannel();
+		}
+		try {
+			channel.force(false);
+		} catch (ClosedChannelException e) {
+			// Compaction replaced the journal under us and has already synced the replacement.
+		}
+	}
+
+	/**
+	 * Syncs outstanding records and closes the journal. The ledger must not be modified afterwards.
+	 */
+	public void close() throws IOException {
+		syncExecutor.shutdown();
+		sync();
+		synchronized (this) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+	@GuardedBy("this")
+	private void scheduleSync() {
+		if (syncScheduled)
+			return;
+		syncScheduled = true;
+		syncExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sync();
+					maybeCompact();
+				} catch (IOException e) {
+					log.error("Failed to sync allowance journal", e);
+				}
+			}
+		}, syncDelayMs, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void maybeCompact() throws IOException {
+		if (journal == null || journalRecords < Math.max(COMPACTION_MIN_RECORDS, allowances.size() * 4))
+			return;
+
+		File tmpFile = new File(journalFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		try {
+			for (Map.Entry<String, Long> entry : allowances.entrySet())
+				out.write(encodeRecord(entry.getKey(), entry.getValue()));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		journal.close();
+		boolean renamed = tmpFile.renameTo(journalFile);
+		journal = new FileOutputStream(journalFile, true);
+		if (!renamed)
+			throw new IOException("Could not replace " + journalFile + " with compacted journal");
+		log.info("Compacted allowance journal from {} to {} records", journalRecords, allowances.size());
+		journalRecords = allowances.size();
+	}
+
+	// Reads all complete records into memory and returns the length of the journal they occupy.
+	@GuardedBy("this")
+	private long replay() throws IOException {
+		if (!journalFile.exists())
+			return 0;
+
+		long validLength = 0;
+		CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+		DataInputStream in = new DataInputStream(counter);
+		try {
+			while (true) {
+				Record record = readRecord(in);
+				if (record == null)
+					break;
+				allowances.put(record.appId, record.value);
+				journalRecords++;
+				validLength = counter.count;
+			}
+		} finally {
+			in.close();
+		}
+		return validLength;
+	}
+
+	private void truncate(long length) throws IOException {
+		FileOutputStream out = new FileOutputStream(journalFile, true);
+		try {
+			out.getChannel().truncate(length);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] encodeRecord(String appId, long value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(appId.length() + 16);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(appId);
+		out.writeLong(value);
+		out.writeInt(checksum(bytes.toByteArray()));
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static int checksum(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	private static class Record {
+		final String appId;
+		final long value;
+
+		Record(String appId, long value) {
+			this.appId = appId;
+			this.value = value;
+		}
+	}
+
+	// Returns null at the end of the journal or at the first incomplete or corrupt record.
+	@Nullable
+	private static Record readRecord(DataInputStream in) throws IOException {
+		try {
+			String appId = in.readUTF();
+			long value = in.readLong();
+			int checksum = in.readInt();
+			ByteArrayOutputStream payload = new ByteArrayOutputStream(appId.length() + 12);
+			DataOutputStream out = new DataOutputStream(payload);
+			out.writeUTF(appId);
+			out.writeLong(value);
+			if (checksum != checksum(payload.toByteArray())) {
+				log.warn("Allowance journal record for {} failed checksum", appId);
+				return null;
+			}
+			return new Record(appId, value);
+		} catch (EOFException e) {
+			return null;
+		} catch (UTFDataFormatException e) {
+			// Torn record
+			return null;
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+	}
+}
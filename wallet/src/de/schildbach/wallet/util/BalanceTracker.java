@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.text.format.DateUtils;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.Wallet.BalanceType;
+import com.google.bitcoin.core.WalletEventListener;
+
+/**
+ * Keeps the wallet balance at hand, so displaying it doesn't walk all unspent outputs each time.
+ *
+ * The estimated balance is the sum of the values of all transactions that are not dead, so it is maintained by adding
+ * the value of each transaction as it enters the wallet and subtracting it again should it die. The value counted for
+ * each transaction is remembered, so when it changes, like it does for a spend whose inputs get connected later, only
+ * the difference is applied. The available balance depends on coin selection and thus on the confidence of many
+ * transactions, so it is only recomputed on the next read after a change. Every once in a while after a wallet change,
+ * the estimated balance is verified against a full computation on the wallet's event thread, and corrected if it
+ * drifted.
+ *
+ * Must be registered with the wallet after the {@link TransactionValueCache} and before any listener that reads from
+ * it.
+ */
+public class BalanceTracker implements WalletEventListener
+{
+	private static final long VERIFY_INTERVAL_MS = DateUtils.MINUTE_IN_MILLIS * 10;
+
+	private final Wallet wallet;
+	private final TransactionValueCache valueCache;
+
+	// all guarded by this
+	private boolean built = false;
+	private final Map<Sha256Hash, BigInteger> counted = new HashMap<Sha256Hash, BigInteger>();
+	private BigInteger estimated;
+	private BigInteger available;
+	private long lastVerified;
+
+	private static final Logger log = LoggerFactory.getLogger(BalanceTracker.class);
+
+	public BalanceTracker(final Wallet wallet, final TransactionValueCache valueCache)
+	{
+		this.wallet = wallet;
+		this.valueCache = valueCache;
+	}
+
+	public BigInteger getBalance(final BalanceType type)
+	{
+		return type == BalanceType.AVAILABLE ? getAvailable() : getEstimated();
+	}
+
+	public synchronized BigInteger getEstimated()
+	{
+		if (!built)
+			build();
+
+		return estimated;
+	}
+
+	public synchronized BigInteger getAvailable()
+	{
+		if (available == null)
+			available = wallet.getBalance(BalanceType.AVAILABLE);
+
+		return available;
+	}
+
+	public synchronized void invalidate()
+	{
+		built = false;
+		counted.clear();
+		estimated = null;
+		available = null;
+	}
+
+	private void build()
+	{
+		for (final Transaction tx : wallet.getTransactions(true))
+			if (tx.getConfidence().getConfidenceType() != ConfidenceType.DEAD)
+				counted.put(tx.getHash(), valueCache.getValue(tx));
+
+		estimated = wallet.getBalance(BalanceType.ESTIMATED);
+		lastVerified = System.currentTimeMillis();
+		built = true;
+	}
+
+	private void verify()
+	{
+		final BigInteger actual = wallet.getBalance(BalanceType.ESTIMATED);
+		if (!actual.equals(estimated))
+		{
+			log.warn("tracked estimated balance " + estimated + " drifted from actual " + actual + ", correcting");
+			invalidate();
+			build();
+		}
+
+		lastVerified = System.currentTimeMillis();
+	}
+
+	private synchronized void update(final Transaction tx)
+	{
+		available = null;
+
+		if (!built)
+			return;
+
+		count(tx);
+
+		// spenders that arrived earlier have just got their inputs connected, which changes their value
+		for (final TransactionOutput output : tx.getOutputs())
+		{
+			final TransactionInput spentBy = output.getSpentBy();
+			if (spentBy != null)
+				count(spentBy.getParentTransaction());
+		}
+	}
+
+	private void count(final Transaction tx)
+	{
+		final Sha256Hash hash = tx.getHash();
+		final boolean dead = tx.getConfidence().getConfidenceType() == ConfidenceType.DEAD;
+		final BigInteger value = !dead && wallet.getTransaction(hash) != null ? valueCache.getValue(tx) : null;
+
+		final BigInteger previousValue = value != null ? counted.put(hash, value) : counted.remove(hash);
+		if (value != null)
+			estimated = estimated.add(value);
+		if (previousValue != null)
+			estimated = estimated.subtract(previousValue);
+	}
+
+	@Override
+	public void onCoinsReceived(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
+	{
+		update(tx);
+	}
+
+	@Override
+	public void onCoinsSent(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
+	{
+		update(tx);
+	}
+
+	@Override
+	public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx)
+	{
+		update(tx);
+	}
+
+	@Override
+	public void onReorganize(final Wallet wallet)
+	{
+		invalidate();
+	}
+
+	@Override
+	public void onKeysAdded(final Wallet wallet, final List<ECKey> keys)
+	{
+		// new keys can make more outputs ours
+		invalidate();
+	}
+
+	@Override
+	public void onWalletChanged(final Wallet wallet)
+	{
+		// catches anything not covered by the other events, such as committed spends
+		synchronized (this)
+		{
+			available = null;
+
+			if (built && System.currentTimeMillis() - lastVerified > VERIFY_INTERVAL_MS)
+				verify();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletEventListener;
+
+/**
+ * Maps block hashes to the wallet transactions that appear in them, so a list of blocks can be annotated with one
+ * lookup per block rather than a scan of all transactions.
+ *
+ * The index is built on first use and then updated from wallet events. Appearing in a block is signalled as a
+ * confidence change, which also happens for every transaction on each new block, so those are checked cheaply first.
+ */
+public class BlockTransactionsIndex implements WalletEventListener
+{
+	private final Wallet wallet;
+
+	// all guarded by this
+	private boolean built = false;
+	private final Map<Sha256Hash, Set<Transaction>> byBlock = new HashMap<Sha256Hash, Set<Transaction>>();
+	private final Map<Sha256Hash, Integer> indexedAppearances = new HashMap<Sha256Hash, Integer>();
+
+	private static final Logger log = LoggerFactory.getLogger(BlockTransactionsIndex.class);
+
+	public BlockTransactionsIndex(final Wallet wallet)
+	{
+		this.wallet = wallet;
+	}
+
+	/**
+	 * Returns the wallet transactions that appear in the given block, if any.
+	 */
+	public synchronized List<Transaction> getTransactions(final Sha256Hash blockHash)
+	{
+		if (!built)
+			build();
+
+		final Set<Transaction> transactions = byBlock.get(blockHash);
+		if (transactions == null)
+			return Collections.emptyList();
+
+		final List<Transaction> result = new ArrayList<Transaction>(transactions.size());
+		for (final Transaction tx : transactions)
+			if (wallet.getTransaction(tx.getHash()) != null) // might have been cleared from the wallet
+				result.add(tx);
+		return result;
+	}
+
+	/**
+	 * Drops the index, so that it is rebuilt from the wallet on next use.
+	 */
+	public synchronized void invalidate()
+	{
+		built = false;
+		byBlock.clear();
+		indexedAppearances.clear();
+	}
+
+	private void build()
+	{
+		final long start = System.currentTimeMillis();
+
+		for (final Transaction tx : wallet.getTransactions(true))
+			index(tx);
+		built = true;
+
+		log.info("indexed " + byBlock.size() + " blocks with wallet transactions, took " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private void index(final Transaction tx)
+	{
+		final Collection<Sha256Hash> appearsIn = tx.getAppearsInHashes();
+		if (appearsIn == null || appearsIn.isEmpty())
+			return;
+
+		for (final Sha256Hash blockHash : appearsIn)
+		{
+			Set<Transaction> transactions = byBlock.get(blockHash);
+			if (transactions == null)
+			{
+				transactions = new LinkedHashSet<Transaction>(2);
+				byBlock.put(blockHash, transactions);
+			}
+			transactions.add(tx);
+		}
+
+		indexedAppearances.put(tx.getHash(), appearsIn.size());
+	}
+
+	private synchronized void update(final Transaction tx)
+	{
+		if (!built)
+			return;
+
+		// appearances only ever grow, except on reorganize which rebuilds the index
+		final Collection<Sha256Hash> appearsIn = tx.getAppearsInHashes();
+		final int numAppearances = appearsIn != null ? appearsIn.size() : 0;
+		final Integer numIndexed = indexedAppearances.get(tx.getHash());
+		if (numAppearances != (numIndexed != null ? numIndexed : 0))
+			index(tx);
+	}
+
+	@Override
+	public void onCoinsReceived(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
+	{
+		update(tx);
+	}
+
+	@Override
+	public void onCoinsSent(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
+	{
+		update(tx);
+	}
+
+	@Override
+	public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx)
+	{
+		update(tx);
+	}
+
+	@Override
+	public void onReorganize(final Wallet wallet)
+	{
+		invalidate();
+	}
+
+	@Override
+	public void onKeysAdded(final Wallet wallet, final List<ECKey> keys)
+	{
+	}
+
+	@Override
+	public void onWalletChanged(final Wallet wallet)
+	{
+	}
+}
@@ -17,19 +17,31 @@
 
 package de.schildbach.wallet.util;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.*;
 
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.TransactionBroadcaster;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.bitcoin.core.VerificationException;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import de.schildbach.wallet.Constants;
 import de.schildbach.wallet.WalletApplication;
 import de.schildbach.wallet.service.BlockchainService;
 import de.schildbach.wallet.service.BlockchainServiceImpl;
@@ -37,92 +49,302 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Used by payment channel clients to broadcast contract and refund transactions when the channel reaches its expire
- * time - stores transactions in the wallet and attempts to open up Peer connections to broadcast them on the network.
+ * Broadcasts payment channel contract and refund transactions via the blockchain service.
+ *
+ * <p>Pending transactions are kept in a queue that is persisted to disk, so they survive the process dying before they
+ * made it onto the network; {@link #broadcastPending()} picks them up again at startup. All pending transactions are
+ * broadcast during a single bind of the blockchain service, which is released once the queue is empty. Failed
+ * broadcasts are retried with exponential backoff of their own, each time through whatever peers the service is
+ * connected to then.
+ * Transactions that made it into the chain or were double spent in the meantime are dropped before a retry, and a
+ * transaction is given up on after {@link #MAX_ATTEMPTS} failed broadcasts.</p>
  */
 public class ChainServiceTransactionBroadcaster implements TransactionBroadcaster {
 	private static final Logger log = LoggerFactory.getLogger(ChainServiceTransactionBroadcaster.class);
+
+	private static final long RETRY_INITIAL_DELAY_MS = 5 * 1000;
+	private static final long RETRY_MAX_DELAY_MS = 30 * 60 * 1000;
+	private static final int MAX_ATTEMPTS = 20;
+
 	private final WalletApplication application;
+	private final File queueFile;
+	private final Handler retryHandler = new Handler(Looper.getMainLooper());
 
-	public ChainServiceTransactionBroadcaster(WalletApplication application) {
-		this.application = application;
+	private static class PendingBroadcast {
+		final Transaction tx;
+		int failedAttempts = 0;
+		// Not broadcast again before this time, in milliseconds since the epoch
+		long nextAttemptAt = 0;
+		boolean inFlight = false;
+		// Only present for broadcasts requested during the lifetime of this process
+		SettableFuture<Transaction> future;
+
+		PendingBroadcast(Transaction tx) {
+			this.tx = tx;
+		}
 	}
 
-	private final List<Transaction> txnToBroadcast = new LinkedList<Transaction>();
-	private final Set<ListenableFuture<Transaction>> setBroadcastFutures = Collections.synchronizedSet(new HashSet<ListenableFuture<Transaction>>());
+	private final Map<Sha256Hash, PendingBroadcast> pending = new LinkedHashMap<Sha256Hash, PendingBroadcast>();
 	private BlockchainService service = null;
+	private boolean binding = false;
+
+	public ChainServiceTransactionBroadcaster(WalletApplication application, File queueFile) {
+		this.application = application;
+		this.queueFile = queueFile;
+		for (Transaction tx : readQueue())
+			pending.put(tx.getHash(), new PendingBroadcast(tx));
+	}
+
+	/**
+	 * Starts broadcasting transactions that were still pending when the process last exited, if any.
+	 */
+	public synchronized void broadcastPending() {
+		if (!pending.isEmpty()) {
+			log.info("Resuming {} pending channel close broadcasts", pending.size());
+			ensureBound();
+		}
+	}
+
+	// This may be called from any thread
+	@Override
+	public synchronized ListenableFuture<Transaction> broadcastTransaction(Transaction tx) {
+		log.info("Got channel close broadcast with hash " + tx.getHashAsString());
+
+		try {
+			application.getWallet().receivePending(tx, new LinkedList<Transaction>());
+		} catch (VerificationException e) {
+			log.error("Channel close broadcast failed to commit to wallet.");
+		}
+
+		PendingBroadcast broadcast = pending.get(tx.getHash());
+		if (broadcast == null) {
+			broadcast = new PendingBroadcast(tx);
+			pending.put(tx.getHash(), broadcast);
+			writeQueue();
+		}
+		if (broadcast.future == null)
+			broadcast.future = SettableFuture.create();
+
+		if (service != null) {
+			doBroadcast(broadcast);
+			unbindIfIdle();
+		} else {
+			ensureBound();
+		}
+		return broadcast.future;
+	}
 
-	// Called with no locks held, on a bitcoinj Peer thread
-	private synchronized void checkAllTransactionsBroadcasted() {
-		if (setBroadcastFutures.isEmpty() && txnToBroadcast.isEmpty() && service != null) {
+	private synchronized void ensureBound() {
+		if (service != null || binding)
+			return;
+		binding = application.bindService(new Intent(application, BlockchainServiceImpl.class), serviceConnection,
+				Context.BIND_AUTO_CREATE);
+		if (!binding) {
+			log.error("Could not bind blockchain service, will retry channel close broadcasts later");
+			long nextAttemptAt = System.currentTimeMillis() + RETRY_INITIAL_DELAY_MS;
+			for (PendingBroadcast broadcast : pending.values())
+				broadcast.nextAttemptAt = Math.max(broadcast.nextAttemptAt, nextAttemptAt);
+			scheduleRetry();
+		}
+	}
+
+	private synchronized void unbindIfIdle() {
+		if (pending.isEmpty() && service != null) {
 			application.unbindService(serviceConnection);
 			service = null;
 		}
 	}
 
-	// May be called from any thread
-	private synchronized void doBroadcast(final Transaction tx) {
+	private synchronized void doBroadcast(final PendingBroadcast broadcast) {
+		if (broadcast.inFlight || dropIfResolved(broadcast))
+			return;
+		final Transaction tx = broadcast.tx;
 		log.info("Doing channel close broadcast for transaction with hash " + tx.getHashAsString());
-		final ListenableFuture<Transaction> broadcastFuture;
-		if (service != null)
-			broadcastFuture = service.broadcastTransaction(tx);
-		else
-			broadcastFuture = null;
-		if (broadcastFuture != null) {
-			setBroadcastFutures.add(broadcastFuture);
-			Futures.addCallback(broadcastFuture, new FutureCallback<Transaction>() {
-				@Override
-				public void onSuccess(Transaction result) {
-					log.info("Channel close transaction broadcast successfully: " + tx.getHashAsString());
-					setBroadcastFutures.remove(broadcastFuture);
-					checkAllTransactionsBroadcasted();
+		final ListenableFuture<Transaction> broadcastFuture = service.broadcastTransaction(tx);
+		if (broadcastFuture == null) {
+			log.info("Blockchain service is not connected to the network, delaying channel close broadcast of transaction "
+					+ tx.getHashAsString());
+			broadcastFailed(broadcast);
+			return;
+		}
+		broadcast.inFlight = true;
+		Futures.addCallback(broadcastFuture, new FutureCallback<Transaction>() {
+			@Override
+			public void onSuccess(Transaction result) {
+				log.info("Channel close transaction broadcast successfully: " + tx.getHashAsString());
+				synchronized (ChainServiceTransactionBroadcaster.this) {
+					pending.remove(tx.getHash());
+					writeQueue();
 				}
+				if (broadcast.future != null)
+					broadcast.future.set(result);
+				unbindIfIdle();
+			}
 
-				@Override
-				public void onFailure(Throwable t) {
-					log.error("Channel close transaction failed to broadcast: " + tx.getHashAsString());
+			@Override
+			public void onFailure(Throwable t) {
+				log.error("Channel close transaction failed to broadcast: " + tx.getHashAsString(), t);
+				synchronized (ChainServiceTransactionBroadcaster.this) {
+					broadcast.inFlight = false;
+					broadcastFailed(broadcast);
 				}
-			});
-		} else
-			log.info("Blockchain service is not connected, skipping channel close broadcast of transaction " + tx.getHashAsString());
+			}
+		});
+	}
 
-		try {
-			application.getWallet().receivePending(tx, new LinkedList<Transaction>());
-		} catch (VerificationException e) {
-			log.error("Channel close broadcast failed to commit to wallet.");
+	private synchronized void broadcastFailed(PendingBroadcast broadcast) {
+		long delay = RETRY_INITIAL_DELAY_MS << Math.min(broadcast.failedAttempts, 16);
+		broadcast.failedAttempts++;
+		if (broadcast.failedAttempts >= MAX_ATTEMPTS) {
+			log.error("Giving up on channel close broadcast of transaction {} after {} attempts",
+					broadcast.tx.getHashAsString(), broadcast.failedAttempts);
+			drop(broadcast, new Exception("Gave up broadcasting after " + broadcast.failedAttempts + " attempts"));
+			unbindIfIdle();
+			return;
+		}
+		broadcast.nextAttemptAt = System.currentTimeMillis() + Math.min(delay, RETRY_MAX_DELAY_MS);
+		scheduleRetry();
+	}
+
+	// Drops the broadcast if the wallet has seen the transaction in a block or as double spent, in which case broadcasting
+	// it again is pointless.
+	private synchronized boolean dropIfResolved(PendingBroadcast broadcast) {
+		Transaction walletTx = application.getWallet().getTransaction(broadcast.tx.getHash());
+		ConfidenceType confidenceType = (walletTx != null ? walletTx : broadcast.tx).getConfidence().getConfidenceType();
+		if (confidenceType == ConfidenceType.BUILDING) {
+			log.info("Channel close transaction {} is already in the chain", broadcast.tx.getHashAsString());
+			drop(broadcast, null);
+			return true;
+		} else if (confidenceType == ConfidenceType.DEAD) {
+			log.info("Channel close transaction {} was double spent, dropping it", broadcast.tx.getHashAsString());
+			drop(broadcast, new Exception("Transaction was double spent"));
+			return true;
+		}
+		return false;
+	}
+
+	// Completes the broadcast future, with the given failure or otherwise successfully.
+	private synchronized void drop(PendingBroadcast broadcast, Exception failure) {
+		pending.remove(broadcast.tx.getHash());
+		writeQueue();
+		if (broadcast.future != null) {
+			if (failure != null)
+				broadcast.future.setException(failure);
+			else
+				broadcast.future.set(broadcast.tx);
 		}
 	}
 
+	// Schedules the retry runnable for when the earliest of the broadcasts that aren't in flight is due.
+	private synchronized void scheduleRetry() {
+		long nextAttemptAt = Long.MAX_VALUE;
+		for (PendingBroadcast broadcast : pending.values())
+			if (!broadcast.inFlight)
+				nextAttemptAt = Math.min(nextAttemptAt, broadcast.nextAttemptAt);
+		retryHandler.removeCallbacks(retryRunnable);
+		if (nextAttemptAt == Long.MAX_VALUE)
+			return;
+		long delayMs = Math.max(0, nextAttemptAt - System.currentTimeMillis());
+		log.info("Retrying channel close broadcasts in {} seconds", delayMs / 1000);
+		retryHandler.postDelayed(retryRunnable, delayMs);
+	}
+
+	// Broadcasts those pending transactions whose backoff has passed.
+	private synchronized void broadcastDue() {
+		long now = System.currentTimeMillis();
+		for (PendingBroadcast broadcast : new ArrayList<PendingBroadcast>(pending.values()))
+			if (broadcast.nextAttemptAt <= now)
+				doBroadcast(broadcast);
+		scheduleRetry();
+	}
+
+	private final Runnable retryRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (ChainServiceTransactionBroadcaster.this) {
+				if (pending.isEmpty())
+					return;
+				if (service == null) {
+					ensureBound();
+					return;
+				}
+				broadcastDue();
+			}
+			unbindIfIdle();
+		}
+	};
+
 	// These methods are called from the application's main thread
 	private final ServiceConnection serviceConnection = new ServiceConnection() {
 		public void onServiceConnected(final ComponentName name, final IBinder binder) {
 			log.info("Bound to blockchain service...broadcasting pending channel close transactions");
 			synchronized (ChainServiceTransactionBroadcaster.this) {
+				binding = false;
 				service = ((BlockchainServiceImpl.LocalBinder) binder).getService();
-				for (Transaction tx : txnToBroadcast) {
-					doBroadcast(tx);
-				}
-				txnToBroadcast.clear();
+				broadcastDue();
 			}
+			unbindIfIdle();
 		}
 
 		public void onServiceDisconnected(final ComponentName name) {
 			synchronized (ChainServiceTransactionBroadcaster.this) {
 				service = null;
+				long nextAttemptAt = System.currentTimeMillis() + RETRY_INITIAL_DELAY_MS;
+				for (PendingBroadcast broadcast : pending.values()) {
+					if (broadcast.inFlight) {
+						broadcast.inFlight = false;
+						broadcast.nextAttemptAt = Math.max(broadcast.nextAttemptAt, nextAttemptAt);
+					}
+				}
+				scheduleRetry();
 			}
 		}
 	};
 
-	// This may be called from any thread
-	@Override
-	public synchronized ListenableFuture<Transaction> broadcastTransaction(Transaction tx) {
-		log.info("Got channel close broadcast with hash " + tx.getHashAsString());
-		if (service == null) {
-			txnToBroadcast.add(tx);
-			if (!application.bindService(new Intent(application, BlockchainServiceImpl.class), serviceConnection, Context.BIND_AUTO_CREATE))
-				doBroadcast(tx);
-		} else
-			doBroadcast(tx);
-		return null;
+	private synchronized void writeQueue() {
+		File tmpFile = new File(queueFile.getPath() + ".tmp");
+		try {
+			FileOutputStream fileOut = new FileOutputStream(tmpFile);
+			DataOutputStream out = new DataOutputStream(fileOut);
+			try {
+				out.writeInt(pending.size());
+				for (PendingBroadcast broadcast : pending.values()) {
+					byte[] bytes = broadcast.tx.bitcoinSerialize();
+					out.writeInt(bytes.length);
+					out.write(bytes);
+				}
+				out.flush();
+				// The rename must not reach the disk before the data does
+				fileOut.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!tmpFile.renameTo(queueFile))
+				throw new IOException("Could not replace " + queueFile);
+		} catch (IOException e) {
+			log.error("Failed to persist pending channel close broadcasts", e);
+		}
+	}
+
+	private List<Transaction> readQueue() {
+		List<Transaction> txns = new ArrayList<Transaction>();
+		if (!queueFile.exists())
+			return txns;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(queueFile));
+			try {
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					txns.add(new Transaction(Constants.NETWORK_PARAMETERS, bytes));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (Exception e) {
+			log.error("Failed to read pending channel close broadcasts, continuing with " + txns.size(), e);
+		}
+		return txns;
 	}
-}
\ No newline at end of file
+}
@@ -18,7 +18,6 @@
 package de.schildbach.wallet.util;
 
 import java.math.BigInteger;
-import java.util.Locale;
 
 import com.google.bitcoin.core.Utils;
 
@@ -27,16 +26,33 @@ import com.google.bitcoin.core.Utils;
  */
 public class GenericUtils
 {
-	private static final int COIN_INT = Utils.COIN.intValue();
+	private static final long COIN_LONG = Utils.COIN.longValue();
 
 	public static String formatValue(final BigInteger value, final int precision)
 	{
-		return formatValue(value, "", "-", precision);
+		return formatValue(value.longValue(), "", "-", precision, new StringBuilder(24)).toString();
 	}
 
 	public static String formatValue(final BigInteger value, final String plusSign, final String minusSign, final int precision)
 	{
-		long longValue = value.longValue();
+		return formatValue(value.longValue(), plusSign, minusSign, precision, new StringBuilder(24)).toString();
+	}
+
+	public static String formatValue(final long value, final int precision)
+	{
+		return formatValue(value, "", "-", precision, new StringBuilder(24)).toString();
+	}
+
+	/**
+	 * Appends the value to the builder, rounded to the given precision and with 2, 4, 6 or 8 decimals, whichever is
+	 * the least that shows it completely. Allocates nothing, unless the builder has to grow.
+	 *
+	 * @return the builder
+	 */
+	public static StringBuilder formatValue(final long value, final String plusSign, final String minusSign, final int precision,
+			final StringBuilder builder)
+	{
+		long longValue = value;
 		if (precision <= 2)
 			longValue = longValue - longValue % 1000000 + longValue % 1000000 / 500000 * 1000000;
 		else if (precision <= 4)
@@ -44,19 +60,116 @@ public class GenericUtils
 		else if (precision <= 6)
 			longValue = longValue - longValue % 100 + longValue % 100 / 50 * 100;
 
-		final String sign = longValue < 0 ? minusSign : plusSign;
+		builder.append(longValue < 0 ? minusSign : plusSign);
 
-		final long absValue = Math.abs(longValue);
-		final int coins = (int) (absValue / COIN_INT);
-		final int satoshis = (int) (absValue % COIN_INT);
+		// negated separately rather than Math.abs(longValue), which doesn't work for Long.MIN_VALUE
+		final long coins = Math.abs(longValue / COIN_LONG);
+		final int satoshis = (int) Math.abs(longValue % COIN_LONG);
+
+		appendDigits(builder, coins, 1);
+		builder.append('.');
 
 		if (satoshis % 1000000 == 0)
-			return String.format(Locale.US, "%s%d.%02d", sign, coins, satoshis / 1000000);
+			appendDigits(builder, satoshis / 1000000, 2);
 		else if (satoshis % 10000 == 0)
-			return String.format(Locale.US, "%s%d.%04d", sign, coins, satoshis / 10000);
+			appendDigits(builder, satoshis / 10000, 4);
 		else if (satoshis % 100 == 0)
-			return String.format(Locale.US, "%s%d.%06d", sign, coins, satoshis / 100);
+			appendDigits(builder, satoshis / 100, 6);
 		else
-			return String.format(Locale.US, "%s%d.%08d", sign, coins, satoshis);
+			appendDigits(builder, satoshis, 8);
+
+		return builder;
+	}
+
+	// StringBuilder.append(long) goes through Long.toString() on older Android versions
+	private static void appendDigits(final StringBuilder builder, final long value, final int minDigits)
+	{
+		int digits = 1;
+		long power = 1;
+		while (digits < 19 && power * 10 <= value)
+		{
+			power *= 10;
+			digits++;
+		}
+
+		for (int i = digits; i < minDigits; i++)
+			builder.append('0');
+
+		for (; power > 0; power /= 10)
+			builder.append((char) ('0' + value / power % 10));
+	}
+
+	/**
+	 * Converts a bitcoin value to local currency, at a rate of local currency units per bitcoin. The local value and
+	 * the rate have as many decimals as bitcoins have. Rounds towards zero, like BigInteger division.
+	 *
+	 * @throws ArithmeticException
+	 *             if the result doesn't fit into a long
+	 */
+	public static long localValue(final long btcValue, final long rate)
+	{
+		// btcValue * rate / COIN, with both factors split into whole coins and a rest. All partial products have the
+		// same sign, so none of them can overflow unless the result does, and rounding towards zero distributes over
+		// the sum.
+		final long rateCoins = rate / COIN_LONG;
+		final long rateRest = rate % COIN_LONG;
+		final long btcCoins = btcValue / COIN_LONG;
+		final long btcRest = btcValue % COIN_LONG;
+
+		return addExact(addExact(multiplyExact(btcCoins, rate), multiplyExact(btcRest, rateCoins)), btcRest * rateRest / COIN_LONG);
+	}
+
+	/**
+	 * Converts a local currency value to bitcoin, the inverse of {@link #localValue(long, long)}. Rounds towards zero,
+	 * like BigInteger division.
+	 *
+	 * @throws ArithmeticException
+	 *             if the result doesn't fit into a long, or the rate is zero
+	 */
+	public static long btcValue(final long localValue, final long rate)
+	{
+		if (fitsProduct(localValue, COIN_LONG))
+			return localValue * COIN_LONG / rate;
+
+		// localValue = quotient * rate + remainder, so localValue * COIN / rate = quotient * COIN + remainder * COIN / rate
+		final long quotient = localValue / rate;
+		final long remainder = localValue % rate;
+		final long wholePart = multiplyExact(quotient, COIN_LONG);
+
+		// remainder * COIN / rate in two steps of 10^4, as remainders are below the rate; that takes rates below 2^49,
+		// about 5.6 million local currency units per bitcoin, and larger ones use BigInteger
+		final long step = 10000;
+		if (fitsProduct(rate, step))
+		{
+			final long partial = remainder * step;
+			return addExact(wholePart, partial / rate * step + partial % rate * step / rate);
+		}
+
+		final BigInteger result = BigInteger.valueOf(localValue).multiply(Utils.COIN).divide(BigInteger.valueOf(rate));
+		if (result.bitLength() >= 64)
+			throw new ArithmeticException("long overflow");
+		return result.longValue();
+	}
+
+	// conservative: may report false for products that would just fit
+	private static boolean fitsProduct(final long a, final long b)
+	{
+		return Long.numberOfLeadingZeros(Math.abs(a)) + Long.numberOfLeadingZeros(Math.abs(b)) >= 65;
+	}
+
+	private static long multiplyExact(final long a, final long b)
+	{
+		final long product = a * b;
+		if (!fitsProduct(a, b) && a != 0 && (product / a != b || (a == -1 && b == Long.MIN_VALUE)))
+			throw new ArithmeticException("long overflow");
+		return product;
+	}
+
+	private static long addExact(final long a, final long b)
+	{
+		final long sum = a + b;
+		if (((a ^ sum) & (b ^ sum)) < 0)
+			throw new ArithmeticException("long overflow");
+		return sum;
 	}
 }
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pulls tokens from a JSON document as it is read, without building a tree. Works like android.util.JsonReader, which
+ * is not available before API level 11.
+ *
+ * Text of names, strings and numbers is collected into one reusable buffer, so skipped values and numbers read with
+ * {@link #nextFixedPoint(int)} cost no allocations.
+ */
+public final class JsonTokenizer
+{
+	public enum Token
+	{
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, LITERAL, END_DOCUMENT
+	}
+
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_OBJECT = 2;
+	private static final int NONEMPTY_OBJECT = 3;
+	private static final int DANGLING_NAME = 4;
+	private static final int EMPTY_ARRAY = 5;
+	private static final int NONEMPTY_ARRAY = 6;
+
+	private final Reader reader;
+	private final char[] buffer = new char[1024];
+	private int pos = 0;
+	private int limit = 0;
+
+	private final StringBuilder text = new StringBuilder();
+	private int[] scopes = new int[16];
+	private int depth = 1;
+	private Token peeked = null;
+
+	public JsonTokenizer(final Reader reader)
+	{
+		this.reader = reader;
+		scopes[0] = EMPTY_DOCUMENT;
+	}
+
+	public Token peek() throws IOException
+	{
+		if (peeked != null)
+			return peeked;
+
+		final int scope = scopes[depth - 1];
+		int c;
+
+		if (scope == EMPTY_OBJECT || scope == NONEMPTY_OBJECT)
+		{
+			c = nextNonWhitespace();
+			if (c == '}')
+			{
+				depth--;
+				return peeked = Token.END_OBJECT;
+			}
+			if (scope == NONEMPTY_OBJECT)
+			{
+				if (c != ',')
+					throw syntaxError("expected ',' or '}'");
+				c = nextNonWhitespace();
+			}
+			if (c != '"')
+				throw syntaxError("expected name");
+			readString();
+			scopes[depth - 1] = DANGLING_NAME;
+			return peeked = Token.NAME;
+		}
+		else if (scope == DANGLING_NAME)
+		{
+			if (nextNonWhitespace() != ':')
+				throw syntaxError("expected ':'");
+			scopes[depth - 1] = NONEMPTY_OBJECT;
+			c = nextNonWhitespace();
+		}
+		else if (scope == EMPTY_ARRAY)
+		{
+			c = nextNonWhitespace();
+			if (c == ']')
+			{
+				depth--;
+				return peeked = Token.END_ARRAY;
+			}
+			scopes[depth - 1] = NONEMPTY_ARRAY;
+		}
+		else if (scope == NONEMPTY_ARRAY)
+		{
+			c = nextNonWhitespace();
+			if (c == ']')
+			{
+				depth--;
+				return peeked = Token.END_ARRAY;
+			}
+			if (c != ',')
+				throw syntaxError("expected ',' or ']'");
+			c = nextNonWhitespace();
+		}
+		else if (scope == EMPTY_DOCUMENT)
+		{
+			scopes[depth - 1] = NONEMPTY_DOCUMENT;
+			c = nextNonWhitespace();
+		}
+		else
+		{
+			if (nextNonWhitespace() != -1)
+				throw syntaxError("expected end of document");
+			return peeked = Token.END_DOCUMENT;
+		}
+
+		// a value
+		if (c == '{')
+		{
+			push(EMPTY_OBJECT);
+			return peeked = Token.BEGIN_OBJECT;
+		}
+		else if (c == '[')
+		{
+			push(EMPTY_ARRAY);
+			return peeked = Token.BEGIN_ARRAY;
+		}
+		else if (c == '"')
+		{
+			readString();
+			return peeked = Token.STRING;
+		}
+		else if (c == -1)
+		{
+			throw syntaxError("unexpected end of document");
+		}
+		else
+		{
+			readUnquoted((char) c);
+			final char first = text.charAt(0);
+			return peeked = (first == '-' || (first >= '0' && first <= '9')) ? Token.NUMBER : Token.LITERAL;
+		}
+	}
+
+	public void beginObject() throws IOException
+	{
+		expect(Token.BEGIN_OBJECT);
+	}
+
+	public void endObject() throws IOException
+	{
+		expect(Token.END_OBJECT);
+	}
+
+	public void beginArray() throws IOException
+	{
+		expect(Token.BEGIN_ARRAY);
+	}
+
+	public void endArray() throws IOException
+	{
+		expect(Token.END_ARRAY);
+	}
+
+	/**
+	 * Returns true if the current object or array has more elements.
+	 */
+	public boolean hasNext() throws IOException
+	{
+		final Token token = peek();
+		return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+	}
+
+	public String nextName() throws IOException
+	{
+		expect(Token.NAME);
+		return text.toString();
+	}
+
+	/**
+	 * Returns the next string, number or literal as text.
+	 */
+	public String nextString() throws IOException
+	{
+		final Token token = peek();
+		if (token != Token.STRING && token != Token.NUMBER && token != Token.LITERAL)
+			throw syntaxError("expected a value but was " + token);
+		peeked = null;
+		return text.toString();
+	}
+
+	/**
+	 * Reads the next number, or string containing a plain decimal number, as a fixed point value with the given number
+	 * of decimals. Further decimals are rounded half up.
+	 *
+	 * @throws NumberFormatException
+	 *             if the value is not a plain decimal number or does not fit into a long. The value is consumed anyway.
+	 */
+	public long nextFixedPoint(final int decimals) throws IOException
+	{
+		final Token token = peek();
+		if (token != Token.STRING && token != Token.NUMBER)
+			throw syntaxError("expected a number but was " + token);
+		peeked = null;
+
+		final int length = text.length();
+		int i = 0;
+		final boolean negative = length > 0 && text.charAt(0) == '-';
+		if (negative)
+			i++;
+
+		long value = 0;
+		int fractionDigits = -1; // -1 while in the integer part
+		boolean anyDigit = false;
+		boolean dropped = false;
+		boolean roundUp = false;
+		for (; i < length; i++)
+		{
+			final char c = text.charAt(i);
+			if (c == '.' && fractionDigits == -1)
+			{
+				fractionDigits = 0;
+			}
+			else if (c >= '0' && c <= '9')
+			{
+				anyDigit = true;
+				if (fractionDigits == decimals)
+				{
+					// the first dropped digit decides rounding, the rest are ignored
+					if (!dropped)
+						roundUp = c >= '5';
+					dropped = true;
+					continue;
+				}
+				if (value > (Long.MAX_VALUE - (c - '0')) / 10)
+					throw new NumberFormatException("out of range: " + text);
+				value = value * 10 + (c - '0');
+				if (fractionDigits >= 0)
+					fractionDigits++;
+			}
+			else
+			{
+				throw new NumberFormatException("not a plain decimal number: " + text);
+			}
+		}
+		if (!anyDigit)
+			throw new NumberFormatException("not a number: " + text);
+
+		for (int d = Math.max(fractionDigits, 0); d < decimals; d++)
+		{
+			if (value > Long.MAX_VALUE / 10)
+				throw new NumberFormatException("out of range: " + text);
+			value *= 10;
+		}
+		if (roundUp)
+			value++;
+
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Skips the next value, including all nested values if it is an object or array.
+	 */
+	public void skipValue() throws IOException
+	{
+		int nesting = 0;
+		do
+		{
+			final Token token = peek();
+			peeked = null;
+			if (token == Token.BEGIN_OBJECT || token == Token.BEGIN_ARRAY)
+				nesting++;
+			else if (token == Token.END_OBJECT || token == Token.END_ARRAY)
+				nesting--;
+			else if (token == Token.END_DOCUMENT)
+				throw syntaxError("unexpected end of document");
+		}
+		while (nesting > 0);
+	}
+
+	private void expect(final Token expected) throws IOException
+	{
+		final Token token = peek();
+		if (token != expected)
+			throw syntaxError("expected " + expected + " but was " + token);
+		peeked = null;
+	}
+
+	private void push(final int scope)
+	{
+		if (depth == scopes.length)
+		{
+			final int[] newScopes = new int[depth * 2];
+			System.arraycopy(scopes, 0, newScopes, 0, depth);
+			scopes = newScopes;
+		}
+		scopes[depth++] = scope;
+	}
+
+	private int read() throws IOException
+	{
+		if (pos == limit)
+		{
+			limit = reader.read(buffer, 0, buffer.length);
+			pos = 0;
+			if (limit <= 0)
+			{
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[pos++];
+	}
+
+	private void unread()
+	{
+		pos--;
+	}
+
+	private int nextNonWhitespace() throws IOException
+	{
+		int c;
+		do
+			c = read();
+		while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+		return c;
+	}
+
+	private void readString() throws IOException
+	{
+		text.setLength(0);
+		while (true)
+		{
+			final int c = read();
+			if (c == '"')
+				return;
+			else if (c == -1)
+				throw syntaxError("unterminated string");
+			else if (c != '\\')
+				text.append((char) c);
+			else
+				readEscape();
+		}
+	}
+
+	private void readEscape() throws IOException
+	{
+		final int c = read();
+		switch (c)
+		{
+			case 'b':
+				text.append('\b');
+				break;
+			case 'f':
+				text.append('\f');
+				break;
+			case 'n':
+				text.append('\n');
+				break;
+			case 'r':
+				text.append('\r');
+				break;
+			case 't':
+				text.append('\t');
+				break;
+			case 'u':
+				int value = 0;
+				for (int i = 0; i < 4; i++)
+				{
+					final int digit = Character.digit(read(), 16);
+					if (digit < 0)
+						throw syntaxError("bad unicode escape");
+					value = value * 16 + digit;
+				}
+				text.append((char) value);
+				break;
+			case -1:
+				throw syntaxError("unterminated string");
+			default:
+				text.append((char) c); // covers \" \\ \/
+		}
+	}
+
+	private void readUnquoted(final char first) throws IOException
+	{
+		text.setLength(0);
+		text.append(first);
+		while (true)
+		{
+			final int c = read();
+			if (c == -1)
+				return;
+			if (c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r')
+			{
+				unread();
+				return;
+			}
+			text.append((char) c);
+		}
+	}
+
+	private IOException syntaxError(final String message)
+	{
+		return new IOException("JSON syntax error: " + message);
+	}
+}
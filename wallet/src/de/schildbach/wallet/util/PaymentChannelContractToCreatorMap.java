@@ -24,7 +24,9 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Keeps track of which app opened a payment channel by the channel's contract hash
@@ -33,6 +35,7 @@ public class PaymentChannelContractToCreatorMap implements WalletExtension {
 	private static final String EXTENSION_ID = PaymentChannelContractToCreatorMap.class.getName();
 	private static final Logger log = LoggerFactory.getLogger(PaymentChannelContractToCreatorMap.class);
 	private Runnable newContractCallback;
+	private final List<Runnable> newContractListeners = new CopyOnWriteArrayList<Runnable>();
 
 	private static class CreatorAndSpentFlag implements Serializable {
 		public String creatorApp;
@@ -77,12 +80,22 @@ public class PaymentChannelContractToCreatorMap implements WalletExtension {
 		}
 		if (runCallback != null)
 			runCallback.run();
+		for (Runnable listener : newContractListeners)
+			listener.run();
 	}
 
 	public synchronized void setNewContractCallback(Runnable runnable) {
 		this.newContractCallback = runnable;
 	}
 
+	/**
+	 * Adds a listener that is run after each new contract, in addition to the callback set via
+	 * {@link #setNewContractCallback(Runnable)}, which belongs to the blockchain service.
+	 */
+	public void addNewContractListener(Runnable listener) {
+		newContractListeners.add(listener);
+	}
+
 	/**
 	 * Checks if the given transaction spends a payment channel contract of ours and updates state if it does
 	 */
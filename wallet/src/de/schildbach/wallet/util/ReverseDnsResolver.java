@@ -0,0 +1,339 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.format.DateUtils;
+
+/**
+ * Resolves the hostnames of IP addresses, a few at a time on a small pool of background threads.
+ *
+ * Results are cached for a day (failures for an hour) and the cache is persisted, so hostnames of peers seen in earlier
+ * sessions are available right away. An expired hostname is still handed out while it is being refreshed.
+ */
+public class ReverseDnsResolver
+{
+	public interface Listener
+	{
+		/** will be called back on UI thread */
+		void onHostnameResolved(InetAddress address, @Nullable String hostname);
+	}
+
+	private static final int NUM_THREADS = 4;
+	private static final int MAX_IN_FLIGHT = 64;
+	private static final int MAX_ENTRIES = 512;
+	private static final long TTL_MS = DateUtils.DAY_IN_MILLIS;
+	private static final long FAILURE_TTL_MS = DateUtils.HOUR_IN_MILLIS;
+	private static final long SAVE_DELAY_MS = DateUtils.SECOND_IN_MILLIS * 5;
+	private static final int FILE_VERSION = 1;
+
+	private static final class CacheEntry
+	{
+		final @Nullable String hostname;
+		final long expires;
+
+		public CacheEntry(@Nullable final String hostname, final long expires)
+		{
+			this.hostname = hostname;
+			this.expires = expires;
+		}
+	}
+
+	private final File cacheFile;
+	private final ScheduledThreadPoolExecutor executor;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	// all guarded by this
+	private boolean loaded = false;
+	private boolean savePending = false;
+	private final Set<InetAddress> inFlight = new HashSet<InetAddress>();
+	private final Map<InetAddress, CacheEntry> cache = new LinkedHashMap<InetAddress, CacheEntry>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<InetAddress, CacheEntry> eldest)
+		{
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private static final Logger log = LoggerFactory.getLogger(ReverseDnsResolver.class);
+
+	public ReverseDnsResolver(final File cacheFile)
+	{
+		this.cacheFile = cacheFile;
+
+		executor = new ScheduledThreadPoolExecutor(NUM_THREADS, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				return new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						runnable.run();
+					}
+				}, "reverseDns-" + count.incrementAndGet());
+			}
+		});
+		executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+		executor.allowCoreThreadTimeOut(true);
+
+		// read the persisted cache early, so lookups soon see hostnames from earlier sessions
+		executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized (ReverseDnsResolver.this)
+				{
+					load();
+				}
+			}
+		});
+	}
+
+	public void addListener(final Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	public void removeListener(final Listener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Returns the cached hostname of the given address, or null if none is known (yet). If the cache has no fresh
+	 * entry, a lookup is started and listeners are notified once it completes. Never waits for the network.
+	 */
+	public synchronized @Nullable String lookup(final InetAddress address)
+	{
+		final CacheEntry entry = cache.get(address);
+
+		if ((entry == null || entry.expires < System.currentTimeMillis()) && !inFlight.contains(address) && inFlight.size() < MAX_IN_FLIGHT)
+		{
+			inFlight.add(address);
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					resolve(address);
+				}
+			});
+		}
+
+		return entry != null ? entry.hostname : null;
+	}
+
+	private void resolve(final InetAddress address)
+	{
+		synchronized (this)
+		{
+			load();
+
+			final CacheEntry entry = cache.get(address);
+			if (entry != null && entry.expires >= System.currentTimeMillis())
+			{
+				inFlight.remove(address);
+				notifyListeners(address, entry.hostname);
+				return;
+			}
+		}
+
+		final String canonicalHostName = address.getCanonicalHostName();
+		// falls back to the address literal if there is no name
+		final String hostname = !canonicalHostName.equals(address.getHostAddress()) ? canonicalHostName : null;
+
+		synchronized (this)
+		{
+			cache.put(address, new CacheEntry(hostname, System.currentTimeMillis() + (hostname != null ? TTL_MS : FAILURE_TTL_MS)));
+			inFlight.remove(address);
+
+			if (!savePending)
+			{
+				savePending = true;
+				executor.schedule(saveRunnable, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		notifyListeners(address, hostname);
+	}
+
+	private void notifyListeners(final InetAddress address, @Nullable final String hostname)
+	{
+		for (final Listener listener : listeners)
+		{
+			mainHandler.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					listener.onHostnameResolved(address, hostname);
+				}
+			});
+		}
+	}
+
+	private final Runnable saveRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			final Map<InetAddress, CacheEntry> entries = new LinkedHashMap<InetAddress, CacheEntry>();
+
+			synchronized (ReverseDnsResolver.this)
+			{
+				savePending = false;
+
+				final long now = System.currentTimeMillis();
+				for (final Map.Entry<InetAddress, CacheEntry> entry : cache.entrySet())
+					if (entry.getValue().expires >= now)
+						entries.put(entry.getKey(), entry.getValue());
+			}
+
+			// saves of two bursts of lookups must not interleave
+			synchronized (cacheFile)
+			{
+				save(entries);
+			}
+		}
+	};
+
+	private void load()
+	{
+		if (loaded)
+			return;
+
+		loaded = true;
+
+		if (!cacheFile.exists())
+			return;
+
+		DataInputStream is = null;
+		try
+		{
+			is = new DataInputStream(new FileInputStream(cacheFile));
+
+			if (is.readInt() != FILE_VERSION)
+				return;
+
+			final long now = System.currentTimeMillis();
+			final int count = is.readInt();
+			for (int i = 0; i < count; i++)
+			{
+				final byte[] addr = new byte[is.readUnsignedByte()];
+				is.readFully(addr);
+				final String hostname = is.readBoolean() ? is.readUTF() : null;
+				final long expires = is.readLong();
+
+				final InetAddress address = InetAddress.getByAddress(addr);
+				// don't overwrite what was resolved in the meantime
+				if (expires >= now && !cache.containsKey(address))
+					cache.put(address, new CacheEntry(hostname, expires));
+			}
+
+			log.info("loaded " + cache.size() + " cached hostnames");
+		}
+		catch (final IOException x)
+		{
+			log.info("problem loading hostname cache", x);
+		}
+		finally
+		{
+			if (is != null)
+			{
+				try
+				{
+					is.close();
+				}
+				catch (final IOException x)
+				{
+					// swallow
+				}
+			}
+		}
+	}
+
+	private void save(final Map<InetAddress, CacheEntry> entries)
+	{
+		final File tmpFile = new File(cacheFile.getPath() + ".tmp");
+		try
+		{
+			final DataOutputStream os = new DataOutputStream(new FileOutputStream(tmpFile));
+			try
+			{
+				os.writeInt(FILE_VERSION);
+				os.writeInt(entries.size());
+				for (final Map.Entry<InetAddress, CacheEntry> entry : entries.entrySet())
+				{
+					final byte[] addr = entry.getKey().getAddress();
+					os.writeByte(addr.length);
+					os.write(addr);
+					final String hostname = entry.getValue().hostname;
+					os.writeBoolean(hostname != null);
+					if (hostname != null)
+						os.writeUTF(hostname);
+					os.writeLong(entry.getValue().expires);
+				}
+			}
+			finally
+			{
+				os.close();
+			}
+
+			if (!tmpFile.renameTo(cacheFile))
+				throw new IOException("could not replace " + cacheFile);
+		}
+		catch (final IOException x)
+		{
+			log.info("problem saving hostname cache", x);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the ids of entries that contain a query as a case-insensitive substring of any of their texts, like
+ * <code>LIKE '%query%'</code> would, without looking at every entry.
+ *
+ * Every text is broken into trigrams (all runs of three characters), and each trigram points to the entries containing
+ * it. A query of three or more characters only needs to look at the entries under its rarest trigram; shorter queries
+ * fall back to checking all entries, which are held in memory. Not thread safe.
+ */
+public class SubstringIndex
+{
+	private final Map<Long, String[]> entries = new HashMap<Long, String[]>();
+	private final Map<Long, Set<Long>> postings = new HashMap<Long, Set<Long>>();
+
+	public void put(final long id, final String... texts)
+	{
+		remove(id);
+
+		final String[] normalized = new String[texts.length];
+		for (int i = 0; i < texts.length; i++)
+			normalized[i] = texts[i] != null ? normalize(texts[i]) : "";
+		entries.put(id, normalized);
+
+		for (final String text : normalized)
+		{
+			for (int i = 0; i + 3 <= text.length(); i++)
+			{
+				final long trigram = trigram(text, i);
+				Set<Long> ids = postings.get(trigram);
+				if (ids == null)
+				{
+					ids = new HashSet<Long>(4);
+					postings.put(trigram, ids);
+				}
+				ids.add(id);
+			}
+		}
+	}
+
+	public void remove(final long id)
+	{
+		final String[] texts = entries.remove(id);
+		if (texts == null)
+			return;
+
+		for (final String text : texts)
+		{
+			for (int i = 0; i + 3 <= text.length(); i++)
+			{
+				final long trigram = trigram(text, i);
+				final Set<Long> ids = postings.get(trigram);
+				if (ids != null)
+				{
+					ids.remove(id);
+					if (ids.isEmpty())
+						postings.remove(trigram);
+				}
+			}
+		}
+	}
+
+	public void clear()
+	{
+		entries.clear();
+		postings.clear();
+	}
+
+	public int size()
+	{
+		return entries.size();
+	}
+
+	public Set<Long> search(final String query)
+	{
+		final String q = normalize(query);
+		final Set<Long> result = new HashSet<Long>();
+
+		final Set<Long> candidates;
+		if (q.length() < 3)
+		{
+			candidates = entries.keySet();
+		}
+		else
+		{
+			Set<Long> rarest = null;
+			for (int i = 0; i + 3 <= q.length(); i++)
+			{
+				final Set<Long> ids = postings.get(trigram(q, i));
+				if (ids == null)
+					return result;
+				if (rarest == null || ids.size() < rarest.size())
+					rarest = ids;
+			}
+			candidates = rarest;
+		}
+
+		for (final Long id : candidates)
+		{
+			for (final String text : entries.get(id))
+			{
+				if (text.contains(q))
+				{
+					result.add(id);
+					break;
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private static String normalize(final String text)
+	{
+		return text.toLowerCase(Locale.US);
+	}
+
+	private static long trigram(final String text, final int offset)
+	{
+		return ((long) text.charAt(offset) << 32) | ((long) text.charAt(offset + 1) << 16) | text.charAt(offset + 2);
+	}
+}
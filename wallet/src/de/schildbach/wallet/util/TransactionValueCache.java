@@ -0,0 +1,176 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletEventListener;
+
+/**
+ * Caches what the UI needs to know about a transaction relative to the wallet: its value, whether it was sent or
+ * received, and the address of the counterparty. Computing these walks all inputs and outputs and checks them for
+ * ownership, so they are computed once per transaction and only recomputed after wallet events that can change them.
+ *
+ * Must be registered with the wallet before any listener that reads from it, so it sees the events first.
+ */
+public class TransactionValueCache implements WalletEventListener
+{
+	private final Wallet wallet;
+
+	public static final class Info
+	{
+		public final BigInteger value;
+		public final boolean sent;
+		public final @Nullable Address address;
+
+		Info(final BigInteger value, final @Nullable Address address)
+		{
+			this.value = value;
+			this.sent = value.signum() < 0;
+			this.address = address;
+		}
+	}
+
+	// guarded by this
+	private final Map<Sha256Hash, Info> cache = new HashMap<Sha256Hash, Info>();
+	private long generation = 0;
+
+	public TransactionValueCache(final Wallet wallet)
+	{
+		this.wallet = wallet;
+	}
+
+	public Info get(final Transaction tx)
+	{
+		final long computeGeneration;
+
+		synchronized (this)
+		{
+			final Info info = cache.get(tx.getHash());
+			if (info != null)
+				return info;
+
+			computeGeneration = generation;
+		}
+
+		try
+		{
+			final BigInteger value = tx.getValue(wallet);
+			final Address address = value.signum() < 0 ? WalletUtils.getToAddress(tx) : WalletUtils.getFromAddress(tx);
+			final Info info = new Info(value, address);
+
+			synchronized (this)
+			{
+				// don't cache what might have been computed from outdated wallet state
+				if (generation == computeGeneration)
+					cache.put(tx.getHash(), info);
+			}
+
+			return info;
+		}
+		catch (final ScriptException x)
+		{
+			throw new RuntimeException(x);
+		}
+	}
+
+	public BigInteger getValue(final Transaction tx)
+	{
+		return get(tx).value;
+	}
+
+	public boolean isSent(final Transaction tx)
+	{
+		return get(tx).sent;
+	}
+
+	public synchronized void invalidate(final Transaction tx)
+	{
+		generation++;
+		cache.remove(tx.getHash());
+	}
+
+	public synchronized void invalidateAll()
+	{
+		generation++;
+		cache.clear();
+	}
+
+	private synchronized void invalidateWithSpenders(final Transaction tx)
+	{
+		generation++;
+		cache.remove(tx.getHash());
+
+		// spenders that arrived earlier have just got their inputs connected, which changes what they sent from us
+		for (final TransactionOutput output : tx.getOutputs())
+		{
+			final TransactionInput spentBy = output.getSpentBy();
+			if (spentBy != null)
+				cache.remove(spentBy.getParentTransaction().getHash());
+		}
+	}
+
+	@Override
+	public void onCoinsReceived(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
+	{
+		invalidateWithSpenders(tx);
+	}
+
+	@Override
+	public void onCoinsSent(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
+	{
+		invalidateWithSpenders(tx);
+	}
+
+	@Override
+	public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx)
+	{
+		// value, direction and counterparty do not depend on confidence
+	}
+
+	@Override
+	public void onReorganize(final Wallet wallet)
+	{
+		invalidateAll();
+	}
+
+	@Override
+	public void onKeysAdded(final Wallet wallet, final List<ECKey> keys)
+	{
+		// new keys can make more inputs and outputs ours
+		invalidateAll();
+	}
+
+	@Override
+	public void onWalletChanged(final Wallet wallet)
+	{
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+
+import com.google.bitcoin.core.Transaction;
+
+import de.schildbach.wallet.AddressBookProvider;
+import de.schildbach.wallet.Constants;
+import de.schildbach.wallet.ExchangeRateHistory;
+
+/**
+ * Writes the wallet history, oldest transaction first, as CSV or JSON.
+ *
+ * Transactions are written in batches: the address book labels of a batch are resolved with one query, then its rows
+ * are written and flushed. So neither the document nor the labels of the whole history are ever held in memory.
+ *
+ * Fiat values are converted at the rate recorded closest to the time of each transaction, and left out where the
+ * {@link ExchangeRateHistory} has no such rate.
+ */
+public class TransactionsExporter
+{
+	public enum Format
+	{
+		CSV, JSON
+	}
+
+	private static final int BATCH_SIZE = 200;
+
+	private final Context context;
+	private final TransactionValueCache valueCache;
+	private final ExchangeRateHistory exchangeRateHistory;
+	private final @Nullable String currencyCode;
+	private final DateFormat dateFormat = Iso8601Format.newDateTimeFormatT();
+
+	private static final Logger log = LoggerFactory.getLogger(TransactionsExporter.class);
+
+	/**
+	 * @param currencyCode
+	 *            currency to convert values to, or null to leave out fiat values
+	 */
+	public TransactionsExporter(final Context context, final TransactionValueCache valueCache, final ExchangeRateHistory exchangeRateHistory,
+			@Nullable final String currencyCode)
+	{
+		this.context = context;
+		this.valueCache = valueCache;
+		this.exchangeRateHistory = exchangeRateHistory;
+		this.currencyCode = currencyCode;
+	}
+
+	/**
+	 * Writes the given transactions, which are expected in time order, to the writer. Does not close the writer.
+	 *
+	 * @return number of transactions written
+	 */
+	public int export(final List<Transaction> transactions, final Writer out, final Format format) throws IOException
+	{
+		final long start = System.currentTimeMillis();
+
+		if (format == Format.CSV)
+			out.write("time,hash,direction,value,fiat_value,fiat_currency,address,label\n");
+		else
+			out.write("[");
+
+		int written = 0;
+		final List<String> batchAddresses = new ArrayList<String>(BATCH_SIZE);
+		final List<TransactionValueCache.Info> batchInfos = new ArrayList<TransactionValueCache.Info>(BATCH_SIZE);
+
+		for (int batchStart = 0; batchStart < transactions.size(); batchStart += BATCH_SIZE)
+		{
+			final List<Transaction> batch = transactions.subList(batchStart, Math.min(batchStart + BATCH_SIZE, transactions.size()));
+
+			batchAddresses.clear();
+			batchInfos.clear();
+			for (final Transaction tx : batch)
+			{
+				final TransactionValueCache.Info info = valueCache.get(tx);
+				batchInfos.add(info);
+				if (info.address != null)
+					batchAddresses.add(info.address.toString());
+			}
+
+			final Map<String, String> labels = AddressBookProvider.resolveLabels(context, batchAddresses);
+
+			for (int i = 0; i < batch.size(); i++)
+			{
+				final Transaction tx = batch.get(i);
+				final TransactionValueCache.Info info = batchInfos.get(i);
+				final String address = info.address != null ? info.address.toString() : null;
+				final String label = address != null ? labels.get(address) : null;
+				final String fiatValue = fiatValue(tx, info.value);
+
+				if (format == Format.CSV)
+					writeCsvRow(out, tx, info, address, label, fiatValue);
+				else
+					writeJsonObject(out, tx, info, address, label, fiatValue, written == 0);
+
+				written++;
+			}
+
+			out.flush();
+		}
+
+		if (format == Format.JSON)
+			out.write("\n]\n");
+		out.flush();
+
+		log.info("exported " + written + " transactions as " + format + ", took " + (System.currentTimeMillis() - start) + "ms");
+
+		return written;
+	}
+
+	private void writeCsvRow(final Writer out, final Transaction tx, final TransactionValueCache.Info info, @Nullable final String address,
+			@Nullable final String label, @Nullable final String fiatValue) throws IOException
+	{
+		out.write(formatTime(tx));
+		out.write(',');
+		out.write(tx.getHashAsString());
+		out.write(',');
+		out.write(info.sent ? "sent" : "received");
+		out.write(',');
+		out.write(GenericUtils.formatValue(info.value, Constants.BTC_MAX_PRECISION));
+		out.write(',');
+		if (fiatValue != null)
+		{
+			out.write(fiatValue);
+			out.write(',');
+			out.write(currencyCode);
+		}
+		else
+		{
+			out.write(',');
+		}
+		out.write(',');
+		if (address != null)
+			out.write(address);
+		out.write(',');
+		if (label != null)
+			writeCsvField(out, label);
+		out.write('\n');
+	}
+
+	private static void writeCsvField(final Writer out, final String field) throws IOException
+	{
+		boolean needsQuoting = false;
+		for (int i = 0; i < field.length() && !needsQuoting; i++)
+		{
+			final char c = field.charAt(i);
+			needsQuoting = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+
+		if (!needsQuoting)
+		{
+			out.write(field);
+			return;
+		}
+
+		out.write('"');
+		for (int i = 0; i < field.length(); i++)
+		{
+			final char c = field.charAt(i);
+			if (c == '"')
+				out.write('"');
+			out.write(c);
+		}
+		out.write('"');
+	}
+
+	private void writeJsonObject(final Writer out, final Transaction tx, final TransactionValueCache.Info info, @Nullable final String address,
+			@Nullable final String label, @Nullable final String fiatValue, final boolean first) throws IOException
+	{
+		out.write(first ? "\n" : ",\n");
+		out.write("{\"time\":\"");
+		out.write(formatTime(tx));
+		out.write("\",\"hash\":\"");
+		out.write(tx.getHashAsString());
+		out.write("\",\"direction\":\"");
+		out.write(info.sent ? "sent" : "received");
+		out.write("\",\"value\":\"");
+		out.write(GenericUtils.formatValue(info.value, Constants.BTC_MAX_PRECISION));
+		out.write('"');
+		if (fiatValue != null)
+		{
+			out.write(",\"fiat_value\":\"");
+			out.write(fiatValue);
+			out.write("\",\"fiat_currency\":");
+			writeJsonString(out, currencyCode);
+		}
+		if (address != null)
+		{
+			out.write(",\"address\":\"");
+			out.write(address);
+			out.write('"');
+		}
+		if (label != null)
+		{
+			out.write(",\"label\":");
+			writeJsonString(out, label);
+		}
+		out.write('}');
+	}
+
+	private static void writeJsonString(final Writer out, final String str) throws IOException
+	{
+		out.write('"');
+		for (int i = 0; i < str.length(); i++)
+		{
+			final char c = str.charAt(i);
+			if (c == '"' || c == '\\')
+			{
+				out.write('\\');
+				out.write(c);
+			}
+			else if (c == '\n')
+			{
+				out.write("\\n");
+			}
+			else if (c == '\r')
+			{
+				out.write("\\r");
+			}
+			else if (c == '\t')
+			{
+				out.write("\\t");
+			}
+			else if (c < 0x20)
+			{
+				out.write(String.format("\\u%04x", (int) c));
+			}
+			else
+			{
+				out.write(c);
+			}
+		}
+		out.write('"');
+	}
+
+	private @Nullable String fiatValue(final Transaction tx, final BigInteger value)
+	{
+		final Date time = tx.getUpdateTime();
+		if (currencyCode == null || time == null)
+			return null;
+
+		final long rate = exchangeRateHistory.getRate(currencyCode, time.getTime());
+		if (rate == 0)
+			return null;
+
+		return GenericUtils.formatValue(WalletUtils.localValue(value, BigInteger.valueOf(rate)), Constants.LOCAL_PRECISION);
+	}
+
+	private String formatTime(final Transaction tx)
+	{
+		final Date time = tx.getUpdateTime();
+		return time != null ? dateFormat.format(time) : "";
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.Date;
+
+import javax.annotation.Nullable;
+
+/**
+ * Criteria for searching the wallet history. All criteria are optional and combined with AND.
+ */
+public final class TransactionsFilter implements Serializable
+{
+	/** substring of the counterparty address or of its label in the address book */
+	public final @Nullable String query;
+	/** inclusive range of the absolute transaction value */
+	public final @Nullable BigInteger minValue, maxValue;
+	/** inclusive range of the transaction update time */
+	public final @Nullable Date fromTime, toTime;
+
+	private static final long serialVersionUID = 1L;
+
+	public TransactionsFilter(@Nullable final String query, @Nullable final BigInteger minValue, @Nullable final BigInteger maxValue,
+			@Nullable final Date fromTime, @Nullable final Date toTime)
+	{
+		this.query = query != null && query.trim().length() > 0 ? query.trim() : null;
+		this.minValue = minValue;
+		this.maxValue = maxValue;
+		this.fromTime = fromTime;
+		this.toTime = toTime;
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + "[query=" + query + ",value=" + minValue + ".." + maxValue + ",time=" + fromTime + ".." + toTime
+				+ "]";
+	}
+}
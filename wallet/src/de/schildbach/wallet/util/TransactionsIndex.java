@@ -0,0 +1,492 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletEventListener;
+
+import de.schildbach.wallet.ui.TransactionsListFragment.Direction;
+
+/**
+ * Keeps the wallet transactions sorted in transaction list order (pending first, then newest first), once for all
+ * transactions and once per {@link Direction}.
+ *
+ * The index is built on first use and then updated incrementally from wallet events, so a new or changed transaction
+ * costs a logarithmic re-insert rather than a re-sort of the whole history. Snapshots are immutable and shared until
+ * the next change.
+ *
+ * Secondary indexes by update time, absolute value and counterparty address, maintained along with the above, serve
+ * {@link #search(Direction, TransactionsFilter, Collection, int)}.
+ */
+public class TransactionsIndex implements WalletEventListener
+{
+	private final Wallet wallet;
+	private final PaymentChannelContractToCreatorMap contractToCreatorMap;
+	private final TransactionValueCache valueCache;
+
+	private static final class Entry
+	{
+		final Transaction tx;
+		final boolean pending;
+		final long time;
+		final boolean sent;
+		final long value; // absolute
+		final @Nullable String address;
+
+		public Entry(final Transaction tx, final TransactionValueCache.Info info)
+		{
+			this.tx = tx;
+			this.pending = tx.getConfidence().getConfidenceType() == ConfidenceType.PENDING;
+			final Date updateTime = tx.getUpdateTime();
+			this.time = updateTime != null ? updateTime.getTime() : 0;
+			this.sent = info.sent;
+			this.value = info.value.abs().longValue();
+			this.address = info.address != null ? info.address.toString() : null;
+		}
+	}
+
+	// pending first, then newest first, plus a tie breaker
+	private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>()
+	{
+		@Override
+		public int compare(final Entry entry1, final Entry entry2)
+		{
+			if (entry1.pending != entry2.pending)
+				return entry1.pending ? -1 : 1;
+
+			if (entry1.time > entry2.time)
+				return -1;
+			else if (entry1.time < entry2.time)
+				return 1;
+
+			return entry1.tx.getHash().toBigInteger().compareTo(entry2.tx.getHash().toBigInteger());
+		}
+	};
+
+	// the first transactions of a set, as handed out
+	private static final class Prefix
+	{
+		final List<Transaction> transactions;
+		final boolean complete;
+
+		public Prefix(final List<Transaction> transactions, final boolean complete)
+		{
+			this.transactions = transactions;
+			this.complete = complete;
+		}
+	}
+
+	// all guarded by this
+	private boolean built = false;
+	private final Map<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+	private final TreeSet<Entry> all = new TreeSet<Entry>(ENTRY_COMPARATOR);
+	private final TreeSet<Entry> received = new TreeSet<Entry>(ENTRY_COMPARATOR);
+	private final TreeSet<Entry> sent = new TreeSet<Entry>(ENTRY_COMPARATOR);
+	private Prefix allPrefix, receivedPrefix, sentPrefix;
+	// secondary indexes for searching
+	private final TreeMap<Long, Set<Entry>> byTime = new TreeMap<Long, Set<Entry>>();
+	private final TreeMap<Long, Set<Entry>> byValue = new TreeMap<Long, Set<Entry>>();
+	private final Map<String, Set<Entry>> byAddress = new HashMap<String, Set<Entry>>();
+	private final List<String> addresses = new ArrayList<String>();
+	private final Map<String, Integer> addressIds = new HashMap<String, Integer>();
+	private final SubstringIndex addressSearch = new SubstringIndex();
+
+	private static final Logger log = LoggerFactory.getLogger(TransactionsIndex.class);
+
+	public TransactionsIndex(final Wallet wallet, final PaymentChannelContractToCreatorMap contractToCreatorMap,
+			final TransactionValueCache valueCache)
+	{
+		this.wallet = wallet;
+		this.contractToCreatorMap = contractToCreatorMap;
+		this.valueCache = valueCache;
+	}
+
+	/**
+	 * Returns the transactions of the given direction (or all, if null) in transaction list order. The returned list is
+	 * immutable and not affected by later changes.
+	 */
+	public List<Transaction> snapshot(@Nullable final Direction direction)
+	{
+		return page(direction, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Like {@link #snapshot(Direction)}, but only returns up to the given number of transactions from the top of the
+	 * list. Only those are materialized, so the first page of a huge wallet is cheap.
+	 */
+	public synchronized List<Transaction> page(@Nullable final Direction direction, final int limit)
+	{
+		if (!built)
+			build();
+
+		final TreeSet<Entry> set;
+		Prefix prefix;
+		if (direction == Direction.RECEIVED)
+		{
+			set = received;
+			prefix = receivedPrefix;
+		}
+		else if (direction == Direction.SENT)
+		{
+			set = sent;
+			prefix = sentPrefix;
+		}
+		else
+		{
+			set = all;
+			prefix = allPrefix;
+		}
+
+		if (prefix == null || (!prefix.complete && prefix.transactions.size() < limit))
+		{
+			prefix = toPrefix(set, limit);
+
+			if (direction == Direction.RECEIVED)
+				receivedPrefix = prefix;
+			else if (direction == Direction.SENT)
+				sentPrefix = prefix;
+			else
+				allPrefix = prefix;
+		}
+
+		if (prefix.transactions.size() <= limit)
+			return prefix.transactions;
+		else
+			return prefix.transactions.subList(0, limit);
+	}
+
+	/**
+	 * Returns up to the given number of transactions of the given direction (or all, if null) that match the filter, in
+	 * transaction list order.
+	 *
+	 * Candidates are taken from the most selective secondary index the filter allows: the addresses matching the query
+	 * (plus the given addresses, whose labels matched it), else the time range, else the value range. Only those are
+	 * checked against the remaining criteria and sorted.
+	 *
+	 * @param labelledAddresses
+	 *            addresses whose address book label matches {@link TransactionsFilter#query}
+	 */
+	public synchronized List<Transaction> search(@Nullable final Direction direction, final TransactionsFilter filter,
+			final Collection<String> labelledAddresses, final int limit)
+	{
+		if (!built)
+			build();
+
+		final long start = System.currentTimeMillis();
+
+		final long fromTime = filter.fromTime != null ? filter.fromTime.getTime() : Long.MIN_VALUE;
+		final long toTime = filter.toTime != null ? filter.toTime.getTime() : Long.MAX_VALUE;
+		final long minValue = filter.minValue != null ? filter.minValue.longValue() : Long.MIN_VALUE;
+		final long maxValue = filter.maxValue != null ? filter.maxValue.longValue() : Long.MAX_VALUE;
+
+		final List<Set<Entry>> candidates = new ArrayList<Set<Entry>>();
+		if (filter.query != null)
+		{
+			final Set<String> matchingAddresses = new HashSet<String>(labelledAddresses);
+			for (final Long addressId : addressSearch.search(filter.query))
+				matchingAddresses.add(addresses.get(addressId.intValue()));
+			for (final String address : matchingAddresses)
+			{
+				final Set<Entry> addressEntries = byAddress.get(address);
+				if (addressEntries != null)
+					candidates.add(addressEntries);
+			}
+		}
+		else if (filter.fromTime != null || filter.toTime != null)
+		{
+			if (fromTime <= toTime)
+				candidates.addAll(byTime.subMap(fromTime, true, toTime, true).values());
+		}
+		else if (filter.minValue != null || filter.maxValue != null)
+		{
+			if (minValue <= maxValue)
+				candidates.addAll(byValue.subMap(minValue, true, maxValue, true).values());
+		}
+		else
+		{
+			candidates.add(direction == Direction.RECEIVED ? received : direction == Direction.SENT ? sent : all);
+		}
+
+		final TreeSet<Entry> matches = new TreeSet<Entry>(ENTRY_COMPARATOR);
+		for (final Set<Entry> entries : candidates)
+		{
+			for (final Entry entry : entries)
+			{
+				if ((direction == Direction.RECEIVED && entry.sent) || (direction == Direction.SENT && !entry.sent))
+					continue;
+				if (entry.time < fromTime || entry.time > toTime)
+					continue;
+				if (entry.value < minValue || entry.value > maxValue)
+					continue;
+
+				matches.add(entry);
+				if (matches.size() > limit)
+					matches.pollLast();
+			}
+		}
+
+		final List<Transaction> result = new ArrayList<Transaction>(matches.size());
+		for (final Entry entry : matches)
+			result.add(entry.tx);
+
+		log.debug(filter + " matched " + result.size() + " transactions, took " + (System.currentTimeMillis() - start) + "ms");
+
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Returns all transactions ordered by update time, oldest first. The returned list is not affected by later changes,
+	 * so it can be walked at leisure without holding up wallet events.
+	 */
+	public synchronized List<Transaction> timeOrdered()
+	{
+		if (!built)
+			build();
+
+		final List<Transaction> result = new ArrayList<Transaction>(entries.size());
+		for (final Set<Entry> sameTime : byTime.values())
+			for (final Entry entry : sameTime)
+				result.add(entry.tx);
+
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Drops the index, so that it is rebuilt from the wallet on next use.
+	 */
+	public synchronized void invalidate()
+	{
+		built = false;
+		entries.clear();
+		all.clear();
+		received.clear();
+		sent.clear();
+		byTime.clear();
+		byValue.clear();
+		byAddress.clear();
+		addresses.clear();
+		addressIds.clear();
+		addressSearch.clear();
+		invalidateSnapshots();
+	}
+
+	private void build()
+	{
+		final long start = System.currentTimeMillis();
+
+		for (final Transaction tx : wallet.getTransactions(true))
+			insert(tx);
+		built = true;
+
+		log.info("indexed " + entries.size() + " transactions, took " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private synchronized void update(final Transaction tx)
+	{
+		if (!built)
+			return;
+
+		boolean changed = false;
+
+		final Entry entry = entries.remove(tx.getHash());
+		if (entry != null)
+		{
+			all.remove(entry);
+			(entry.sent ? sent : received).remove(entry);
+			removeFrom(byTime, entry.time, entry);
+			removeFrom(byValue, entry.value, entry);
+			if (entry.address != null)
+				removeFrom(byAddress, entry.address, entry);
+			changed = true;
+		}
+
+		if (wallet.getTransaction(tx.getHash()) != null)
+			changed |= insert(tx);
+
+		if (changed)
+			invalidateSnapshots();
+	}
+
+	private boolean insert(final Transaction tx)
+	{
+		if (shouldSuppress(contractToCreatorMap, tx))
+			return false;
+
+		final Entry entry = new Entry(tx, valueCache.get(tx));
+		entries.put(tx.getHash(), entry);
+		all.add(entry);
+		(entry.sent ? sent : received).add(entry);
+		addTo(byTime, entry.time, entry);
+		addTo(byValue, entry.value, entry);
+		if (entry.address != null)
+		{
+			addTo(byAddress, entry.address, entry);
+
+			// addresses stay searchable until the index is rebuilt, so their ids are stable
+			if (!addressIds.containsKey(entry.address))
+			{
+				addressIds.put(entry.address, addresses.size());
+				addressSearch.put(addresses.size(), entry.address);
+				addresses.add(entry.address);
+			}
+		}
+		return true;
+	}
+
+	private static <K> void addTo(final Map<K, Set<Entry>> index, final K key, final Entry entry)
+	{
+		Set<Entry> entries = index.get(key);
+		if (entries == null)
+		{
+			entries = new HashSet<Entry>(2);
+			index.put(key, entries);
+		}
+		entries.add(entry);
+	}
+
+	private static <K> void removeFrom(final Map<K, Set<Entry>> index, final K key, final Entry entry)
+	{
+		final Set<Entry> entries = index.get(key);
+		if (entries != null)
+		{
+			entries.remove(entry);
+			if (entries.isEmpty())
+				index.remove(key);
+		}
+	}
+
+	private void invalidateSnapshots()
+	{
+		allPrefix = null;
+		receivedPrefix = null;
+		sentPrefix = null;
+	}
+
+	private static Prefix toPrefix(final TreeSet<Entry> entries, final int limit)
+	{
+		final int size = Math.min(entries.size(), limit);
+		final List<Transaction> list = new ArrayList<Transaction>(size);
+		for (final Entry entry : entries)
+		{
+			if (list.size() == size)
+				break;
+			list.add(entry.tx);
+		}
+		return new Prefix(Collections.unmodifiableList(list), size == entries.size());
+	}
+
+	public static boolean shouldSuppress(final PaymentChannelContractToCreatorMap contractToCreatorMap, final Transaction tx)
+	{
+		// A payment channel is composed of two transactions: the contract, which puts money into a
+		// shared pot, and the refund, which settles the final balance on the blockchain. We don't
+		// want to show this complexity in the UI, so we render only the contract tx and suppress the
+		// refund tx. To find out if the current tx is a refund, we can see if it spends a contract.
+		//
+		// However, there is an edge case we must handle: if a payment channel is opened,
+		// closed and another one is opened, the second contract will spend the refund of the first. So
+		// we check for contract-ness first, and then refund-ness.
+		if (contractToCreatorMap.getCreatorApp(tx.getHash()) != null)
+			return false;
+
+		for (TransactionInput input : tx.getInputs())
+		{
+			final String creatorOfConnectedOutput = contractToCreatorMap.getCreatorApp(input.getOutpoint().getHash());
+			if (creatorOfConnectedOutput == null)
+				continue;
+			if (log.isDebugEnabled())
+			{
+				if (input.getConnectedOutput() != null)
+					log.debug("Skipping payment channel spend {} for '{}' with connected output {}", tx.getHashAsString(),
+							creatorOfConnectedOutput, input.getOutpoint().getHash());
+				else
+					log.debug("Skipping payment channel spend {} for '{}' without connected output {}", tx.getHashAsString(),
+							creatorOfConnectedOutput, input.getOutpoint().getHash());
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void onCoinsReceived(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
+	{
+		update(tx);
+	}
+
+	@Override
+	public void onCoinsSent(final Wallet wallet, final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance)
+	{
+		update(tx);
+	}
+
+	@Override
+	public void onTransactionConfidenceChanged(final Wallet wallet, final Transaction tx)
+	{
+		// pending-ness and update time decide the position in the list
+		final Entry entry;
+		synchronized (this)
+		{
+			entry = entries.get(tx.getHash());
+		}
+		if (entry == null || entry.pending != (tx.getConfidence().getConfidenceType() == ConfidenceType.PENDING)
+				|| entry.time != (tx.getUpdateTime() != null ? tx.getUpdateTime().getTime() : 0))
+			update(tx);
+	}
+
+	@Override
+	public void onReorganize(final Wallet wallet)
+	{
+		invalidate();
+	}
+
+	@Override
+	public void onKeysAdded(final Wallet wallet, final List<ECKey> keys)
+	{
+		// direction of transactions may have changed
+		invalidate();
+	}
+
+	@Override
+	public void onWalletChanged(final Wallet wallet)
+	{
+	}
+}
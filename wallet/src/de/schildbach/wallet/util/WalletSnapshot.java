@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Transaction;
+
+import de.schildbach.wallet.ui.TransactionsListFragment.Direction;
+
+/**
+ * What the UI shows of the wallet at one point in time. Snapshots are immutable and published by the
+ * {@link WalletSnapshotPublisher}, so any number of loaders can read them without touching the wallet.
+ */
+public final class WalletSnapshot
+{
+	public final long version;
+	public final BigInteger estimatedBalance;
+	public final BigInteger availableBalance;
+	public final List<ECKey> keys;
+	public final int transactionsWindow;
+
+	private final List<Transaction> allTransactions;
+	private final List<Transaction> receivedTransactions;
+	private final List<Transaction> sentTransactions;
+
+	public WalletSnapshot(final long version, final BigInteger estimatedBalance, final BigInteger availableBalance, final List<ECKey> keys,
+			final int transactionsWindow, final List<Transaction> allTransactions, final List<Transaction> receivedTransactions,
+			final List<Transaction> sentTransactions)
+	{
+		this.version = version;
+		this.estimatedBalance = estimatedBalance;
+		this.availableBalance = availableBalance;
+		this.keys = keys;
+		this.transactionsWindow = transactionsWindow;
+		this.allTransactions = allTransactions;
+		this.receivedTransactions = receivedTransactions;
+		this.sentTransactions = sentTransactions;
+	}
+
+	/**
+	 * Returns the transactions of the given direction (or all, if null) in transaction list order, up to
+	 * {@link #transactionsWindow} of them.
+	 */
+	public List<Transaction> getTransactions(@Nullable final Direction direction)
+	{
+		if (direction == Direction.RECEIVED)
+			return receivedTransactions;
+		else if (direction == Direction.SENT)
+			return sentTransactions;
+		else
+			return allTransactions;
+	}
+}
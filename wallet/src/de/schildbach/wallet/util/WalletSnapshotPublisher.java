@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.text.format.DateUtils;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Wallet;
+
+import de.schildbach.wallet.WalletApplication;
+import de.schildbach.wallet.ui.TransactionsListFragment.Direction;
+
+/**
+ * Publishes a {@link WalletSnapshot} after each (throttled) wallet change. Snapshots are built once on a background
+ * thread, from the balance tracker, the transactions index and the keys, and then shared by all loaders, so they
+ * neither register their own wallet listeners nor take the wallet lock.
+ *
+ * Must be created on the main thread.
+ */
+public class WalletSnapshotPublisher
+{
+	public interface Listener
+	{
+		/** will be called back on UI thread */
+		void onSnapshotPublished(WalletSnapshot snapshot);
+	}
+
+	private static final long THROTTLE_MS = DateUtils.SECOND_IN_MILLIS / 2;
+	private static final int DEFAULT_TRANSACTIONS_WINDOW = 100;
+
+	private final WalletApplication application;
+	private final Wallet wallet;
+	private final Handler backgroundHandler;
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	private volatile WalletSnapshot snapshot = null;
+
+	// all guarded by this
+	private long version = 0;
+	private final Map<Object, Integer> transactionsWindows = new HashMap<Object, Integer>();
+	private int transactionsWindow = DEFAULT_TRANSACTIONS_WINDOW; // the largest of the above, at least the default
+	private List<ECKey> keys = null;
+
+	private static final Logger log = LoggerFactory.getLogger(WalletSnapshotPublisher.class);
+
+	public WalletSnapshotPublisher(final WalletApplication application)
+	{
+		this.application = application;
+		this.wallet = application.getWallet();
+
+		final HandlerThread thread = new HandlerThread("snapshotPublisher", Process.THREAD_PRIORITY_BACKGROUND);
+		thread.start();
+		backgroundHandler = new Handler(thread.getLooper());
+
+		wallet.addEventListener(walletChangeListener);
+
+		// the first snapshot is built in the background right away, so it's usually there before anyone asks
+		requestPublish();
+	}
+
+	/**
+	 * Returns the most recent snapshot, or null if the first one hasn't been published yet. Listeners are called back
+	 * once it has. Never blocks, so it can be called on the UI thread.
+	 */
+	@Nullable
+	public WalletSnapshot getSnapshot()
+	{
+		return snapshot;
+	}
+
+	public void addListener(final Listener listener)
+	{
+		listeners.add(listener);
+	}
+
+	public void removeListener(final Listener listener)
+	{
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Makes future snapshots contain at least the given number of transactions per direction, until the subscriber
+	 * releases its window. Publishes a new snapshot if the current one is shorter.
+	 */
+	public void requestTransactionsWindow(final Object subscriber, final int window)
+	{
+		synchronized (this)
+		{
+			transactionsWindows.put(subscriber, window);
+
+			final int previousWindow = transactionsWindow;
+			updateTransactionsWindow();
+			if (transactionsWindow <= previousWindow)
+				return;
+		}
+
+		requestPublish();
+	}
+
+	/**
+	 * Drops the window requested by the given subscriber. Snapshots published from then on are only as long as the
+	 * remaining subscribers need.
+	 */
+	public synchronized void releaseTransactionsWindow(final Object subscriber)
+	{
+		if (transactionsWindows.remove(subscriber) != null)
+			updateTransactionsWindow();
+	}
+
+	private void updateTransactionsWindow()
+	{
+		int window = DEFAULT_TRANSACTIONS_WINDOW;
+		for (final int subscriberWindow : transactionsWindows.values())
+			window = Math.max(window, subscriberWindow);
+		transactionsWindow = window;
+	}
+
+	private void requestPublish()
+	{
+		backgroundHandler.removeCallbacks(publishRunnable);
+		backgroundHandler.post(publishRunnable);
+	}
+
+	private final Runnable publishRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			final WalletSnapshot published = publish();
+
+			for (final Listener listener : listeners)
+			{
+				mainHandler.post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						listener.onSnapshotPublished(published);
+					}
+				});
+			}
+		}
+	};
+
+	private synchronized WalletSnapshot publish()
+	{
+		final long start = System.currentTimeMillis();
+
+		if (keys == null)
+			keys = Collections.unmodifiableList(new ArrayList<ECKey>(wallet.getKeys()));
+
+		final BalanceTracker balanceTracker = application.getBalanceTracker();
+		final TransactionsIndex index = application.getTransactionsIndex();
+
+		final WalletSnapshot published = new WalletSnapshot(++version, balanceTracker.getEstimated(), balanceTracker.getAvailable(), keys,
+				transactionsWindow, index.page(null, transactionsWindow), index.page(Direction.RECEIVED, transactionsWindow), index.page(
+						Direction.SENT, transactionsWindow));
+		snapshot = published;
+
+		log.debug("published wallet snapshot " + published.version + ", took " + (System.currentTimeMillis() - start) + "ms");
+
+		return published;
+	}
+
+	private final ThrottelingWalletChangeListener walletChangeListener = new ThrottelingWalletChangeListener(THROTTLE_MS)
+	{
+		@Override
+		public void onThrotteledWalletChanged()
+		{
+			requestPublish();
+		}
+
+		@Override
+		public void onKeysAdded(final Wallet wallet, final List<ECKey> keysAdded)
+		{
+			synchronized (WalletSnapshotPublisher.this)
+			{
+				keys = null;
+			}
+
+			requestPublish();
+		}
+	};
+}
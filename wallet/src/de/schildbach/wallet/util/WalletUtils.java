@@ -129,11 +129,35 @@ public class WalletUtils
 
 	public static BigInteger localValue(final BigInteger btcValue, final BigInteger rate)
 	{
+		if (btcValue.bitLength() < 64 && rate.bitLength() < 64)
+		{
+			try
+			{
+				return BigInteger.valueOf(GenericUtils.localValue(btcValue.longValue(), rate.longValue()));
+			}
+			catch (final ArithmeticException x)
+			{
+				// result doesn't fit into a long
+			}
+		}
+
 		return btcValue.multiply(rate).divide(Utils.COIN);
 	}
 
 	public static BigInteger btcValue(final BigInteger localValue, final BigInteger rate)
 	{
+		if (localValue.bitLength() < 64 && rate.bitLength() < 64 && rate.signum() != 0)
+		{
+			try
+			{
+				return BigInteger.valueOf(GenericUtils.btcValue(localValue.longValue(), rate.longValue()));
+			}
+			catch (final ArithmeticException x)
+			{
+				// result doesn't fit into a long
+			}
+		}
+
 		return localValue.multiply(Utils.COIN).divide(rate);
 	}
 
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+
+public class ExchangeRateHistoryTest
+{
+	private static final long T = 1380000000000L;
+	private static final long MINUTE = 60 * 1000L;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		dir = File.createTempFile("rates", null);
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void tearDown()
+	{
+		for (final File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	@Test
+	public void recordsAndLooksUp() throws Exception
+	{
+		final ExchangeRateHistory history = new ExchangeRateHistory(dir);
+		history.record(rates("USD", 100, "EUR", 80, "usd", 1), T);
+
+		assertEquals(100, history.getRate("USD", T));
+		assertEquals(80, history.getRate("EUR", T + 10 * MINUTE));
+		assertEquals(0, history.getRate("GBP", T));
+		assertEquals(0, history.getRate("usd", T));
+
+		// read back from disk
+		final ExchangeRateHistory reopened = new ExchangeRateHistory(dir);
+		assertEquals(100, reopened.getRate("USD", T));
+		assertEquals(80, reopened.getRate("EUR", T));
+	}
+
+	@Test
+	public void appendsAtMostHourly() throws Exception
+	{
+		final ExchangeRateHistory history = new ExchangeRateHistory(dir);
+		history.record(rates("USD", 100), T);
+		history.record(rates("USD", 101), T + 30 * MINUTE);
+		assertEquals(100, history.getRate("USD", T + 30 * MINUTE));
+
+		history.record(rates("USD", 102), T + HOUR);
+		assertEquals(102, history.getRate("USD", T + HOUR));
+		assertEquals(100, history.getRate("USD", T));
+
+		// clock went backwards
+		history.record(rates("USD", 99), T - 2 * HOUR);
+		assertEquals(100, history.getRate("USD", T - 2 * HOUR));
+
+		assertEquals(4 + 2 * 12, new File(dir, "USD").length());
+	}
+
+	@Test
+	public void dropsTornTail() throws Exception
+	{
+		final ExchangeRateHistory history = new ExchangeRateHistory(dir);
+		history.record(rates("USD", 100), T);
+		history.record(rates("USD", 200), T + HOUR);
+
+		// last record only partially written
+		final File file = new File(dir, "USD");
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+
+		final ExchangeRateHistory reopened = new ExchangeRateHistory(dir);
+		assertEquals(100, reopened.getRate("USD", T + HOUR));
+
+		// the partial record is overwritten by the next one
+		reopened.record(rates("USD", 300), T + 2 * HOUR);
+		assertEquals(4 + 2 * 12, file.length());
+		assertEquals(100, new ExchangeRateHistory(dir).getRate("USD", T));
+		assertEquals(300, new ExchangeRateHistory(dir).getRate("USD", T + 2 * HOUR));
+	}
+
+	@Test
+	public void closestRecord() throws Exception
+	{
+		final ExchangeRateHistory history = new ExchangeRateHistory(dir);
+		history.record(rates("USD", 100), T);
+		history.record(rates("USD", 200), T + 4 * HOUR);
+
+		assertEquals(100, history.getRate("USD", T + HOUR));
+		assertEquals(200, history.getRate("USD", T + 3 * HOUR));
+		// ties go to the earlier record
+		assertEquals(100, history.getRate("USD", T + 2 * HOUR));
+
+		// before the first and after the last record
+		assertEquals(100, history.getRate("USD", T - 5 * HOUR));
+		assertEquals(200, history.getRate("USD", T + 9 * HOUR));
+	}
+
+	@Test
+	public void notFurtherThanADay() throws Exception
+	{
+		final ExchangeRateHistory history = new ExchangeRateHistory(dir);
+		history.record(rates("USD", 100), T);
+		history.record(rates("USD", 200), T + 3 * DAY);
+
+		assertEquals(100, history.getRate("USD", T - DAY));
+		assertEquals(0, history.getRate("USD", T - DAY - MINUTE));
+		assertEquals(100, history.getRate("USD", T + DAY));
+		assertEquals(0, history.getRate("USD", T + DAY + 12 * HOUR));
+		assertEquals(200, history.getRate("USD", T + 2 * DAY));
+		assertEquals(200, history.getRate("USD", T + 4 * DAY));
+		assertEquals(0, history.getRate("USD", T + 4 * DAY + MINUTE));
+	}
+
+	private static Map<String, ExchangeRate> rates(final Object... codesAndRates)
+	{
+		final Map<String, ExchangeRate> rates = new HashMap<String, ExchangeRate>();
+		for (int i = 0; i < codesAndRates.length; i += 2)
+		{
+			final String currencyCode = (String) codesAndRates[i];
+			rates.put(currencyCode, new ExchangeRate(currencyCode, BigInteger.valueOf((Integer) codesAndRates[i + 1]), "test"));
+		}
+		return rates;
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.bitcoin.core.Utils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.schildbach.wallet.ExchangeRatesProvider.ExchangeRate;
+
+/**
+ * Races sources served by a local HTTP server.
+ */
+public class ExchangeRateSourcesTest
+{
+	private HttpServer server;
+	private final EtagResponder etagResponder = new EtagResponder();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/fast", new Responder(0, 200, "USD 100.5\nEUR 80\n"));
+		server.createContext("/slow", new Responder(5000, 200, "USD 99\n"));
+		server.createContext("/broken", new Responder(0, 500, ""));
+		server.createContext("/empty", new Responder(0, 200, ""));
+		server.createContext("/bitcoincharts", new Responder(0, 200, "{\"USD\": {\"7d\": \"120.00\", \"30d\": \"110.00\", \"24h\": \"123.45\"}, "
+				+ "\"EUR\": {\"7d\": \"90.123456789\", \"30d\": \"80\"}, \"XXX\": {\"24h\": null}, \"timestamp\": 1380000000}"));
+		server.createContext("/blockchaininfo", new Responder(0, 200, "{\n  \"USD\" : {\"15m\" : 123.45, \"last\" : 123.4, \"symbol\" : \"$\"},\n"
+				+ "  \"JPY\" : {\"15m\" : 12345, \"last\" : 12344, \"symbol\" : \"\\u00a5\"}\n}"));
+		server.createContext("/etag", etagResponder);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		server.stop(0);
+	}
+
+	@Test
+	public void fastestSourceWins() throws Exception
+	{
+		final ExchangeRateSources sources = new ExchangeRateSources(Arrays.<ExchangeRateSource> asList(source("/slow"), source("/fast")), 5000);
+
+		final long start = System.currentTimeMillis();
+		final Map<String, ExchangeRate> rates = sources.fetch();
+
+		assertNotNull(rates);
+		assertEquals(Utils.toNanoCoins("100.5"), rates.get("USD").rate);
+		assertEquals(2, rates.size());
+		assertTrue(System.currentTimeMillis() - start < 1000);
+	}
+
+	@Test
+	public void failsOver() throws Exception
+	{
+		final ExchangeRateSources sources = new ExchangeRateSources(Arrays.<ExchangeRateSource> asList(source("/broken"), source("/empty"),
+				source("/slow")), 10000);
+
+		final Map<String, ExchangeRate> rates = sources.fetch();
+
+		assertNotNull(rates);
+		assertEquals(Utils.toNanoCoins("99"), rates.get("USD").rate);
+
+		for (final ExchangeRateSources.Stats stats : sources.getStats())
+		{
+			assertEquals(1, stats.getRequests());
+			assertEquals(stats.name.endsWith("/slow") ? 0f : 1f, stats.getErrorRate(), 0f);
+		}
+	}
+
+	@Test
+	public void allFail() throws Exception
+	{
+		final ExchangeRateSources sources = new ExchangeRateSources(Arrays.<ExchangeRateSource> asList(source("/broken"), source("/empty")), 5000);
+
+		assertNull(sources.fetch());
+	}
+
+	@Test
+	public void timesOut() throws Exception
+	{
+		final ExchangeRateSources sources = new ExchangeRateSources(Arrays.<ExchangeRateSource> asList(source("/slow")), 200);
+
+		assertNull(sources.fetch());
+	}
+
+	@Test
+	public void parsesBitcoinCharts() throws Exception
+	{
+		final Map<String, ExchangeRate> rates = new ExchangeRateSources.BitcoinChartsSource(url("/bitcoincharts")).fetch(5000);
+
+		assertEquals(2, rates.size());
+		assertEquals(Utils.toNanoCoins("123.45"), rates.get("USD").rate);
+		assertEquals(Utils.toNanoCoins("90.12345679"), rates.get("EUR").rate); // 7d, rounded
+	}
+
+	@Test
+	public void parsesBlockchainInfo() throws Exception
+	{
+		final Map<String, ExchangeRate> rates = new ExchangeRateSources.BlockchainInfoSource(url("/blockchaininfo")).fetch(5000);
+
+		assertEquals(2, rates.size());
+		assertEquals(Utils.toNanoCoins("123.45"), rates.get("USD").rate);
+		assertEquals(Utils.toNanoCoins("12345"), rates.get("JPY").rate);
+	}
+
+	@Test
+	public void conditionalRequest() throws Exception
+	{
+		final ExchangeRateSource source = new ExchangeRateSources.BlockchainInfoSource(url("/etag"));
+
+		final Map<String, ExchangeRate> rates = source.fetch(5000);
+		assertEquals(Utils.toNanoCoins("123.45"), rates.get("USD").rate);
+		assertSame(rates, source.fetch(5000));
+		assertEquals(2, etagResponder.requests);
+		assertEquals(1, etagResponder.fullResponses);
+	}
+
+	private URL url(final String path) throws Exception
+	{
+		return new URL("http", "127.0.0.1", server.getAddress().getPort(), path);
+	}
+
+	private ExchangeRateSource source(final String path) throws Exception
+	{
+		return new ExchangeRateSource(url(path))
+		{
+			@Override
+			public String getName()
+			{
+				return url.getPath();
+			}
+
+			// one "currency rate" pair per line
+			@Override
+			protected Map<String, ExchangeRate> parse(final Reader reader) throws IOException
+			{
+				final Map<String, ExchangeRate> rates = new TreeMap<String, ExchangeRate>();
+				final BufferedReader lines = new BufferedReader(reader);
+				String line;
+				while ((line = lines.readLine()) != null)
+				{
+					final String[] fields = line.split(" ");
+					rates.put(fields[0], new ExchangeRate(fields[0], Utils.toNanoCoins(fields[1]), getName()));
+				}
+				return rates;
+			}
+		};
+	}
+
+	private static final class EtagResponder implements HttpHandler
+	{
+		private static final String ETAG = "\"v1\"";
+		private static final byte[] BODY = "{\"USD\": {\"15m\": 123.45}}".getBytes();
+
+		private volatile int requests = 0;
+		private volatile int fullResponses = 0;
+
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException
+		{
+			requests++;
+
+			if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+			{
+				exchange.sendResponseHeaders(304, -1);
+			}
+			else
+			{
+				fullResponses++;
+				exchange.getResponseHeaders().set("ETag", ETAG);
+				exchange.sendResponseHeaders(200, BODY.length);
+				exchange.getResponseBody().write(BODY);
+			}
+
+			exchange.close();
+		}
+	}
+
+	private static final class Responder implements HttpHandler
+	{
+		private final long delayMs;
+		private final int status;
+		private final byte[] body;
+
+		public Responder(final long delayMs, final int status, final String body)
+		{
+			this.delayMs = delayMs;
+			this.status = status;
+			this.body = body.getBytes();
+		}
+
+		@Override
+		public void handle(final HttpExchange exchange) throws IOException
+		{
+			try
+			{
+				Thread.sleep(delayMs);
+			}
+			catch (final InterruptedException x)
+			{
+				Thread.currentThread().interrupt();
+			}
+
+			exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+			final OutputStream os = exchange.getResponseBody();
+			os.write(body);
+			os.close();
+		}
+	}
+}
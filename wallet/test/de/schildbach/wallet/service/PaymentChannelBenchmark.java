@@ -0,0 +1,354 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.service;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bitcoin.paymentchannel.Protos;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionBroadcaster;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.protocols.channels.PaymentChannelClient;
+import com.google.bitcoin.protocols.channels.PaymentChannelCloseException;
+import com.google.bitcoin.protocols.channels.PaymentChannelServer;
+import com.google.bitcoin.protocols.channels.StoredPaymentChannelClientStates;
+import com.google.bitcoin.protocols.channels.StoredPaymentChannelServerStates;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import de.schildbach.wallet.util.AppAllowanceLedger;
+
+/**
+ * Measures payment channel throughput without a device or a network.
+ *
+ * <p>Each channel is a real {@link PaymentChannelClient} talking to a real {@link PaymentChannelServer} over a loopback
+ * transport: messages are serialized to bytes and parsed again on a per-direction delivery thread, like they are when
+ * relayed through a connected app. Payments follow the same discipline as {@link ChannelService}'s payServer(): check
+ * the allowance under the service lock, release it while waiting for the server to ack, then charge the allowance
+ * ledger under the lock again. Incoming messages are delivered to the client under that lock too, like
+ * messageReceived() does.</p>
+ *
+ * <p>For 1..N concurrent channels it reports payments/sec, p50/p99 payment latency, and how often (and how long)
+ * threads had to wait for the service lock. Failed payments are counted separately and left out of the rate and
+ * latencies.</p>
+ *
+ * <pre>
+ * usage: PaymentChannelBenchmark [maxChannels] [paymentsPerChannel]
+ * </pre>
+ */
+public class PaymentChannelBenchmark {
+	private static final NetworkParameters PARAMS = UnitTestParams.get();
+	private static final BigInteger CHANNEL_SIZE = Utils.COIN;
+	private static final BigInteger PAYMENT_SIZE = BigInteger.valueOf(1000);
+	private static final String APP_ID = "benchmark.app";
+
+	// Stands in for ChannelService.lock and records contention on it.
+	private static class ContendedLock {
+		final ReentrantLock lock = new ReentrantLock();
+		final AtomicLong acquisitions = new AtomicLong();
+		final AtomicLong contended = new AtomicLong();
+		final AtomicLong waitNanos = new AtomicLong();
+
+		void lock() {
+			acquisitions.incrementAndGet();
+			if (lock.tryLock())
+				return;
+			contended.incrementAndGet();
+			long start = System.nanoTime();
+			lock.lock();
+			waitNanos.addAndGet(System.nanoTime() - start);
+		}
+
+		void unlock() {
+			lock.unlock();
+		}
+	}
+
+	// Broadcasts go nowhere, which is all the server and client states need to make progress.
+	private static final TransactionBroadcaster LOOPBACK_BROADCASTER = new TransactionBroadcaster() {
+		@Override
+		public ListenableFuture<Transaction> broadcastTransaction(Transaction tx) {
+			return Futures.immediateFuture(tx);
+		}
+	};
+
+	private static class LoopbackChannel {
+		final ExecutorService toServer = Executors.newSingleThreadExecutor();
+		final ExecutorService toClient = Executors.newSingleThreadExecutor();
+		final CountDownLatch open = new CountDownLatch(1);
+		PaymentChannelClient client;
+		PaymentChannelServer server;
+
+		void shutdown() {
+			toServer.shutdownNow();
+			toClient.shutdownNow();
+		}
+	}
+
+	private final ContendedLock lock = new ContendedLock();
+	private final AppAllowanceLedger ledger;
+
+	private PaymentChannelBenchmark(AppAllowanceLedger ledger) {
+		this.ledger = ledger;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int maxChannels = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int paymentsPerChannel = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+		System.out.println("channels  payments/s   p50 ms   p99 ms  failed   lock acq  contended  lock wait ms");
+		for (int channels = 1; channels <= maxChannels; channels++) {
+			File journal = File.createTempFile("allowances", null);
+			journal.delete();
+			AppAllowanceLedger ledger = new AppAllowanceLedger(journal, 250);
+			try {
+				new PaymentChannelBenchmark(ledger).run(channels, paymentsPerChannel);
+			} finally {
+				ledger.close();
+				journal.delete();
+			}
+		}
+	}
+
+	private void run(int numChannels, final int paymentsPerChannel) throws Exception {
+		Wallet clientWallet = createFundedClientWallet(numChannels);
+		Wallet serverWallet = new Wallet(PARAMS);
+		serverWallet.addExtension(new StoredPaymentChannelServerStates(serverWallet, LOOPBACK_BROADCASTER));
+		ledger.add(APP_ID, CHANNEL_SIZE.longValue() * numChannels);
+
+		// Channels are opened one after another, so each contract picks its own funding output.
+		final List<LoopbackChannel> channels = new ArrayList<LoopbackChannel>(numChannels);
+		for (int i = 0; i < numChannels; i++) {
+			LoopbackChannel channel = open(clientWallet, serverWallet, "host-" + i);
+			if (!channel.open.await(30, TimeUnit.SECONDS))
+				throw new IllegalStateException("channel " + i + " did not open");
+			channels.add(channel);
+		}
+
+		lock.acquisitions.set(0);
+		lock.contended.set(0);
+		lock.waitNanos.set(0);
+
+		final long[][] latencies = new long[numChannels][paymentsPerChannel];
+		final int[] completed = new int[numChannels];
+		final AtomicLong failures = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(numChannels);
+		for (int i = 0; i < numChannels; i++) {
+			final int index = i;
+			Thread payer = new Thread("payer " + i) {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int p = 0; p < paymentsPerChannel; p++) {
+							long begin = System.nanoTime();
+							try {
+								pay(channels.get(index).client);
+								latencies[index][completed[index]++] = System.nanoTime() - begin;
+							} catch (Exception e) {
+								if (failures.incrementAndGet() == 1)
+									System.err.println("payment failed: " + e);
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			payer.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		for (LoopbackChannel channel : channels)
+			channel.shutdown();
+
+		// Only slots of completed payments were filled; done.await() makes them visible here.
+		int total = 0;
+		for (int i = 0; i < numChannels; i++)
+			total += completed[i];
+		long[] all = new long[total];
+		int offset = 0;
+		for (int i = 0; i < numChannels; i++) {
+			System.arraycopy(latencies[i], 0, all, offset, completed[i]);
+			offset += completed[i];
+		}
+		Arrays.sort(all);
+
+		System.out.println(String.format(Locale.US, "%8d  %10.0f  %7.3f  %7.3f  %6d  %9d  %9d  %12.1f", numChannels, all.length
+				/ (elapsed / 1e9), percentile(all, 50) / 1e6, percentile(all, 99) / 1e6, failures.get(),
+				lock.acquisitions.get(), lock.contended.get(), lock.waitNanos.get() / 1e6));
+	}
+
+	// Mirrors ChannelService.LocalBinder.payServer()
+	private void pay(PaymentChannelClient client) throws Exception {
+		lock.lock();
+		try {
+			if (ledger.get(APP_ID) < PAYMENT_SIZE.longValue())
+				throw new IllegalStateException("allowance exhausted");
+			long actualAmount;
+			lock.unlock();
+			try {
+				actualAmount = Futures.getUnchecked(client.incrementPayment(PAYMENT_SIZE)).longValue();
+			} finally {
+				lock.lock();
+			}
+			ledger.add(APP_ID, -actualAmount);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private LoopbackChannel open(Wallet clientWallet, Wallet serverWallet, String hostId) {
+		final LoopbackChannel channel = new LoopbackChannel();
+
+		channel.server = new PaymentChannelServer(LOOPBACK_BROADCASTER, serverWallet, Utils.CENT,
+				new PaymentChannelServer.ServerConnection() {
+					@Override
+					public void sendToClient(Protos.TwoWayChannelMessage msg) {
+						final byte[] bytes = msg.toByteArray();
+						channel.toClient.execute(new Runnable() {
+							@Override
+							public void run() {
+								// Mirrors ChannelService.LocalBinder.messageReceived()
+								Protos.TwoWayChannelMessage received = parse(bytes);
+								lock.lock();
+								try {
+									channel.client.receiveMessage(received);
+								} catch (Exception e) {
+									throw new RuntimeException(e);
+								} finally {
+									lock.unlock();
+								}
+							}
+						});
+					}
+
+					@Override
+					public void destroyConnection(PaymentChannelCloseException.CloseReason reason) {
+						System.err.println("server closed connection: " + reason);
+					}
+
+					@Override
+					public void paymentIncrease(BigInteger by, BigInteger to) {
+					}
+
+					@Override
+					public void channelOpen(Sha256Hash contractHash) {
+					}
+				});
+
+		lock.lock();
+		try {
+			channel.client = new PaymentChannelClient(clientWallet, clientWallet.getKeys().get(0), CHANNEL_SIZE,
+					Sha256Hash.create(hostId.getBytes()), new PaymentChannelClient.ClientConnection() {
+						@Override
+						public void sendToServer(Protos.TwoWayChannelMessage msg) {
+							final byte[] bytes = msg.toByteArray();
+							channel.toServer.execute(new Runnable() {
+								@Override
+								public void run() {
+									channel.server.receiveMessage(parse(bytes));
+								}
+							});
+						}
+
+						@Override
+						public void destroyConnection(PaymentChannelCloseException.CloseReason reason) {
+							System.err.println("client closed connection: " + reason);
+						}
+
+						@Override
+						public void channelOpen(boolean wasInitiated) {
+							channel.open.countDown();
+						}
+					});
+			channel.server.connectionOpen();
+			channel.client.connectionOpen();
+		} finally {
+			lock.unlock();
+		}
+		return channel;
+	}
+
+	// A wallet with one confirmed output per channel, so opening channels does not depend on change being spendable.
+	private static Wallet createFundedClientWallet(int numChannels) throws Exception {
+		Wallet wallet = new Wallet(PARAMS);
+		ECKey key = new ECKey();
+		wallet.addKey(key);
+		wallet.addExtension(new StoredPaymentChannelClientStates(wallet, LOOPBACK_BROADCASTER));
+
+		BigInteger outputValue = CHANNEL_SIZE.multiply(BigInteger.valueOf(2));
+		Transaction prevTx = new Transaction(PARAMS);
+		prevTx.addOutput(new TransactionOutput(PARAMS, prevTx, outputValue.multiply(BigInteger.valueOf(numChannels)),
+				new ECKey().toAddress(PARAMS)));
+		Transaction funding = new Transaction(PARAMS);
+		funding.addInput(prevTx.getOutput(0));
+		for (int i = 0; i < numChannels; i++)
+			funding.addOutput(new TransactionOutput(PARAMS, funding, outputValue, key.toAddress(PARAMS)));
+
+		Block block = PARAMS.getGenesisBlock().createNextBlock(new ECKey().toAddress(PARAMS));
+		StoredBlock storedBlock = new StoredBlock(block, BigInteger.ONE, 1);
+		wallet.receiveFromBlock(funding, storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+		wallet.notifyNewBestBlock(storedBlock);
+		return wallet;
+	}
+
+	private static Protos.TwoWayChannelMessage parse(byte[] bytes) {
+		try {
+			return Protos.TwoWayChannelMessage.parseFrom(bytes);
+		} catch (InvalidProtocolBufferException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long percentile(long[] sorted, int percentile) {
+		if (sorted.length == 0)
+			return 0;
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
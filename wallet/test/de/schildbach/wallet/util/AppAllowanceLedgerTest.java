@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AppAllowanceLedgerTest {
+	private File journalFile;
+
+	@Before
+	public void setUp() throws Exception {
+		journalFile = File.createTempFile("allowances", null);
+		journalFile.delete();
+	}
+
+	@After
+	public void tearDown() {
+		journalFile.delete();
+		new File(journalFile.getPath() + ".tmp").delete();
+	}
+
+	@Test
+	public void replaysJournal() throws Exception {
+		AppAllowanceLedger ledger = new AppAllowanceLedger(journalFile, 0);
+		assertEquals(100, ledger.add("app1", 100));
+		assertEquals(70, ledger.add("app1", -30));
+		assertEquals(5, ledger.add("app2", 5));
+		ledger.close();
+
+		ledger = new AppAllowanceLedger(journalFile, 0);
+		assertEquals(70, ledger.get("app1"));
+		assertEquals(5, ledger.get("app2"));
+		assertEquals(0, ledger.get("app3"));
+		assertEquals(2, ledger.getAll().size());
+		ledger.close();
+	}
+
+	@Test
+	public void dropsTornTail() throws Exception {
+		AppAllowanceLedger ledger = new AppAllowanceLedger(journalFile, 0);
+		ledger.add("app1", 100);
+		ledger.close();
+		long validLength = journalFile.length();
+
+		ledger = new AppAllowanceLedger(journalFile, 0);
+		ledger.add("app1", -30);
+		ledger.close();
+		truncate(journalFile.length() - 3);
+
+		ledger = new AppAllowanceLedger(journalFile, 0);
+		assertEquals(100, ledger.get("app1"));
+		assertEquals(validLength, journalFile.length());
+
+		// appends after the dropped record are read back
+		ledger.add("app1", -10);
+		ledger.close();
+		ledger = new AppAllowanceLedger(journalFile, 0);
+		assertEquals(90, ledger.get("app1"));
+		ledger.close();
+	}
+
+	@Test
+	public void dropsRecordWithBadChecksum() throws Exception {
+		AppAllowanceLedger ledger = new AppAllowanceLedger(journalFile, 0);
+		ledger.add("app1", 100);
+		ledger.add("app1", -30);
+		ledger.close();
+
+		// flip a bit in the checksum of the last record
+		RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+		file.seek(file.length() - 1);
+		int b = file.read();
+		file.seek(file.length() - 1);
+		file.write(b ^ 1);
+		file.close();
+
+		ledger = new AppAllowanceLedger(journalFile, 0);
+		assertEquals(100, ledger.get("app1"));
+		ledger.close();
+	}
+
+	@Test
+	public void compactsJournal() throws Exception {
+		AppAllowanceLedger ledger = new AppAllowanceLedger(journalFile, 0);
+		ledger.add("app2", 7);
+		for (int i = 0; i < 300; i++)
+			ledger.add("app1", 1);
+		long fullLength = journalFile.length();
+
+		// compaction runs in the background, after the sync
+		long deadline = System.currentTimeMillis() + 5000;
+		while (journalFile.length() >= fullLength && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertTrue(journalFile.length() < fullLength / 100);
+
+		// the journal stays appendable after being replaced
+		ledger.add("app1", 1);
+		ledger.close();
+
+		ledger = new AppAllowanceLedger(journalFile, 0);
+		assertEquals(301, ledger.get("app1"));
+		assertEquals(7, ledger.get("app2"));
+		ledger.close();
+	}
+
+	private void truncate(long length) throws Exception {
+		RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+		file.setLength(length);
+		file.close();
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.Random;
+
+import com.google.bitcoin.core.Utils;
+
+/**
+ * Compares converting between bitcoin and fiat values with BigInteger arithmetic, like it used to be done, against
+ * the long arithmetic of {@link GenericUtils}.
+ *
+ * Reports time and, where the VM can tell, allocated bytes per conversion.
+ *
+ * <pre>
+ * usage: FiatConversionBenchmark [values] [rounds]
+ * </pre>
+ */
+public class FiatConversionBenchmark
+{
+	private static final long RATE = 12345000000L; // 123.45 per bitcoin
+
+	private interface Conversion
+	{
+		long run(long[] btcValues, BigInteger[] btcBigValues);
+	}
+
+	public static void main(final String[] args)
+	{
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+		// amounts as they occur in a wallet, from a few satoshis to some thousand bitcoins
+		final Random random = new Random(0);
+		final long[] btcValues = new long[count];
+		final BigInteger[] btcBigValues = new BigInteger[count];
+		for (int i = 0; i < count; i++)
+		{
+			final long value = (long) Math.pow(10, random.nextDouble() * 11.5) * (random.nextBoolean() ? 1 : -1);
+			btcValues[i] = value;
+			btcBigValues[i] = BigInteger.valueOf(value);
+		}
+
+		final BigInteger bigRate = BigInteger.valueOf(RATE);
+
+		System.out.println("conversion                 ns/op    bytes/op   checksum");
+
+		measure("BigInteger localValue", count, rounds, btcValues, btcBigValues, new Conversion()
+		{
+			@Override
+			public long run(final long[] btcValues, final BigInteger[] btcBigValues)
+			{
+				long sum = 0;
+				for (final BigInteger value : btcBigValues)
+					sum += value.multiply(bigRate).divide(Utils.COIN).longValue();
+				return sum;
+			}
+		});
+
+		measure("long localValue", count, rounds, btcValues, btcBigValues, new Conversion()
+		{
+			@Override
+			public long run(final long[] btcValues, final BigInteger[] btcBigValues)
+			{
+				long sum = 0;
+				for (final long value : btcValues)
+					sum += GenericUtils.localValue(value, RATE);
+				return sum;
+			}
+		});
+
+		measure("BigInteger btcValue", count, rounds, btcValues, btcBigValues, new Conversion()
+		{
+			@Override
+			public long run(final long[] btcValues, final BigInteger[] btcBigValues)
+			{
+				long sum = 0;
+				for (final BigInteger value : btcBigValues)
+					sum += value.multiply(Utils.COIN).divide(bigRate).longValue();
+				return sum;
+			}
+		});
+
+		measure("long btcValue", count, rounds, btcValues, btcBigValues, new Conversion()
+		{
+			@Override
+			public long run(final long[] btcValues, final BigInteger[] btcBigValues)
+			{
+				long sum = 0;
+				for (final long value : btcValues)
+					sum += GenericUtils.btcValue(value, RATE);
+				return sum;
+			}
+		});
+	}
+
+	private static void measure(final String name, final int count, final int rounds, final long[] btcValues, final BigInteger[] btcBigValues,
+			final Conversion conversion)
+	{
+		// warm up, so the JIT has compiled what is measured
+		long checksum = 0;
+		for (int i = 0; i < rounds; i++)
+			checksum += conversion.run(btcValues, btcBigValues);
+
+		final long allocatedBefore = allocatedBytes();
+		final long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+			checksum += conversion.run(btcValues, btcBigValues);
+		final long elapsed = System.nanoTime() - start;
+		final long allocated = allocatedBytes() - allocatedBefore;
+
+		final long ops = (long) count * rounds;
+		System.out.println(String.format("%-24s %7.1f %11s   %d", name, (double) elapsed / ops, allocatedBefore >= 0 ? String.format("%.1f",
+				(double) allocated / ops) : "n/a", checksum));
+	}
+
+	private static long allocatedBytes()
+	{
+		try
+		{
+			final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		catch (final Throwable x)
+		{
+			return -1; // not a HotSpot VM
+		}
+	}
+}
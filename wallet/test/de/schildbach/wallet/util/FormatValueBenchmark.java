@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Compares formatting amounts with String.format, like {@link GenericUtils#formatValue(BigInteger, int)} used to do,
+ * against the current formatter, once returning strings and once appending to a reused builder like
+ * {@link de.schildbach.wallet.ui.CurrencyTextView} does.
+ *
+ * Reports time and, where the VM can tell, allocated bytes per formatted amount.
+ *
+ * <pre>
+ * usage: FormatValueBenchmark [values] [rounds]
+ * </pre>
+ */
+public class FormatValueBenchmark
+{
+	private interface Formatter
+	{
+		long run(long[] values, BigInteger[] bigValues, int precision);
+	}
+
+	public static void main(final String[] args)
+	{
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		// amounts as they occur in a wallet, from a few satoshis to some thousand bitcoins
+		final Random random = new Random(0);
+		final long[] values = new long[count];
+		final BigInteger[] bigValues = new BigInteger[count];
+		for (int i = 0; i < count; i++)
+		{
+			final long value = (long) Math.pow(10, random.nextDouble() * 11.5) * (random.nextBoolean() ? 1 : -1);
+			values[i] = value;
+			bigValues[i] = BigInteger.valueOf(value);
+		}
+
+		final StringBuilder builder = new StringBuilder();
+
+		System.out.println("formatter             precision    ns/op    bytes/op   checksum");
+
+		for (final int precision : new int[] { 2, 4, 8 })
+		{
+			measure("String.format", precision, count, rounds, values, bigValues, new Formatter()
+			{
+				@Override
+				public long run(final long[] values, final BigInteger[] bigValues, final int precision)
+				{
+					long sum = 0;
+					for (final BigInteger value : bigValues)
+						sum += GenericUtilsTest.formatValueWithStringFormat(value.longValue(), "+", "-", precision).length();
+					return sum;
+				}
+			});
+
+			measure("formatValue", precision, count, rounds, values, bigValues, new Formatter()
+			{
+				@Override
+				public long run(final long[] values, final BigInteger[] bigValues, final int precision)
+				{
+					long sum = 0;
+					for (final BigInteger value : bigValues)
+						sum += GenericUtils.formatValue(value, "+", "-", precision).length();
+					return sum;
+				}
+			});
+
+			measure("formatValue (builder)", precision, count, rounds, values, bigValues, new Formatter()
+			{
+				@Override
+				public long run(final long[] values, final BigInteger[] bigValues, final int precision)
+				{
+					long sum = 0;
+					for (final long value : values)
+					{
+						builder.setLength(0);
+						sum += GenericUtils.formatValue(value, "+", "-", precision, builder).length();
+					}
+					return sum;
+				}
+			});
+		}
+	}
+
+	private static void measure(final String name, final int precision, final int count, final int rounds, final long[] values,
+			final BigInteger[] bigValues, final Formatter formatter)
+	{
+		// warm up, so the JIT has compiled what is measured
+		long checksum = 0;
+		for (int i = 0; i < rounds; i++)
+			checksum += formatter.run(values, bigValues, precision);
+
+		final long allocatedBefore = allocatedBytes();
+		final long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++)
+			checksum += formatter.run(values, bigValues, precision);
+		final long elapsed = System.nanoTime() - start;
+		final long allocated = allocatedBytes() - allocatedBefore;
+
+		final long ops = (long) count * rounds;
+		System.out.println(String.format("%-24s %6d %8.1f %11s   %d", name, precision, (double) elapsed / ops,
+				allocatedBefore >= 0 ? String.format("%.1f", (double) allocated / ops) : "n/a", checksum));
+	}
+
+	private static long allocatedBytes()
+	{
+		try
+		{
+			final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		catch (final Throwable x)
+		{
+			return -1; // not a HotSpot VM
+		}
+	}
+}
@@ -20,9 +20,14 @@ package de.schildbach.wallet.util;
 import static org.junit.Assert.assertEquals;
 
 import java.math.BigInteger;
+import java.util.Locale;
+import java.util.Random;
 
 import org.junit.Test;
 
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Utils;
+
 /**
  * @author Andreas Schildbach
  */
@@ -51,4 +56,125 @@ public class GenericUtilsTest
 		assertEquals("11223344.556678", GenericUtils.formatValue(value, 6));
 		assertEquals("11223344.55667788", GenericUtils.formatValue(value, 8));
 	}
+
+	@Test
+	public void formatValueIntoBuilder() throws Exception
+	{
+		final StringBuilder builder = new StringBuilder("value: ");
+		GenericUtils.formatValue(-1122334455667788L, "+", "-", 6, builder);
+		assertEquals("value: -11223344.556678", builder.toString());
+
+		builder.setLength(0);
+		GenericUtils.formatValue(5000000L, "+", "-", 8, builder);
+		assertEquals("+0.05", builder.toString());
+	}
+
+	@Test
+	public void formatValueLikeStringFormat() throws Exception
+	{
+		final Random random = new Random(0);
+
+		for (int i = 0; i < 100000; i++)
+		{
+			final long value = (random.nextLong() % NetworkParameters.MAX_MONEY.longValue()) >> random.nextInt(50);
+			final int precision = 2 + random.nextInt(4) * 2;
+
+			assertEquals(formatValueWithStringFormat(value, "", "-", precision), GenericUtils.formatValue(BigInteger.valueOf(value), precision));
+			assertEquals(formatValueWithStringFormat(value, "+", "-", precision),
+					GenericUtils.formatValue(BigInteger.valueOf(value), "+", "-", precision));
+		}
+	}
+
+	@Test
+	public void localValue() throws Exception
+	{
+		final long rate = 12345000000L; // 123.45
+		assertEquals(12345000000L, GenericUtils.localValue(100000000L, rate));
+		assertEquals(-1234500L, GenericUtils.localValue(-10000L, rate));
+		assertEquals(0, GenericUtils.localValue(0, rate));
+
+		// a product that exceeds a long although the result doesn't
+		final long maxMoney = NetworkParameters.MAX_MONEY.longValue();
+		assertEquals(expectedLocalValue(maxMoney, rate), GenericUtils.localValue(maxMoney, rate));
+		assertEquals(expectedLocalValue(-maxMoney, rate), GenericUtils.localValue(-maxMoney, rate));
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void localValueOverflow() throws Exception
+	{
+		GenericUtils.localValue(NetworkParameters.MAX_MONEY.longValue(), Long.MAX_VALUE / 1000);
+	}
+
+	@Test
+	public void btcValue() throws Exception
+	{
+		final long rate = 12345000000L; // 123.45
+		assertEquals(100000000L, GenericUtils.btcValue(12345000000L, rate));
+		assertEquals(-81004L, GenericUtils.btcValue(-10000000L, rate));
+
+		final long largeRate = 2600000000000000L; // 26000000
+		assertEquals(expectedBtcValue(Long.MAX_VALUE / 3, largeRate), GenericUtils.btcValue(Long.MAX_VALUE / 3, largeRate));
+		final long hugeRate = Long.MAX_VALUE / 7;
+		assertEquals(expectedBtcValue(Long.MAX_VALUE / 3, hugeRate), GenericUtils.btcValue(Long.MAX_VALUE / 3, hugeRate));
+	}
+
+	@Test
+	public void conversionsMatchBigInteger() throws Exception
+	{
+		final Random random = new Random(0);
+		final long maxMoney = NetworkParameters.MAX_MONEY.longValue();
+
+		for (int i = 0; i < 100000; i++)
+		{
+			final long value = (random.nextLong() % maxMoney) >> random.nextInt(50);
+			final long rate = Math.abs(random.nextLong() >> random.nextInt(64)) + 1;
+
+			final BigInteger expectedLocal = BigInteger.valueOf(value).multiply(BigInteger.valueOf(rate)).divide(Utils.COIN);
+			if (expectedLocal.bitLength() < 64)
+				assertEquals(expectedLocal.longValue(), GenericUtils.localValue(value, rate));
+
+			final BigInteger expectedBtc = BigInteger.valueOf(value).multiply(Utils.COIN).divide(BigInteger.valueOf(rate));
+			if (expectedBtc.bitLength() < 64)
+				assertEquals(expectedBtc.longValue(), GenericUtils.btcValue(value, rate));
+		}
+	}
+
+	/**
+	 * How {@link GenericUtils#formatValue(BigInteger, String, String, int)} used to work.
+	 */
+	static String formatValueWithStringFormat(final long value, final String plusSign, final String minusSign, final int precision)
+	{
+		long longValue = value;
+		if (precision <= 2)
+			longValue = longValue - longValue % 1000000 + longValue % 1000000 / 500000 * 1000000;
+		else if (precision <= 4)
+			longValue = longValue - longValue % 10000 + longValue % 10000 / 5000 * 10000;
+		else if (precision <= 6)
+			longValue = longValue - longValue % 100 + longValue % 100 / 50 * 100;
+
+		final String sign = longValue < 0 ? minusSign : plusSign;
+
+		final long absValue = Math.abs(longValue);
+		final int coins = (int) (absValue / 100000000);
+		final int satoshis = (int) (absValue % 100000000);
+
+		if (satoshis % 1000000 == 0)
+			return String.format(Locale.US, "%s%d.%02d", sign, coins, satoshis / 1000000);
+		else if (satoshis % 10000 == 0)
+			return String.format(Locale.US, "%s%d.%04d", sign, coins, satoshis / 10000);
+		else if (satoshis % 100 == 0)
+			return String.format(Locale.US, "%s%d.%06d", sign, coins, satoshis / 100);
+		else
+			return String.format(Locale.US, "%s%d.%08d", sign, coins, satoshis);
+	}
+
+	private static long expectedLocalValue(final long btcValue, final long rate)
+	{
+		return BigInteger.valueOf(btcValue).multiply(BigInteger.valueOf(rate)).divide(Utils.COIN).longValue();
+	}
+
+	private static long expectedBtcValue(final long localValue, final long rate)
+	{
+		return BigInteger.valueOf(localValue).multiply(Utils.COIN).divide(BigInteger.valueOf(rate)).longValue();
+	}
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SubstringIndexTest
+{
+	@Test
+	public void searchAnyText() throws Exception
+	{
+		final SubstringIndex index = new SubstringIndex();
+		index.put(1, "1BitcoinEaterAddressDontSendf59kuE", "Eater");
+		index.put(2, "1Lbcfr7sAHTD9CgdQo3HTMTkV8LK4ZnX71", "Donations");
+		index.put(3, "1HB5XMLmzFVj8ALj6mfBsbifRoD4miY36v", null);
+
+		assertEquals(ids(1), index.search("eater"));
+		assertEquals(ids(1), index.search("DONTSEND"));
+		assertEquals(ids(2), index.search("nation"));
+		assertEquals(ids(3), index.search("mzFVj"));
+		assertEquals(ids(), index.search("bitcoins"));
+		assertEquals(3, index.size());
+	}
+
+	@Test
+	public void shortQueries() throws Exception
+	{
+		final SubstringIndex index = new SubstringIndex();
+		index.put(1, "ab", "x");
+		index.put(2, "abc", "y");
+		index.put(3, "", null);
+
+		assertEquals(ids(1, 2, 3), index.search(""));
+		assertEquals(ids(1, 2), index.search("AB"));
+		assertEquals(ids(2), index.search("y"));
+		assertEquals(ids(2), index.search("abc"));
+	}
+
+	@Test
+	public void putReplacesAndRemoveForgets() throws Exception
+	{
+		final SubstringIndex index = new SubstringIndex();
+		index.put(1, "addr", "old label");
+		index.put(1, "addr", "new label");
+
+		assertEquals(ids(), index.search("old"));
+		assertEquals(ids(1), index.search("new"));
+		assertEquals(1, index.size());
+
+		index.remove(1);
+		assertEquals(ids(), index.search("new"));
+		assertEquals(ids(), index.search("addr"));
+		assertEquals(0, index.size());
+
+		// removing an unknown id is a no-op
+		index.remove(2);
+
+		index.put(2, "addr", "label");
+		index.clear();
+		assertEquals(ids(), index.search("label"));
+	}
+
+	@Test
+	public void sameAsScanning() throws Exception
+	{
+		final String[] labels = new String[500];
+		final SubstringIndex index = new SubstringIndex();
+		final Random random = new Random(0);
+		for (int i = 0; i < labels.length; i++)
+		{
+			labels[i] = randomText(random, random.nextInt(12));
+			index.put(i, labels[i]);
+		}
+
+		for (int i = 0; i < 200; i++)
+		{
+			final String query = randomText(random, 1 + random.nextInt(4));
+			final Set<Long> expected = new HashSet<Long>();
+			for (int j = 0; j < labels.length; j++)
+				if (labels[j].toLowerCase(Locale.US).contains(query.toLowerCase(Locale.US)))
+					expected.add((long) j);
+			assertEquals(query, expected, index.search(query));
+		}
+
+		assertTrue(index.search("abc").size() < labels.length);
+	}
+
+	private static String randomText(final Random random, final int length)
+	{
+		final StringBuilder builder = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			builder.append("abcABC".charAt(random.nextInt(6)));
+		return builder.toString();
+	}
+
+	private static Set<Long> ids(final long... ids)
+	{
+		final Set<Long> set = new HashSet<Long>();
+		for (final long id : ids)
+			set.add(id);
+		return set;
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package de.schildbach.wallet.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.UnitTestParams;
+
+import de.schildbach.wallet.ui.TransactionsListFragment.Direction;
+
+public class TransactionsIndexTest
+{
+	private static final NetworkParameters PARAMS = UnitTestParams.get();
+	private static final long DAY = 24 * 60 * 60 * 1000L;
+	private static final Collection<String> NO_LABELS = Collections.emptySet();
+
+	private final Address addressA = new ECKey(BigInteger.valueOf(1001)).toAddress(PARAMS);
+	private final Address addressB = new ECKey(BigInteger.valueOf(1002)).toAddress(PARAMS);
+	private final Address addressC = new ECKey(BigInteger.valueOf(1003)).toAddress(PARAMS);
+
+	private Wallet wallet;
+	private Address walletAddress;
+	private FixedValueCache valueCache;
+	private TransactionsIndex index;
+
+	private Transaction received1, sent2, received3, received4, sent5;
+
+	// values and counterparties as given, rather than computed from the wallet
+	private static class FixedValueCache extends TransactionValueCache
+	{
+		private final Map<Sha256Hash, Info> infos = new HashMap<Sha256Hash, Info>();
+
+		public FixedValueCache(final Wallet wallet)
+		{
+			super(wallet);
+		}
+
+		@Override
+		public Info get(final Transaction tx)
+		{
+			return infos.get(tx.getHash());
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		wallet = new Wallet(PARAMS);
+		final ECKey key = new ECKey();
+		wallet.addKey(key);
+		walletAddress = key.toAddress(PARAMS);
+		valueCache = new FixedValueCache(wallet);
+		index = new TransactionsIndex(wallet, new PaymentChannelContractToCreatorMap(wallet), valueCache);
+
+		received1 = addTransaction(1, 100000000, addressA);
+		sent2 = addTransaction(2, -50000000, addressB);
+		received3 = addTransaction(3, 10000000, addressB);
+		received4 = addTransaction(4, 200000000, addressC);
+		sent5 = addTransaction(5, -1000000, addressA);
+	}
+
+	@Test
+	public void noCriteria() throws Exception
+	{
+		final TransactionsFilter filter = new TransactionsFilter(null, null, null, null, null);
+
+		assertEquals(Arrays.asList(sent5, received4, received3, sent2, received1), index.search(null, filter, NO_LABELS, 100));
+		assertEquals(Arrays.asList(received4, received3, received1), index.search(Direction.RECEIVED, filter, NO_LABELS, 100));
+		assertEquals(Arrays.asList(sent5, sent2), index.search(Direction.SENT, filter, NO_LABELS, 100));
+		assertEquals(Arrays.asList(sent5, received4), index.search(null, filter, NO_LABELS, 2));
+	}
+
+	@Test
+	public void queryMatchesAddress() throws Exception
+	{
+		final String query = addressA.toString().substring(3, 13);
+
+		assertEquals(Arrays.asList(sent5, received1), search(null, query, null, null, null, null));
+		assertEquals(Arrays.asList(sent5, received1), search(null, query.toLowerCase(), null, null, null, null));
+		assertEquals(Arrays.asList(received1), search(Direction.RECEIVED, query, null, null, null, null));
+		assertEquals(Arrays.asList(), search(null, query + "x", null, null, null, null));
+	}
+
+	@Test
+	public void queryMatchesLabelledAddresses() throws Exception
+	{
+		final TransactionsFilter filter = new TransactionsFilter("friend", null, null, null, null);
+
+		assertEquals(Arrays.asList(received3, sent2), index.search(null, filter, Arrays.asList(addressB.toString()), 100));
+		assertEquals(Arrays.asList(), index.search(null, filter, NO_LABELS, 100));
+	}
+
+	@Test
+	public void timeRange() throws Exception
+	{
+		// inclusive at both ends
+		assertEquals(Arrays.asList(received4, received3, sent2), search(null, null, null, null, new Date(2 * DAY), new Date(4 * DAY)));
+		assertEquals(Arrays.asList(sent2), search(Direction.SENT, null, null, null, new Date(2 * DAY), new Date(4 * DAY)));
+		assertEquals(Arrays.asList(sent5, received4), search(null, null, null, null, new Date(4 * DAY), null));
+		assertEquals(Arrays.asList(), search(null, null, null, null, new Date(4 * DAY), new Date(2 * DAY)));
+	}
+
+	@Test
+	public void valueRange() throws Exception
+	{
+		// absolute values, inclusive at both ends
+		assertEquals(Arrays.asList(received3, sent2, received1),
+				search(null, null, BigInteger.valueOf(10000000), BigInteger.valueOf(100000000), null, null));
+		assertEquals(Arrays.asList(sent5), search(null, null, null, BigInteger.valueOf(1000000), null, null));
+		assertEquals(Arrays.asList(), search(null, null, BigInteger.valueOf(2), BigInteger.valueOf(1), null, null));
+	}
+
+	@Test
+	public void combinedCriteria() throws Exception
+	{
+		final String query = addressB.toString().substring(3, 13);
+
+		assertEquals(Arrays.asList(sent2), search(null, query, BigInteger.valueOf(20000000), null, null, null));
+		assertEquals(Arrays.asList(received3), search(null, query, null, null, new Date(3 * DAY), null));
+		assertEquals(Arrays.asList(received3), search(Direction.RECEIVED, null, null, BigInteger.valueOf(50000000), new Date(2 * DAY), null));
+	}
+
+	@Test
+	public void followsWalletChanges() throws Exception
+	{
+		final TransactionsFilter filter = new TransactionsFilter(null, null, null, new Date(4 * DAY), null);
+		assertEquals(Arrays.asList(sent5, received4), index.search(null, filter, NO_LABELS, 100));
+
+		final Transaction received6 = addTransaction(6, 5000000, addressC);
+		index.onCoinsReceived(wallet, received6, null, null);
+
+		assertEquals(Arrays.asList(received6, sent5, received4), index.search(null, filter, NO_LABELS, 100));
+		assertEquals(Arrays.asList(received6, received4), search(null, addressC.toString(), null, null, null, null));
+	}
+
+	private List<Transaction> search(@Nullable final Direction direction, @Nullable final String query, @Nullable final BigInteger minValue,
+			@Nullable final BigInteger maxValue, @Nullable final Date fromTime, @Nullable final Date toTime)
+	{
+		return index.search(direction, new TransactionsFilter(query, minValue, maxValue, fromTime, toTime), NO_LABELS, 100);
+	}
+
+	// pays the wallet, so it takes the transaction, but is indexed with the given value and counterparty
+	private Transaction addTransaction(final int day, final long value, final Address counterparty) throws Exception
+	{
+		final Transaction tx = new Transaction(PARAMS);
+		tx.addOutput(BigInteger.valueOf(Math.abs(value)), walletAddress);
+		valueCache.infos.put(tx.getHash(), new TransactionValueCache.Info(BigInteger.valueOf(value), counterparty));
+
+		wallet.receivePending(tx, null);
+		tx.setUpdateTime(new Date(day * DAY));
+		return tx;
+	}
+}